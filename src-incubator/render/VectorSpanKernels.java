@@ -0,0 +1,140 @@
+package render;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * 
+ * Compile and run with "--add-modules jdk.incubator.vector".
+ * 
+ * @author Texhnolyze
+ */
+final class VectorSpanKernels implements SpanKernels {
+    
+    private static final VectorSpecies<Float> F = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> I = IntVector.SPECIES_PREFERRED;
+    private static final int L = F.length();
+    
+    private final FloatVector iota;
+    private final int[] temp_u = new int[L], temp_v = new int[L], temp_rgb = new int[L];
+    
+    VectorSpanKernels() {
+        if (I.length() != L)
+            throw new IllegalStateException();
+        float[] lanes = new float[L];
+        for (int i = 0; i < L; i++)
+            lanes[i] = i;
+        iota = FloatVector.fromArray(F, lanes, 0);
+    }
+    
+    private static IntVector round_positive(FloatVector v) {
+        return (IntVector) v.add(0.5f).convertShape(VectorOperators.F2I, I, 0);
+    }
+    
+    private static IntVector rgb(FloatVector r, FloatVector g, FloatVector b) {
+        return round_positive(r).lanewise(VectorOperators.LSHL, 16)
+                .or(round_positive(g).lanewise(VectorOperators.LSHL, 8))
+                .or(round_positive(b));
+    }
+
+    @Override
+    public void flat(float[] z_buff, int[] rgb_buff, int i0, int to, float z_inv, float dz_inv, int rgb) {
+        final IntVector color = IntVector.broadcast(I, rgb);
+        for (int k = 0; k <= to; k += L) {
+            VectorMask<Float> in_span = F.indexInRange(k, to + 1);
+            FloatVector zv = iota.add(k).mul(dz_inv).add(z_inv);
+            FloatVector zb = FloatVector.fromArray(F, z_buff, i0 + k, in_span);
+            VectorMask<Float> pass = zb.compare(VectorOperators.LT, zv).and(in_span);
+            zv.intoArray(z_buff, i0 + k, pass);
+            color.intoArray(rgb_buff, i0 + k, pass.cast(I));
+        }
+    }
+
+    @Override
+    public void interpolateColor(float[] z_buff, int[] rgb_buff, int i0, int to, float z_inv, float dz_inv, 
+                                 float rdz, float drdz, float gdz, float dgdz, float bdz, float dbdz) {
+        for (int k = 0; k <= to; k += L) {
+            VectorMask<Float> in_span = F.indexInRange(k, to + 1);
+            FloatVector lane = iota.add(k);
+            FloatVector zv = lane.mul(dz_inv).add(z_inv);
+            FloatVector zb = FloatVector.fromArray(F, z_buff, i0 + k, in_span);
+            VectorMask<Float> pass = zb.compare(VectorOperators.LT, zv).and(in_span);
+            if (!pass.anyTrue())
+                continue;
+            FloatVector z = FloatVector.broadcast(F, 1f).div(zv);
+            zv.intoArray(z_buff, i0 + k, pass);
+            rgb(
+                lane.mul(drdz).add(rdz).mul(z), 
+                lane.mul(dgdz).add(gdz).mul(z), 
+                lane.mul(dbdz).add(bdz).mul(z)
+            ).intoArray(rgb_buff, i0 + k, pass.cast(I));
+        }
+    }
+
+    @Override
+    public int texture(float[] z_buff, int i0, int to, float z_inv, float dz_inv, 
+                       float udz, float dudz, float vdz, float dvdz, 
+                       int[] offs, int[] us, int[] vs) {
+        int n = 0;
+        for (int k = 0; k <= to; k += L) {
+            VectorMask<Float> in_span = F.indexInRange(k, to + 1);
+            FloatVector lane = iota.add(k);
+            FloatVector zv = lane.mul(dz_inv).add(z_inv);
+            FloatVector zb = FloatVector.fromArray(F, z_buff, i0 + k, in_span);
+            VectorMask<Float> pass = zb.compare(VectorOperators.LT, zv).and(in_span);
+            if (!pass.anyTrue())
+                continue;
+            FloatVector z = FloatVector.broadcast(F, 1f).div(zv);
+            zv.intoArray(z_buff, i0 + k, pass);
+            round_positive(lane.mul(dudz).add(udz).mul(z)).intoArray(temp_u, 0);
+            round_positive(lane.mul(dvdz).add(vdz).mul(z)).intoArray(temp_v, 0);
+            for (long bits = pass.toLong(); bits != 0L; bits &= bits - 1) {
+                int j = Long.numberOfTrailingZeros(bits);
+                offs[n] = k + j;
+                us[n] = temp_u[j];
+                vs[n] = temp_v[j];
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public int textureInterpolateColor(float[] z_buff, int i0, int to, float z_inv, float dz_inv, 
+                                       float udz, float dudz, float vdz, float dvdz, 
+                                       float rdz, float drdz, float gdz, float dgdz, float bdz, float dbdz, 
+                                       int[] offs, int[] us, int[] vs, int[] rgbs) {
+        int n = 0;
+        for (int k = 0; k <= to; k += L) {
+            VectorMask<Float> in_span = F.indexInRange(k, to + 1);
+            FloatVector lane = iota.add(k);
+            FloatVector zv = lane.mul(dz_inv).add(z_inv);
+            FloatVector zb = FloatVector.fromArray(F, z_buff, i0 + k, in_span);
+            VectorMask<Float> pass = zb.compare(VectorOperators.LT, zv).and(in_span);
+            if (!pass.anyTrue())
+                continue;
+            FloatVector z = FloatVector.broadcast(F, 1f).div(zv);
+            zv.intoArray(z_buff, i0 + k, pass);
+            round_positive(lane.mul(dudz).add(udz).mul(z)).intoArray(temp_u, 0);
+            round_positive(lane.mul(dvdz).add(vdz).mul(z)).intoArray(temp_v, 0);
+            rgb(
+                lane.mul(drdz).add(rdz).mul(z), 
+                lane.mul(dgdz).add(gdz).mul(z), 
+                lane.mul(dbdz).add(bdz).mul(z)
+            ).intoArray(temp_rgb, 0);
+            for (long bits = pass.toLong(); bits != 0L; bits &= bits - 1) {
+                int j = Long.numberOfTrailingZeros(bits);
+                offs[n] = k + j;
+                us[n] = temp_u[j];
+                vs[n] = temp_v[j];
+                rgbs[n] = temp_rgb[j];
+                n++;
+            }
+        }
+        return n;
+    }
+    
+}
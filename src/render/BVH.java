@@ -0,0 +1,253 @@
+package render;
+
+import java.util.Arrays;
+import static render.Camera.*;
+
+/**
+ *
+ * Bounding volume hierarchy over the AABBs of model instances,
+ * built with the binned surface area heuristic. Nodes are stored
+ * in flat arrays in depth first order, so the instances of every
+ * subtree are a contiguous range of objs.
+ *
+ * Instances whose testAABB() is false are not put in the tree
+ * and are always reported as visible.
+ *
+ * @author Texhnolyze
+ */
+class BVH {
+
+    private static final int BINS = 16;
+    private static final int MAX_LEAF_SIZE = 4;
+//  relative costs of a node box test and of an instance box test
+    private static final float TRAVERSAL_COST = 1f, INTERSECTION_COST = 1f;
+
+    private ModelInstance[] objs = new ModelInstance[0];
+    private float[] obj_bounds = new float[0]; // min x, y, z, max x, y, z per instance
+    private float[] obj_centers = new float[0];
+    private int num_objs;
+
+    private ModelInstance[] unbounded = new ModelInstance[0]; // instances without AABB
+    private int num_unbounded;
+
+    private int num_nodes;
+    private float[] node_bounds = new float[0]; // 6 per node, as obj_bounds
+    private int[] node_right = new int[0]; // index of the right child, -1 for leaves; left child is node + 1
+    private int[] node_start = new int[0], node_count = new int[0]; // range of objs covered by the subtree
+
+//  binning scratch
+    private final float[] bin_bounds = new float[6 * BINS];
+    private final int[] bin_counts = new int[BINS];
+    private final float[] right_area = new float[BINS];
+    private final int[] right_count = new int[BINS];
+    private final float[] sweep_bounds = new float[6];
+
+    private ModelInstance[] visible = new ModelInstance[256];
+    private int num_visible;
+    private int[] stack = new int[64];
+
+    void build(Iterable<ModelInstance> instances) {
+        num_objs = 0;
+        num_unbounded = 0;
+        for (ModelInstance instance : instances) {
+            if (!instance.testAABB()) {
+                if (num_unbounded == unbounded.length)
+                    unbounded = Arrays.copyOf(unbounded, Math.max(16, 2 * num_unbounded));
+                unbounded[num_unbounded++] = instance;
+                continue;
+            }
+            if (num_objs == objs.length) {
+                int n = Math.max(256, 2 * num_objs);
+                objs = Arrays.copyOf(objs, n);
+                obj_bounds = Arrays.copyOf(obj_bounds, 6 * n);
+                obj_centers = Arrays.copyOf(obj_centers, 3 * n);
+            }
+            AABB aabb = instance.getAABB();
+            int b = 6 * num_objs, c = 3 * num_objs;
+            obj_bounds[b] = aabb.posX();
+            obj_bounds[b + 1] = aabb.posY();
+            obj_bounds[b + 2] = aabb.posZ();
+            obj_bounds[b + 3] = aabb.posX() + aabb.width();
+            obj_bounds[b + 4] = aabb.posY() + aabb.height();
+            obj_bounds[b + 5] = aabb.posZ() + aabb.depth();
+            obj_centers[c] = 0.5f * (obj_bounds[b] + obj_bounds[b + 3]);
+            obj_centers[c + 1] = 0.5f * (obj_bounds[b + 1] + obj_bounds[b + 4]);
+            obj_centers[c + 2] = 0.5f * (obj_bounds[b + 2] + obj_bounds[b + 5]);
+            objs[num_objs++] = instance;
+        }
+        Arrays.fill(objs, num_objs, objs.length, null);
+        Arrays.fill(unbounded, num_unbounded, unbounded.length, null);
+        int max_nodes = Math.max(1, 2 * num_objs - 1);
+        if (node_right.length < max_nodes) {
+            node_bounds = new float[6 * max_nodes];
+            node_right = new int[max_nodes];
+            node_start = new int[max_nodes];
+            node_count = new int[max_nodes];
+        }
+        num_nodes = 0;
+        if (num_objs != 0)
+            build_node(0, num_objs);
+    }
+
+    int size() {
+        return num_objs + num_unbounded;
+    }
+
+//  returns the index of the created node
+    private int build_node(int start, int count) {
+        int node = num_nodes++;
+        node_start[node] = start;
+        node_count[node] = count;
+        node_right[node] = -1;
+        int nb = 6 * node;
+        float cmin_x = Float.POSITIVE_INFINITY, cmin_y = cmin_x, cmin_z = cmin_x;
+        float cmax_x = Float.NEGATIVE_INFINITY, cmax_y = cmax_x, cmax_z = cmax_x;
+        init_bounds(node_bounds, nb);
+        for (int i = start, end = start + count; i < end; i++) {
+            grow_bounds(node_bounds, nb, obj_bounds, 6 * i);
+            float x = obj_centers[3 * i], y = obj_centers[3 * i + 1], z = obj_centers[3 * i + 2];
+            cmin_x = Math.min(cmin_x, x); cmax_x = Math.max(cmax_x, x);
+            cmin_y = Math.min(cmin_y, y); cmax_y = Math.max(cmax_y, y);
+            cmin_z = Math.min(cmin_z, z); cmax_z = Math.max(cmax_z, z);
+        }
+        if (count <= MAX_LEAF_SIZE)
+            return node;
+//      choose the split with the lowest SAH cost among the bin borders of all three axes
+        float best_cost = INTERSECTION_COST * count * area(node_bounds, nb);
+        int best_axis = -1, best_bin = 0;
+        float[] cmin = {cmin_x, cmin_y, cmin_z}, cmax = {cmax_x, cmax_y, cmax_z};
+        for (int axis = 0; axis < 3; axis++) {
+            float extent = cmax[axis] - cmin[axis];
+            if (extent <= 0f)
+                continue;
+            float scale = BINS / extent;
+            Arrays.fill(bin_counts, 0);
+            for (int k = 0; k < BINS; k++)
+                init_bounds(bin_bounds, 6 * k);
+            for (int i = start, end = start + count; i < end; i++) {
+                int k = Math.min(BINS - 1, (int) ((obj_centers[3 * i + axis] - cmin[axis]) * scale));
+                bin_counts[k]++;
+                grow_bounds(bin_bounds, 6 * k, obj_bounds, 6 * i);
+            }
+//          sweep from the right to get the area and count of everything right of each border
+            float[] acc = sweep_bounds;
+            init_bounds(acc, 0);
+            int n = 0;
+            for (int k = BINS - 1; k > 0; k--) {
+                n += bin_counts[k];
+                grow_bounds(acc, 0, bin_bounds, 6 * k);
+                right_count[k] = n;
+                right_area[k] = n == 0 ? 0f : area(acc, 0);
+            }
+            init_bounds(acc, 0);
+            n = 0;
+            for (int k = 0; k < BINS - 1; k++) {
+                n += bin_counts[k];
+                grow_bounds(acc, 0, bin_bounds, 6 * k);
+                if (n == 0 || right_count[k + 1] == 0)
+                    continue;
+                float cost = TRAVERSAL_COST * area(node_bounds, nb) + INTERSECTION_COST * (n * area(acc, 0) + right_count[k + 1] * right_area[k + 1]);
+                if (cost < best_cost) {
+                    best_cost = cost;
+                    best_axis = axis;
+                    best_bin = k;
+                }
+            }
+        }
+        if (best_axis == -1)
+            return node; // splitting does not pay off
+//      partition objs in place: everything in bins <= best_bin goes left
+        float scale = BINS / (cmax[best_axis] - cmin[best_axis]);
+        int i = start, j = start + count - 1;
+        while (i <= j) {
+            int k = Math.min(BINS - 1, (int) ((obj_centers[3 * i + best_axis] - cmin[best_axis]) * scale));
+            if (k <= best_bin)
+                i++;
+            else
+                swap(i, j--);
+        }
+        build_node(start, i - start);
+        node_right[node] = build_node(i, start + count - i);
+        return node;
+    }
+
+    private void swap(int i, int j) {
+        ModelInstance o = objs[i];
+        objs[i] = objs[j];
+        objs[j] = o;
+        for (int k = 0; k < 6; k++) {
+            float t = obj_bounds[6 * i + k];
+            obj_bounds[6 * i + k] = obj_bounds[6 * j + k];
+            obj_bounds[6 * j + k] = t;
+        }
+        for (int k = 0; k < 3; k++) {
+            float t = obj_centers[3 * i + k];
+            obj_centers[3 * i + k] = obj_centers[3 * j + k];
+            obj_centers[3 * j + k] = t;
+        }
+    }
+
+    private static void init_bounds(float[] b, int off) {
+        b[off] = b[off + 1] = b[off + 2] = Float.POSITIVE_INFINITY;
+        b[off + 3] = b[off + 4] = b[off + 5] = Float.NEGATIVE_INFINITY;
+    }
+
+    private static void grow_bounds(float[] b, int off, float[] src, int src_off) {
+        for (int k = 0; k < 3; k++) {
+            b[off + k] = Math.min(b[off + k], src[src_off + k]);
+            b[off + 3 + k] = Math.max(b[off + 3 + k], src[src_off + 3 + k]);
+        }
+    }
+
+//  half of the surface area, the factor does not matter for the heuristic
+    private static float area(float[] b, int off) {
+        float dx = b[off + 3] - b[off], dy = b[off + 4] - b[off + 1], dz = b[off + 5] - b[off + 2];
+        return dx * dy + dy * dz + dz * dx;
+    }
+
+//  Collects the instances that intersect the camera frustum,
+//  subtrees completely inside or outside are accepted or rejected at once.
+//  Returns the number of visible instances, see visible(int).
+    int cull(Camera c) {
+        num_visible = 0;
+        for (int i = 0; i < num_unbounded; i++)
+            add_visible(unbounded[i]);
+        if (num_nodes == 0)
+            return num_visible;
+        int sp = 0;
+        stack[sp++] = 0;
+        while (sp != 0) {
+            int node = stack[--sp];
+            int result = c.classifyAABB(node_bounds, 6 * node);
+            if (result == OUTSIDE)
+                continue;
+            int start = node_start[node], end = start + node_count[node];
+            if (result == INSIDE) {
+                for (int i = start; i < end; i++)
+                    add_visible(objs[i]);
+            } else if (node_right[node] == -1) {
+                for (int i = start; i < end; i++) {
+                    if (c.classifyAABB(obj_bounds, 6 * i) != OUTSIDE)
+                        add_visible(objs[i]);
+                }
+            } else {
+                if (sp + 2 > stack.length)
+                    stack = Arrays.copyOf(stack, 2 * stack.length);
+                stack[sp++] = node_right[node];
+                stack[sp++] = node + 1;
+            }
+        }
+        return num_visible;
+    }
+
+    ModelInstance visible(int i) {
+        return visible[i];
+    }
+
+    private void add_visible(ModelInstance instance) {
+        if (num_visible == visible.length)
+            visible = Arrays.copyOf(visible, 2 * num_visible);
+        visible[num_visible++] = instance;
+    }
+
+}
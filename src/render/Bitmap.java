@@ -1,13 +1,215 @@
 package render;
 
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+
 /**
  *
  * @author Texhnolyze
  */
 public interface Bitmap {
-    
+
     int getWidth();
     int getHeight();
     int getRGB(int x, int y);
-    
+
+//  Bitmap backed by a packed int array in the color format of Graphics,
+//  the rasterizer reads its texels directly from the array.
+    public static class IntBitmap implements Bitmap {
+
+        private final int w, h;
+        private final TextureLayout layout;
+        private final int[] data; // in the order of the layout, see index()
+
+//      mip levels, level 0 is data and level k is max(w >> k, 1) x max(h >> k, 1), null if not generated
+        private int[][] mip_data;
+        private int[] mip_w, mip_h;
+
+        public IntBitmap(int w, int h) {
+            this(w, h, TextureLayout.ROW_MAJOR);
+        }
+
+        public IntBitmap(int w, int h, TextureLayout layout) {
+            if (w <= 0 || h <= 0)
+                throw new IllegalArgumentException("size must be > 0");
+            if (layout == null)
+                throw new IllegalArgumentException("layout is null");
+            this.w = w;
+            this.h = h;
+            this.layout = layout;
+            this.data = new int[size(layout, w, h)];
+        }
+
+//      wraps row by row data
+        public IntBitmap(int w, int h, int[] data) {
+            if (w <= 0 || h <= 0)
+                throw new IllegalArgumentException("size must be > 0");
+            if (data.length < w * h)
+                throw new IllegalArgumentException("data is smaller than w * h");
+            this.w = w;
+            this.h = h;
+            this.layout = TextureLayout.ROW_MAJOR;
+            this.data = data;
+        }
+
+//      The pixels of a TYPE_INT_RGB image are shared without copying, so later changes
+//      of the image are seen by the bitmap (Java2D stops accelerating such an image).
+//      Other images are converted once.
+        public static IntBitmap of(BufferedImage img) {
+            final int w = img.getWidth(), h = img.getHeight();
+            if (img.getType() == BufferedImage.TYPE_INT_RGB) {
+                Raster raster = img.getRaster();
+                DataBuffer buffer = raster.getDataBuffer();
+                if (buffer instanceof DataBufferInt && buffer.getNumBanks() == 1 && buffer.getOffset() == 0
+                        && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0
+                        && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+                        && ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() == w)
+                    return new IntBitmap(w, h, ((DataBufferInt) buffer).getData());
+            }
+            int[] data = img.getRGB(0, 0, w, h, null, 0, w);
+            for (int i = 0; i < data.length; i++)
+                data[i] &= 0xffffff; // no alpha
+            return new IntBitmap(w, h, data);
+        }
+
+        @Override
+        public int getWidth() {
+            return w;
+        }
+
+        @Override
+        public int getHeight() {
+            return h;
+        }
+
+        @Override
+        public int getRGB(int x, int y) {
+            return data[index(layout, w, x, y)];
+        }
+
+        public void setRGB(int x, int y, int rgb) {
+            data[index(layout, w, x, y)] = rgb;
+        }
+
+        public TextureLayout getLayout() {
+            return layout;
+        }
+
+//      Copy of the texels (and of the mip levels, if there are any) in the given layout.
+//      In the TILED layout sampling costs the same in every direction, while the
+//      ROW_MAJOR layout is fast only along the rows.
+        public IntBitmap toLayout(TextureLayout layout) {
+            IntBitmap bmp = new IntBitmap(w, h, layout);
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++)
+                    bmp.setRGB(x, y, getRGB(x, y));
+            }
+            if (hasMipmaps())
+                bmp.generateMipmaps();
+            return bmp;
+        }
+
+//      TILED levels are made of TILE x TILE texel tiles row by row, inside a tile the texels
+//      are in Morton (Z) order: the bits of x and y interleaved, MORTON[x] spreads the bits
+//      of x to the even positions. So every aligned 4x4 block is one cache line and the
+//      blocks of a tile (4 KB) follow each other in Z order, a step down stays in the tile.
+        static final int TILE_BITS = 5, TILE = 1 << TILE_BITS;
+        static final int[] MORTON = new int[TILE];
+        static {
+            for (int x = 0; x < TILE; x++) {
+                for (int b = 0; b < TILE_BITS; b++)
+                    MORTON[x] |= ((x >> b) & 1) << (2 * b);
+            }
+        }
+
+//      number of tiles in a row of a TILED level of the width w
+        static int tiles(int w) {
+            return (w + TILE - 1) >> TILE_BITS;
+        }
+
+//      length of the array of a w x h level, TILED levels are padded to whole tiles
+        private static int size(TextureLayout layout, int w, int h) {
+            if (layout == TextureLayout.TILED)
+                return tiles(w) * tiles(h) << (2 * TILE_BITS);
+            return w * h;
+        }
+
+//      position of the texel (x, y) in the array of a level of the width w, see Rasterizer3D.texel()
+        static int index(TextureLayout layout, int w, int x, int y) {
+            if (layout == TextureLayout.TILED)
+                return (((y >> TILE_BITS) * tiles(w) + (x >> TILE_BITS)) << (2 * TILE_BITS)) | MORTON[x & (TILE - 1)] | (MORTON[y & (TILE - 1)] << 1);
+            return y * w + x;
+        }
+
+//      Builds the mip levels down to 1 x 1, every texel of a level is the average of 
+//      2 x 2 texels of the previous level. The rasterizer then samples a level with about 
+//      the density of the screen pixels, call it again after the texels were changed.
+        public IntBitmap generateMipmaps() {
+            int n = 1;
+            while ((w >> n) > 0 || (h >> n) > 0)
+                n++;
+            mip_data = new int[n][];
+            mip_w = new int[n];
+            mip_h = new int[n];
+            mip_data[0] = data;
+            mip_w[0] = w;
+            mip_h[0] = h;
+            for (int k = 1; k < n; k++) {
+                final int[] src = mip_data[k - 1];
+                final int sw = mip_w[k - 1], sh = mip_h[k - 1];
+                final int lw = Math.max(sw >> 1, 1), lh = Math.max(sh >> 1, 1);
+                final int[] dest = new int[size(layout, lw, lh)];
+                for (int y = 0; y < lh; y++) {
+                    int y0 = Math.min(2 * y, sh - 1), y1 = Math.min(2 * y + 1, sh - 1);
+                    for (int x = 0; x < lw; x++) {
+                        int x0 = Math.min(2 * x, sw - 1), x1 = Math.min(2 * x + 1, sw - 1);
+                        dest[index(layout, lw, x, y)] = average(
+                            src[index(layout, sw, x0, y0)], src[index(layout, sw, x1, y0)], 
+                            src[index(layout, sw, x0, y1)], src[index(layout, sw, x1, y1)]
+                        );
+                    }
+                }
+                mip_data[k] = dest;
+                mip_w[k] = lw;
+                mip_h[k] = lh;
+            }
+            return this;
+        }
+
+        private static int average(int c1, int c2, int c3, int c4) {
+            int r = ((c1 >> 16) & 0xff) + ((c2 >> 16) & 0xff) + ((c3 >> 16) & 0xff) + ((c4 >> 16) & 0xff);
+            int g = ((c1 >> 8) & 0xff) + ((c2 >> 8) & 0xff) + ((c3 >> 8) & 0xff) + ((c4 >> 8) & 0xff);
+            int b = (c1 & 0xff) + (c2 & 0xff) + (c3 & 0xff) + (c4 & 0xff);
+            return Graphics.rgb((r + 2) >> 2, (g + 2) >> 2, (b + 2) >> 2);
+        }
+
+        public boolean hasMipmaps() {
+            return mip_data != null;
+        }
+
+        int numLevels() {
+            return mip_data == null ? 1 : mip_data.length;
+        }
+
+        int[] data() {
+            return data;
+        }
+
+        int[] levelData(int level) {
+            return mip_data[level];
+        }
+
+        int levelWidth(int level) {
+            return mip_w[level];
+        }
+
+        int levelHeight(int level) {
+            return mip_h[level];
+        }
+
+    }
+
 }
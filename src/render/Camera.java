@@ -2,6 +2,7 @@ package render;
 
 import render.Matrix4x4f.mat4;
 import render.Vector3f.vec3;
+import static render.Matrix4x4f.*;
 
 
 /**
@@ -207,12 +208,6 @@ public class Camera {
         }
     }
     
-    final void normalsToViewSpace(Iterable<Face> faces) {
-        for (Face f : faces) {
-            viewMatrix.toViewSpace(f.norm());
-        }
-    }
-    
     final void project(Iterable<Vertex> vertices, int w, int h) {
         float half_w_minus_one = 0.5f * (w - 1f);
         float half_h_minus_one = 0.5f * (h - 1f);
@@ -226,12 +221,82 @@ public class Camera {
         }
     }
     
+//  Same as toViewSpace(Iterable) for n points packed as x, y, z in src,
+//  the result is written to dest, src is left untouched.
+    final void toViewSpace(float[] src, float[] dest, int n) {
+        final float[] m = viewMatrix.values;
+        for (int i = 0, end = 3 * n; i < end; i += 3) {
+            float x = src[i], y = src[i + 1], z = src[i + 2];
+            dest[i] = x * m[M00] + y * m[M10] + z * m[M20] + m[M30];
+            dest[i + 1] = x * m[M01] + y * m[M11] + z * m[M21] + m[M31];
+            dest[i + 2] = x * m[M02] + y * m[M12] + z * m[M22] + m[M32];
+        }
+    }
+
+//  Same as project(Iterable, w, h) for n view space points packed as x, y, z.
+    final void project(float[] pts, int n, int w, int h) {
+        final float[] m = projectionMatrix.values;
+        float half_w_minus_one = 0.5f * (w - 1f);
+        float half_h_minus_one = 0.5f * (h - 1f);
+        for (int i = 0, end = 3 * n; i < end; i += 3) {
+            float w_inv = -1f / pts[i + 2];
+            pts[i] = (1f + pts[i] * m[M00] * w_inv) * half_w_minus_one;
+            pts[i + 1] = (1f + pts[i + 1] * m[M11] * w_inv) * half_h_minus_one;
+        }
+    }
+
+//  Inverse of toViewSpace and project for the screen point (sx, sy): stores in dest 
+//  the direction d, such that the world space point at the view depth z is pos + z * d.
+//  d is linear in sx and sy.
+    final vec3 screenRay(float sx, float sy, int w, int h, vec3 dest) {
+        final float[] m = projectionMatrix.values;
+        float a = (1f - sx / (0.5f * (w - 1f))) / m[M00];
+        float b = (1f - sy / (0.5f * (h - 1f))) / m[M11];
+//      left = up x dir, not stored in temp_vec since the renderers only read the camera
+        float lx = up.y * dir.z - up.z * dir.y, ly = up.z * dir.x - up.x * dir.z, lz = up.x * dir.y - up.y * dir.x;
+        return dest.set(dir.x + a * lx + b * up.x, dir.y + a * ly + b * up.y, dir.z + a * lz + b * up.z);
+    }
+    
+//  Conservative screen space bounds of the sphere, stored in dest as min x, min y, max x, max y. 
+//  Returns OUTSIDE if the sphere is completely behind the near plane, INTERSECTS if it 
+//  reaches behind it (dest is not set, the sphere may cover any part of the screen) 
+//  and INSIDE if the bounds were computed.
+    final int projectSphere(float x, float y, float z, float r, int w, int h, float[] dest) {
+        final float[] v = viewMatrix.values, p = projectionMatrix.values;
+        float vx = x * v[M00] + y * v[M10] + z * v[M20] + v[M30];
+        float vy = x * v[M01] + y * v[M11] + z * v[M21] + v[M31];
+        float vz = x * v[M02] + y * v[M12] + z * v[M22] + v[M32];
+        if (vz + r < near)
+            return OUTSIDE;
+        if (vz - r <= near)
+            return INTERSECTS;
+//      the sphere is inside the box [vx - r, vx + r] x [vz - r, vz + r], so the extremes 
+//      of vx / vz are bounded by its corners, and the same for vy / vz
+        float max_x = (vx + r) / (vx + r >= 0f ? vz - r : vz + r), min_x = (vx - r) / (vx - r <= 0f ? vz - r : vz + r);
+        float max_y = (vy + r) / (vy + r >= 0f ? vz - r : vz + r), min_y = (vy - r) / (vy - r <= 0f ? vz - r : vz + r);
+        float half_w_minus_one = 0.5f * (w - 1f), half_h_minus_one = 0.5f * (h - 1f);
+//      project() maps x / z to (1 - x / z * m00) * half_w_minus_one, so the order flips
+        dest[0] = (1f - max_x * p[M00]) * half_w_minus_one;
+        dest[1] = (1f - max_y * p[M11]) * half_h_minus_one;
+        dest[2] = (1f - min_x * p[M00]) * half_w_minus_one;
+        dest[3] = (1f - min_y * p[M11]) * half_h_minus_one;
+        return INSIDE;
+    }
+    
 //  Determines whether the AABB intersects the view space of camera.
 //  Calculations take place in the camera's local space.
     boolean testAABB(AABB aabb) {
         return frustum.intersects(aabb);
     }
     
+//  results of classifyAABB
+    static final int OUTSIDE = 0, INTERSECTS = 1, INSIDE = 2;
+    
+//  Classifies the box stored as min x, y, z, max x, y, z at bounds[off] against the frustum.
+    int classifyAABB(float[] bounds, int off) {
+        return frustum.classify(bounds[off], bounds[off + 1], bounds[off + 2], bounds[off + 3], bounds[off + 4], bounds[off + 5]);
+    }
+    
     private class Frustum {
         
         private final vec3 near_left_bot  = new vec3(), 
@@ -256,9 +321,9 @@ public class Camera {
                                  BOTTOM_PLANE   = 5;
                                  
         
+//      normals point inside, a point p is inside if dot(norm, p) + d >= 0 for all planes
         private final vec3[] planes_norm = new vec3[6]; 
         private final float[] planes_d = new float[6];
-        private final vec3 aabb_min = new vec3(), aabb_max = new vec3();
         
         Frustum() {
             for (int i = 0; i < planes_norm.length; i++) {
@@ -284,36 +349,51 @@ public class Camera {
             far_right_bot.set(on_far_plane).add(-left.x * half_w_far, -left.y * half_w_far, -left.z * half_w_far).add(-up.x * half_h_far, -up.y * half_h_far, -up.z * half_h_far);
             
             planes_norm[NEAR_PLANE].set(dir);
-            planes_d[NEAR_PLANE] = dir.dot(on_near_plane);
+            planes_d[NEAR_PLANE] = -dir.dot(on_near_plane);
             
             planes_norm[FAR_PLANE].set(-dir.x, -dir.y, -dir.z);
-            planes_d[FAR_PLANE] = on_far_plane.dot(-dir.x, -dir.y, -dir.z);
+            planes_d[FAR_PLANE] = -on_far_plane.dot(-dir.x, -dir.y, -dir.z);
             
             temp_vec1.set(near_left_bot).sub(near_left_top).cross(temp_vec2.set(far_left_top).sub(near_left_top));
             temp_vec1.normalize();
             planes_norm[LEFT_PLANE].set(temp_vec1);
-            planes_d[LEFT_PLANE] = near_left_bot.dot(planes_norm[LEFT_PLANE]);
+            planes_d[LEFT_PLANE] = -near_left_bot.dot(planes_norm[LEFT_PLANE]);
             
             planes_norm[RIGHT_PLANE].set(temp_vec1).reflect(dir, planes_norm[RIGHT_PLANE]);
-            planes_d[RIGHT_PLANE] = near_right_bot.dot(planes_norm[RIGHT_PLANE]);
+            planes_d[RIGHT_PLANE] = -near_right_bot.dot(planes_norm[RIGHT_PLANE]);
             
             temp_vec1.set(far_left_top).sub(near_left_top).cross(temp_vec2.set(near_right_top).sub(near_left_top));
             temp_vec1.normalize();
             planes_norm[TOP_PLANE].set(temp_vec1);
-            planes_d[TOP_PLANE] = far_left_top.dot(planes_norm[TOP_PLANE]);
+            planes_d[TOP_PLANE] = -far_left_top.dot(planes_norm[TOP_PLANE]);
             
             planes_norm[BOTTOM_PLANE].set(temp_vec1).reflect(dir, planes_norm[BOTTOM_PLANE]);
-            planes_d[BOTTOM_PLANE] = near_left_bot.dot(planes_norm[BOTTOM_PLANE]);
+            planes_d[BOTTOM_PLANE] = -near_left_bot.dot(planes_norm[BOTTOM_PLANE]);
             
         }
         
+        int classify(float min_x, float min_y, float min_z, float max_x, float max_y, float max_z) {
+            int result = INSIDE;
+            for (int i = 0; i < 6; i++) {
+                vec3 n = planes_norm[i];
+//              the farthest and the nearest corners in the direction of the normal
+                float d_max = (n.x > 0f ? max_x : min_x) * n.x + (n.y > 0f ? max_y : min_y) * n.y + (n.z > 0f ? max_z : min_z) * n.z + planes_d[i];
+                if (d_max < 0)
+                    return OUTSIDE;
+                float d_min = (n.x > 0f ? min_x : max_x) * n.x + (n.y > 0f ? min_y : max_y) * n.y + (n.z > 0f ? min_z : max_z) * n.z + planes_d[i];
+                if (d_min < 0)
+                    result = INTERSECTS;
+            }
+            return result;
+        }
+        
         boolean intersects(AABB aabb) {
-            aabb_min.set(aabb.posX(), aabb.posY(), aabb.posZ());
-            aabb_max.set(aabb_min).add(aabb.width(), aabb.height(), aabb.depth());
+            final float min_x = aabb.posX(), min_y = aabb.posY(), min_z = aabb.posZ();
+            final float max_x = min_x + aabb.width(), max_y = min_y + aabb.height(), max_z = min_z + aabb.depth();
             for (int i = 0; i < 6; i++) {
-                float d = Math.max(aabb_min.x * planes_norm[i].x, aabb_max.x * planes_norm[i].x) + 
-                          Math.max(aabb_min.y * planes_norm[i].y, aabb_max.y * planes_norm[i].y) +
-                          Math.max(aabb_min.z * planes_norm[i].z, aabb_max.z * planes_norm[i].z) + 
+                float d = Math.max(min_x * planes_norm[i].x, max_x * planes_norm[i].x) + 
+                          Math.max(min_y * planes_norm[i].y, max_y * planes_norm[i].y) +
+                          Math.max(min_z * planes_norm[i].z, max_z * planes_norm[i].z) + 
                           planes_d[i];
                 if (d < 0)
                     return false;
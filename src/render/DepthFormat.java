@@ -0,0 +1,13 @@
+package render;
+
+/**
+ *
+ * @author Texhnolyze
+ */
+public enum DepthFormat {
+    
+    FLOAT,    // 1/z as a float, 4 bytes per pixel
+    DEPTH_16, // 1/z quantized over [1/far, 1/near] of the camera to 16 bits, 2 bytes per pixel
+    DEPTH_24  // 1/z quantized to 24 bits, packed into 3 bytes per pixel
+    
+}
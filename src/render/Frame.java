@@ -0,0 +1,72 @@
+package render;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.concurrent.atomic.AtomicInteger;
+import static render.MathUtils.hash;
+
+/**
+ *
+ * Finished frame published by a FrameExporter, the pixels are in the color format
+ * of Graphics. They are a pooled buffer of the exporter, which is reused as soon
+ * as every subscriber has returned from onNext(), so a subscriber that needs the
+ * pixels later has to copy them.
+ *
+ * @author Texhnolyze
+ */
+public final class Frame {
+    
+    private static final DirectColorModel RGB = new DirectColorModel(24, 0xff0000, 0xff00, 0xff);
+    
+    private final FrameExporter exporter;
+    private final int w, h;
+    private final long index;
+    final int[] data;
+    private final AtomicInteger refs; // subscribers that have not returned from onNext() yet
+    
+    Frame(FrameExporter exporter, int w, int h, long index, int[] data, int refs) {
+        this.exporter = exporter;
+        this.w = w;
+        this.h = h;
+        this.index = index;
+        this.data = data;
+        this.refs = new AtomicInteger(refs);
+    }
+    
+    public int getWidth() {
+        return w;
+    }
+    
+    public int getHeight() {
+        return h;
+    }
+    
+//  number of the frame, counted from 0 by the exporter
+    public long getIndex() {
+        return index;
+    }
+    
+    public int getRGBInHash(int hash) {
+        return data[hash];
+    }
+    
+    public int getRGBInXY(int x, int y) {
+        return data[hash(x, y, w)];
+    }
+    
+//  TYPE_INT_RGB image over the pixels without a copy, valid only during onNext() as the pixels
+    public BufferedImage asImage() {
+        WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(data, w * h), w, h, w, RGB.getMasks(), null);
+        return new BufferedImage(RGB, raster, false, null);
+    }
+    
+//  called once per subscriber the frame was offered to, the last call returns the buffer to the pool
+    void release() {
+        if (refs.decrementAndGet() == 0)
+            exporter.release(data);
+    }
+    
+}
@@ -0,0 +1,203 @@
+package render;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import render.Graphics.DefaultGraphics;
+import render.Graphics.ImageGraphics;
+
+/**
+ *
+ * Publishes the finished frames of a DefaultGraphics to subscribers (see FrameSink),
+ * which receive them on the given executor, so rendering and encoding overlap.
+ * The frames are a fixed pool of pixel buffers: submit() blocks while all of them
+ * are in flight, which bounds the memory and slows the renderer down to the slowest
+ * subscriber. A buffer returns to the pool when every subscriber that was subscribed
+ * at submit() has returned from onNext() with it (or cancelled).
+ *
+ * submit() swaps the pixel array of the graphics with a free buffer instead of copying
+ * it, so the graphics continues with the pixels of an earlier frame: clear it or draw
+ * the next frame between Renderer.beginFrame() and endFrame(). The array of an
+ * ImageGraphics belongs to its image and is copied.
+ *
+ * @author Texhnolyze
+ */
+public class FrameExporter implements Flow.Publisher<Frame>, AutoCloseable {
+    
+    private final int w, h;
+    private final Executor executor;
+    private final BlockingQueue<int[]> free_buffers;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    
+    private long next_index; // only the submitting thread changes it
+    private volatile boolean closed;
+    
+    public FrameExporter(int w, int h, int buffers, Executor executor) {
+        if (w <= 0 || h <= 0)
+            throw new IllegalArgumentException("size must be > 0");
+        if (buffers <= 0)
+            throw new IllegalArgumentException("buffers must be > 0");
+        if (executor == null)
+            throw new IllegalArgumentException("executor is null");
+        this.w = w;
+        this.h = h;
+        this.executor = executor;
+        this.free_buffers = new ArrayBlockingQueue<>(buffers);
+        for (int i = 0; i < buffers; i++)
+            free_buffers.add(new int[w * h]);
+    }
+    
+    public int getWidth() {
+        return w;
+    }
+    
+    public int getHeight() {
+        return h;
+    }
+    
+//  A subscriber that subscribes after close() is completed at once.
+    @Override
+    public void subscribe(Flow.Subscriber<? super Frame> subscriber) {
+        if (subscriber == null)
+            throw new NullPointerException("subscriber is null"); // required by Flow
+        Subscription s = new Subscription(subscriber);
+        subscriptions.add(s);
+        subscriber.onSubscribe(s);
+        if (closed)
+            s.complete();
+    }
+    
+//  Publishes the pixels of g as the next frame, waits for a free buffer first.
+//  Frames are numbered in the order of the calls, which should come from one thread.
+    public void submit(DefaultGraphics g) throws InterruptedException {
+        if (closed)
+            throw new IllegalStateException("exporter is closed");
+        if (g.getWidth() != w || g.getHeight() != h)
+            throw new IllegalArgumentException("graphics is not " + w + " x " + h);
+        int[] buffer = free_buffers.take();
+        if (g instanceof ImageGraphics) {
+            System.arraycopy(g.data(), 0, buffer, 0, buffer.length);
+        } else {
+            int[] data = g.data();
+            g.set_data(buffer); // the renderer picks the new array up, see Rasterizer3D.updateGraphics()
+            buffer = data;
+        }
+        Object[] targets = subscriptions.toArray();
+        long index = next_index++;
+        if (targets.length == 0) {
+            release(buffer); // nobody listens, the frame is dropped
+            return;
+        }
+        Frame frame = new Frame(this, w, h, index, buffer, targets.length);
+        for (Object s : targets)
+            ((Subscription) s).offer(frame);
+    }
+    
+//  Completes the subscribers after they received the submitted frames.
+    @Override
+    public void close() {
+        closed = true;
+        for (Subscription s : subscriptions)
+            s.complete();
+    }
+    
+    void release(int[] buffer) {
+        free_buffers.add(buffer);
+    }
+    
+//  Frames wait in the queue until they are requested. The signals to the subscriber are
+//  serialized by drain(): the thread that raises wip from 0 runs it on the executor, the
+//  others only count a missed pass.
+    private final class Subscription implements Flow.Subscription {
+    
+        private final Flow.Subscriber<? super Frame> subscriber;
+        private final Queue<Frame> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled, completed;
+        private volatile Throwable error; // of a bad request(), reported by drain()
+        private boolean terminated; // onComplete() or onError() was called, only drain() reads it
+    
+        Subscription(Flow.Subscriber<? super Frame> subscriber) {
+            this.subscriber = subscriber;
+        }
+    
+        void offer(Frame frame) {
+            queue.add(frame);
+            schedule(); // releases the frame if cancelled meanwhile
+        }
+    
+        void complete() {
+            completed = true;
+            schedule();
+        }
+    
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("request must be > 0, got " + n); // required by Flow
+                cancelled = true;
+            } else {
+                long r;
+                do {
+                    r = requested.get();
+                } while (r != Long.MAX_VALUE && !requested.compareAndSet(r, r + n < 0 ? Long.MAX_VALUE : r + n));
+            }
+            schedule();
+        }
+    
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+    
+        private void schedule() {
+            if (wip.getAndIncrement() == 0)
+                executor.execute(this::drain);
+        }
+    
+        private void drain() {
+            int missed = 1;
+            do {
+                while (!cancelled && requested.get() > 0) {
+                    Frame frame = queue.poll();
+                    if (frame == null)
+                        break;
+                    if (requested.get() != Long.MAX_VALUE)
+                        requested.decrementAndGet();
+                    try {
+                        subscriber.onNext(frame);
+                    } catch (Throwable t) {
+                        cancelled = true; // a subscriber must not throw, it loses the following frames
+                    } finally {
+                        frame.release();
+                    }
+                }
+                if (cancelled) {
+                    subscriptions.remove(this);
+                    for (Frame frame; (frame = queue.poll()) != null; )
+                        frame.release();
+                    if (error != null && !terminated) {
+                        terminated = true;
+                        subscriber.onError(error);
+                    }
+                } else if (completed && queue.isEmpty() && !terminated) {
+                    terminated = true;
+                    subscriptions.remove(this);
+                    subscriber.onComplete();
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    
+    }
+    
+}
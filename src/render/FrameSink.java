@@ -0,0 +1,186 @@
+package render;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import javax.imageio.ImageIO;
+
+/**
+ *
+ * Subscriber of a FrameExporter that writes every frame somewhere. Frames are requested
+ * one at a time, the frames waiting for a slow sink keep their buffers, so the exporter
+ * blocks when its pool runs out. A sink that fails to write cancels its subscription, 
+ * await() then throws the error.
+ *
+ * @author Texhnolyze
+ */
+public abstract class FrameSink implements Flow.Subscriber<Frame> {
+    
+    private Flow.Subscription subscription;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile Throwable failure;
+    
+    @Override
+    public final void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(1);
+    }
+    
+    @Override
+    public final void onNext(Frame frame) {
+        try {
+            write(frame);
+        } catch (IOException | RuntimeException e) {
+            subscription.cancel();
+            finish(e);
+            return;
+        }
+        subscription.request(1);
+    }
+    
+    @Override
+    public final void onError(Throwable throwable) {
+        finish(throwable);
+    }
+    
+    @Override
+    public final void onComplete() {
+        finish(null);
+    }
+    
+    private void finish(Throwable t) {
+        if (done.getCount() == 0)
+            return;
+        try {
+            close();
+        } catch (IOException e) {
+            if (t == null)
+                t = e;
+        }
+        failure = t;
+        done.countDown();
+    }
+    
+//  Waits until the exporter was closed and the sink wrote all its frames.
+    public void await() throws IOException, InterruptedException {
+        done.await();
+        Throwable t = failure;
+        if (t instanceof IOException)
+            throw (IOException) t;
+        if (t != null)
+            throw new IOException(t);
+    }
+    
+//  called on a thread of the executor of the exporter, the pixels of the frame are valid until it returns
+    protected abstract void write(Frame frame) throws IOException;
+    
+//  called once after the last frame or the failure
+    protected void close() throws IOException {}
+    
+//  Every frame to its own PNG file in dir: prefix000000.png, prefix000001.png, ...
+    public static class PngSequence extends FrameSink {
+    
+        private final Path dir;
+        private final String prefix;
+    
+        public PngSequence(Path dir, String prefix) {
+            if (dir == null || prefix == null)
+                throw new IllegalArgumentException("dir or prefix is null");
+            this.dir = dir;
+            this.prefix = prefix;
+        }
+    
+        @Override
+        protected void write(Frame frame) throws IOException {
+            Path file = dir.resolve(String.format("%s%06d.png", prefix, frame.getIndex()));
+            if (!ImageIO.write(frame.asImage(), "png", file.toFile()))
+                throw new IOException("no PNG writer");
+        }
+    
+    }
+    
+//  Frames as 8 bit R, G, B per pixel, row by row, one after another without a header.
+//  The stream is closed after the last frame.
+    public static class RawRGB extends FrameSink {
+    
+        private final OutputStream out;
+        private byte[] bytes;
+    
+        public RawRGB(OutputStream out) {
+            if (out == null)
+                throw new IllegalArgumentException("out is null");
+            this.out = out;
+        }
+    
+        @Override
+        protected void write(Frame frame) throws IOException {
+            final int n = frame.getWidth() * frame.getHeight();
+            if (bytes == null || bytes.length != 3 * n)
+                bytes = new byte[3 * n];
+            final int[] data = frame.data;
+            for (int i = 0, j = 0; i < n; i++, j += 3) {
+                int rgb = data[i];
+                bytes[j] = (byte) (rgb >> 16);
+                bytes[j + 1] = (byte) (rgb >> 8);
+                bytes[j + 2] = (byte) rgb;
+            }
+            out.write(bytes);
+        }
+    
+        @Override
+        protected void close() throws IOException {
+            out.close();
+        }
+    
+    }
+    
+//  YUV4MPEG2 stream of 4:4:4 frames (BT.601, limited range), which video encoders read directly.
+//  The stream is closed after the last frame.
+    public static class Y4M extends FrameSink {
+    
+        private final OutputStream out;
+        private final int fps;
+        private byte[] planes; // Y, U, V
+        private boolean header_written;
+    
+        public Y4M(OutputStream out, int fps) {
+            if (out == null)
+                throw new IllegalArgumentException("out is null");
+            if (fps <= 0)
+                throw new IllegalArgumentException("fps must be > 0");
+            this.out = out;
+            this.fps = fps;
+        }
+    
+        @Override
+        protected void write(Frame frame) throws IOException {
+            final int w = frame.getWidth(), h = frame.getHeight(), n = w * h;
+            if (!header_written) {
+                out.write(String.format("YUV4MPEG2 W%d H%d F%d:1 Ip A1:1 C444\n", w, h, fps).getBytes(StandardCharsets.US_ASCII));
+                header_written = true;
+            }
+            if (planes == null || planes.length != 3 * n)
+                planes = new byte[3 * n];
+            final int[] data = frame.data;
+            for (int i = 0; i < n; i++) {
+                int rgb = data[i];
+                int r = (rgb >> 16) & 0xff, g = (rgb >> 8) & 0xff, b = rgb & 0xff;
+                planes[i] = (byte) (((66 * r + 129 * g + 25 * b + 128) >> 8) + 16);
+                planes[n + i] = (byte) (((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128);
+                planes[2 * n + i] = (byte) (((112 * r - 94 * g - 18 * b + 128) >> 8) + 128);
+            }
+            out.write("FRAME\n".getBytes(StandardCharsets.US_ASCII));
+            out.write(planes);
+        }
+    
+        @Override
+        protected void close() throws IOException {
+            out.close();
+        }
+    
+    }
+    
+}
@@ -0,0 +1,34 @@
+package render;
+
+import java.util.Arrays;
+
+/**
+ *
+ * Geometry buffer of the deferred PHONG shading. For every pixel written by a
+ * deferred triangle it keeps the interpolated (not normalized) world space
+ * normal, the 1/z the pixel was written with and the material of the triangle.
+ * The lighting is computed later from these values, once per visible pixel.
+ *
+ * @author Texhnolyze
+ */
+class GBuffer {
+
+    static final int EMPTY = -1;
+
+    final int w, h;
+    final float[] nx, ny, nz;
+    final float[] z_inv; // if z_buff holds another value, the pixel was overwritten later
+    final int[] material; // material index << 1 | 1 if textured, EMPTY if nothing is pending
+
+    GBuffer(int w, int h) {
+        this.w = w;
+        this.h = h;
+        nx = new float[w * h];
+        ny = new float[w * h];
+        nz = new float[w * h];
+        z_inv = new float[w * h];
+        material = new int[w * h];
+        Arrays.fill(material, EMPTY);
+    }
+
+}
@@ -1,6 +1,7 @@
 package render;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import static render.MathUtils.*;
 
 /**
@@ -79,9 +80,13 @@ public interface Graphics {
         private int[] data;
         
         public DefaultGraphics(int w, int h) {
+            this(w, h, new int[w * h]);
+        }
+        
+        DefaultGraphics(int w, int h, int[] data) {
             this.w = w;
             this.h = h;
-            data = new int[w * h];
+            this.data = data;
         }
         
         public void clear() {
@@ -142,6 +147,16 @@ public interface Graphics {
             data[hash(x, y, w)] = rgb;
         }
         
+//      the rasterizer writes directly into this array when possible, 
+//      it is read again before every drawn instance (see ImageGraphics.swap())
+        int[] data() {
+            return data;
+        }
+        
+        void set_data(int[] data) {
+            this.data = data;
+        }
+        
         public BufferedImage getAsImage() {
             BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
             img.setRGB(0, 0, w, h, data, 0, w);
@@ -154,4 +169,72 @@ public interface Graphics {
         
     }
     
+//  DefaultGraphics whose pixels are the DataBufferInt of a TYPE_INT_RGB image, so the image
+//  is always current: getAsImage() returns it without a copy. A double buffered graphics 
+//  has two images, it draws into the back one and swap() presents it as the front one. 
+//  Java2D does not accelerate images whose data array was taken, they are drawn from memory.
+    public static class ImageGraphics extends DefaultGraphics {
+        
+        private final BufferedImage[] images;
+        private int back; // index of the image that is drawn into
+        
+        public ImageGraphics(int w, int h) {
+            this(w, h, false);
+        }
+        
+        public ImageGraphics(int w, int h, boolean doubleBuffered) {
+            this(w, h, image(w, h), doubleBuffered ? image(w, h) : null);
+        }
+        
+        private ImageGraphics(int w, int h, BufferedImage img, BufferedImage back) {
+            super(w, h, pixels(img));
+            this.images = back == null ? new BufferedImage[] {img} : new BufferedImage[] {img, back};
+        }
+        
+        private static BufferedImage image(int w, int h) {
+            if (w <= 0 || h <= 0)
+                throw new IllegalArgumentException("size must be > 0");
+            return new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        }
+        
+        private static int[] pixels(BufferedImage img) {
+            return ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        }
+        
+        public boolean isDoubleBuffered() {
+            return images.length == 2;
+        }
+        
+//      the image that is drawn into
+        @Override
+        public BufferedImage getAsImage() {
+            return images[back];
+        }
+        
+//      the image of the last swap(), the only image if not double buffered
+        public BufferedImage getFrontImage() {
+            return images[images.length - 1 - back];
+        }
+        
+//      Presents the drawn image: it becomes the front image, which is returned, and the 
+//      following drawing goes to the other one. It holds the frame before the last one, 
+//      so clear it or start the next frame with Renderer.beginFrame(). Does nothing
+//      if not double buffered.
+        public BufferedImage swap() {
+            if (images.length == 2) {
+                back ^= 1;
+                set_data(pixels(images[back]));
+            }
+            return getFrontImage();
+        }
+        
+//      copies only if img is not the image that is drawn into
+        @Override
+        public void inflict(BufferedImage img) {
+            if (img != images[back])
+                super.inflict(img);
+        }
+        
+    }
+    
 }
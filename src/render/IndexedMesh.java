@@ -0,0 +1,242 @@
+package render;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ *
+ * Model that keeps all of its data in flat arrays (struct of arrays).
+ * Renderer reads these arrays directly and never modifies them,
+ * so faces() and vertices() are only views for the generic code.
+ *
+ * @author Texhnolyze
+ */
+public class IndexedMesh implements Model {
+
+    final float[] positions; // x, y, z per vertex
+    final float[] normals;   // x, y, z per vertex, unit length
+    final float[] uvs;       // u, v per vertex, may be null if the mesh is never textured
+    final int[] indices;     // three vertex indices per face, counterclockwise
+
+    private final int num_vertices, num_faces;
+    private boolean two_faced;
+    private boolean dirty;
+
+//  temporary colors of the views, allocated on demand
+    private float[] face_rgb, vertex_rgb;
+    private boolean temp_rgb_set; // a view color was set since the last reset()
+
+    public IndexedMesh(float[] positions, float[] normals, float[] uvs, int[] indices) {
+        if (positions.length % 3 != 0)
+            throw new IllegalArgumentException("positions.length must be a multiple of 3");
+        if (normals.length != positions.length)
+            throw new IllegalArgumentException("normals.length != positions.length");
+        if (uvs != null && uvs.length / 2 != positions.length / 3)
+            throw new IllegalArgumentException("uvs must contain 2 values per vertex");
+        if (indices.length % 3 != 0)
+            throw new IllegalArgumentException("indices.length must be a multiple of 3");
+        num_vertices = positions.length / 3;
+        num_faces = indices.length / 3;
+        for (int i : indices) {
+            if (i < 0 || i >= num_vertices)
+                throw new IllegalArgumentException("vertex index out of range: " + i);
+        }
+        this.positions = positions;
+        this.normals = normals;
+        this.uvs = uvs;
+        this.indices = indices;
+    }
+
+//  backing arrays, call markAsDirty() after changing them
+    public float[] positions() {return positions;}
+    public float[] normals() {return normals;}
+    public float[] uvs() {return uvs;}
+    public int[] indices() {return indices;}
+
+    public boolean isTwoFaced() {
+        return two_faced;
+    }
+
+    public IndexedMesh setTwoFaced(boolean twoFaced) {
+        this.two_faced = twoFaced;
+        return this;
+    }
+
+    @Override
+    public int numFaces() {
+        return num_faces;
+    }
+
+    @Override
+    public int numVertices() {
+        return num_vertices;
+    }
+
+    @Override
+    public Iterable<Face> faces() {
+        return () -> new Iterator<Face>() {
+            int i;
+            @Override
+            public boolean hasNext() {
+                return i < num_faces;
+            }
+            @Override
+            public Face next() {
+                if (i == num_faces)
+                    throw new NoSuchElementException();
+                return new FaceView(i++);
+            }
+        };
+    }
+
+    @Override
+    public Iterable<Vertex> vertices() {
+        return () -> new Iterator<Vertex>() {
+            int i;
+            @Override
+            public boolean hasNext() {
+                return i < num_vertices;
+            }
+            @Override
+            public Vertex next() {
+                if (i == num_vertices)
+                    throw new NoSuchElementException();
+                return new VertexView(i++);
+            }
+        };
+    }
+
+    @Override
+    public boolean dirty() {
+        return dirty;
+    }
+
+    @Override
+    public void markAsDirty() {
+        dirty = true;
+    }
+
+//  Renderer does not modify the arrays, only the colors set through the views are forgotten.
+//  Nothing is written if the mesh is not dirty and no color was set since the last reset, 
+//  so Renderers on several threads may share a mesh nobody writes to.
+    @Override
+    public void reset() {
+        if (dirty)
+            dirty = false;
+        if (temp_rgb_set) {
+            temp_rgb_set = false;
+            if (vertex_rgb != null) {
+                for (int i = 3; i < vertex_rgb.length; i += 4)
+                    vertex_rgb[i] = 0f;
+            }
+            if (face_rgb != null)
+                Arrays.fill(face_rgb, 0f);
+        }
+    }
+
+    private class Vec3View implements Vector3f {
+
+        final float[] array;
+        final int offset;
+
+        Vec3View(float[] array, int offset) {
+            this.array = array;
+            this.offset = offset;
+        }
+
+        @Override public float x() {return array[offset];}
+        @Override public float y() {return array[offset + 1];}
+        @Override public float z() {return array[offset + 2];}
+
+        @Override
+        public Vector3f set(float x, float y, float z) {
+            array[offset] = x;
+            array[offset + 1] = y;
+            array[offset + 2] = z;
+            return this;
+        }
+
+    }
+
+    private class VertexView implements Vertex {
+
+        final int idx;
+
+        VertexView(int idx) {
+            this.idx = idx;
+        }
+
+        @Override
+        public Vector3f pos() {
+            return new Vec3View(positions, 3 * idx);
+        }
+
+        @Override
+        public Vector3f norm() {
+            return new Vec3View(normals, 3 * idx);
+        }
+
+        @Override
+        public boolean lighted() {
+            return vertex_rgb != null && vertex_rgb[4 * idx + 3] != 0f;
+        }
+
+        @Override public float getTempRed() {return vertex_rgb == null ? 0f : vertex_rgb[4 * idx];}
+        @Override public float getTempGreen() {return vertex_rgb == null ? 0f : vertex_rgb[4 * idx + 1];}
+        @Override public float getTempBlue() {return vertex_rgb == null ? 0f : vertex_rgb[4 * idx + 2];}
+
+        @Override
+        public void setTempRGB(float r, float g, float b) {
+            if (vertex_rgb == null)
+                vertex_rgb = new float[4 * num_vertices];
+            vertex_rgb[4 * idx] = r;
+            vertex_rgb[4 * idx + 1] = g;
+            vertex_rgb[4 * idx + 2] = b;
+            vertex_rgb[4 * idx + 3] = 1f;
+            temp_rgb_set = true;
+        }
+
+    }
+
+    private class FaceView implements Face {
+
+        final int idx;
+
+        FaceView(int idx) {
+            this.idx = idx;
+        }
+
+        @Override public Vertex vertex1() {return new VertexView(indices[3 * idx]);}
+        @Override public Vertex vertex2() {return new VertexView(indices[3 * idx + 1]);}
+        @Override public Vertex vertex3() {return new VertexView(indices[3 * idx + 2]);}
+
+        @Override public float u1() {return uvs == null ? 0f : uvs[2 * indices[3 * idx]];}
+        @Override public float v1() {return uvs == null ? 0f : uvs[2 * indices[3 * idx] + 1];}
+        @Override public float u2() {return uvs == null ? 0f : uvs[2 * indices[3 * idx + 1]];}
+        @Override public float v2() {return uvs == null ? 0f : uvs[2 * indices[3 * idx + 1] + 1];}
+        @Override public float u3() {return uvs == null ? 0f : uvs[2 * indices[3 * idx + 2]];}
+        @Override public float v3() {return uvs == null ? 0f : uvs[2 * indices[3 * idx + 2] + 1];}
+
+        @Override
+        public boolean isTwoFaced() {
+            return two_faced;
+        }
+
+        @Override public float getTempRed() {return face_rgb == null ? 0f : face_rgb[3 * idx];}
+        @Override public float getTempGreen() {return face_rgb == null ? 0f : face_rgb[3 * idx + 1];}
+        @Override public float getTempBlue() {return face_rgb == null ? 0f : face_rgb[3 * idx + 2];}
+
+        @Override
+        public void setTempRGB(float r, float g, float b) {
+            if (face_rgb == null)
+                face_rgb = new float[3 * num_faces];
+            face_rgb[3 * idx] = r;
+            face_rgb[3 * idx + 1] = g;
+            face_rgb[3 * idx + 2] = b;
+            temp_rgb_set = true;
+        }
+
+    }
+
+}
@@ -10,6 +10,7 @@ import render.Vector3f.vec3;
 public abstract class Light<T> {
     
     boolean enabled = true;
+    boolean shadows; // ambient lights never cast shadows
     
     float r, g, b; 
     
@@ -36,6 +37,21 @@ public abstract class Light<T> {
         return enabled;
     }
     
+//  Direction and point lights that cast shadows get a shadow map in Renderer.render(Camera, Scene), 
+//  objects are shadowed by the instances whose isShadowCaster() is true 
+//  if their own isShadowReceiver() is true.
+    public void enableShadows() {
+        shadows = true;
+    }
+    
+    public void disableShadows() {
+        shadows = false;
+    }
+    
+    public boolean castsShadows() {
+        return shadows;
+    }
+    
     public float getRed() {
         return r;
     }
@@ -0,0 +1,110 @@
+package render;
+
+import java.util.Arrays;
+import java.util.List;
+import render.Light.PointLight;
+
+/**
+ *
+ * Point lights binned into screen tiles. The bounding sphere of every enabled
+ * light is projected to the screen and the light is added to the list of each
+ * tile its bounds touch. A sample that projects into a tile can be reached only
+ * by the lights of that tile, the lists keep the order of the light list.
+ *
+ * The lists are stored in one array: the lights of tile t are
+ * lights[tile_start[t]] ... lights[tile_start[t + 1] - 1].
+ *
+ * @author Texhnolyze
+ */
+class LightBins {
+
+    static final int TILE_SHIFT = 4, TILE_SIZE = 1 << TILE_SHIFT;
+
+    private int w, h;
+    private int tiles_x, tiles_y;
+
+    PointLight[] lights = new PointLight[64]; // enabled lights, indexed by tile_lights
+    int[] light_index = new int[64]; // index of every light in the list it was built from
+    private int num_lights;
+    int[] tile_start = new int[1];
+    int[] tile_lights = new int[256];
+
+    private int[] bounds = new int[4 * 64]; // tile bounds of every light: min x, min y, max x, max y
+    private final float[] screen_bounds = new float[4];
+
+    void build(Camera c, List<PointLight> point_lights, int w, int h) {
+        if (w != this.w || h != this.h) {
+            this.w = w;
+            this.h = h;
+            tiles_x = (w + TILE_SIZE - 1) >> TILE_SHIFT;
+            tiles_y = (h + TILE_SIZE - 1) >> TILE_SHIFT;
+            tile_start = new int[tiles_x * tiles_y + 1];
+        }
+        Arrays.fill(tile_start, 0);
+        Arrays.fill(lights, 0, num_lights, null);
+        num_lights = 0;
+        for (int k = 0, n = point_lights.size(); k < n; k++) {
+            PointLight l = point_lights.get(k);
+            if (!l.enabled)
+                continue;
+            int result = c.projectSphere(l.pos.x, l.pos.y, l.pos.z, l.radius, w, h, screen_bounds);
+            if (result == Camera.OUTSIDE)
+                continue;
+            int x0 = 0, y0 = 0, x1 = tiles_x - 1, y1 = tiles_y - 1;
+            if (result == Camera.INSIDE) {
+                x0 = Math.max(x0, (int) Math.floor(screen_bounds[0]) >> TILE_SHIFT);
+                y0 = Math.max(y0, (int) Math.floor(screen_bounds[1]) >> TILE_SHIFT);
+                x1 = Math.min(x1, (int) Math.ceil(screen_bounds[2]) >> TILE_SHIFT);
+                y1 = Math.min(y1, (int) Math.ceil(screen_bounds[3]) >> TILE_SHIFT);
+                if (x0 > x1 || y0 > y1)
+                    continue;
+            }
+            if (num_lights == lights.length) {
+                lights = Arrays.copyOf(lights, 2 * num_lights);
+                light_index = Arrays.copyOf(light_index, 2 * num_lights);
+                bounds = Arrays.copyOf(bounds, 8 * num_lights);
+            }
+            int b = 4 * num_lights;
+            bounds[b] = x0;
+            bounds[b + 1] = y0;
+            bounds[b + 2] = x1;
+            bounds[b + 3] = y1;
+            light_index[num_lights] = k;
+            lights[num_lights++] = l;
+//          count the lights of every tile
+            for (int ty = y0; ty <= y1; ty++) {
+                for (int t = ty * tiles_x + x0, end = ty * tiles_x + x1; t <= end; t++)
+                    tile_start[t + 1]++;
+            }
+        }
+        for (int t = 1; t < tile_start.length; t++)
+            tile_start[t] += tile_start[t - 1];
+        if (tile_lights.length < tile_start[tile_start.length - 1])
+            tile_lights = new int[2 * tile_start[tile_start.length - 1]];
+//      fill in the light order, tile_start[t] is used as the write position of the tile t
+//      and is shifted back to the start afterwards
+        for (int i = 0; i < num_lights; i++) {
+            int b = 4 * i;
+            for (int ty = bounds[b + 1]; ty <= bounds[b + 3]; ty++) {
+                for (int t = ty * tiles_x + bounds[b], end = ty * tiles_x + bounds[b + 2]; t <= end; t++)
+                    tile_lights[tile_start[t]++] = i;
+            }
+        }
+        for (int t = tile_start.length - 1; t > 0; t--)
+            tile_start[t] = tile_start[t - 1];
+        tile_start[0] = 0;
+    }
+
+//  tile of the pixel (x, y), which must be inside the screen
+    int tileOf(int x, int y) {
+        return (y >> TILE_SHIFT) * tiles_x + (x >> TILE_SHIFT);
+    }
+
+//  tile of the screen point, -1 if it is outside the screen
+    int tileOf(float x, float y) {
+        if (!(x >= 0f && x < w && y >= 0f && y < h))
+            return -1;
+        return tileOf((int) x, (int) y);
+    }
+
+}
@@ -0,0 +1,76 @@
+package render;
+
+import java.util.List;
+import render.Light.AmbientLight;
+import render.Light.DirectionLight;
+import render.Light.PointLight;
+
+/**
+ *
+ * Products of the colors of a material with the colors of the lights of one
+ * render call. They are computed once, when the material is first lit in the
+ * call, so lighting a sample only scales them.
+ *
+ * @author Texhnolyze
+ */
+class MaterialLighting {
+
+    Material mat;
+    SpecularTable spec;
+    float amb_r, amb_g, amb_b; // ambient terms of all enabled ambient and direction lights
+    float[] dir_terms = new float[0]; // diffuse rgb, specular rgb per direction light
+    float[] point_terms = new float[0]; // ambient rgb, diffuse rgb, specular rgb per point light
+
+    void set(Material mat, SpecularTable spec, List<AmbientLight> amb_lights, List<DirectionLight> dir_lights, List<PointLight> point_lights) {
+        this.mat = mat;
+        this.spec = spec;
+        final float ar = mat.getAmbientRed(), ag = mat.getAmbientGreen(), ab = mat.getAmbientBlue();
+        final float dr = mat.getDiffuseRed(), dg = mat.getDiffuseGreen(), db = mat.getDiffuseBlue();
+        final float sr = mat.getSpecularRed(), sg = mat.getSpecularGreen(), sb = mat.getSpecularBlue();
+        float r = 0f, g = 0f, b = 0f;
+        for (AmbientLight l : amb_lights) {
+            if (!l.enabled)
+                continue;
+            r += ar * l.r;
+            g += ag * l.g;
+            b += ab * l.b;
+        }
+        final int num_dir = dir_lights.size();
+        if (dir_terms.length < 6 * num_dir)
+            dir_terms = new float[6 * num_dir];
+        for (int k = 0, t = 0; k < num_dir; k++, t += 6) {
+            DirectionLight l = dir_lights.get(k);
+            if (!l.enabled)
+                continue;
+            r += ar * l.r;
+            g += ag * l.g;
+            b += ab * l.b;
+            set_terms(dir_terms, t, dr, dg, db, l);
+            set_terms(dir_terms, t + 3, sr, sg, sb, l);
+        }
+        amb_r = r;
+        amb_g = g;
+        amb_b = b;
+        final int num_point = point_lights.size();
+        if (point_terms.length < 9 * num_point)
+            point_terms = new float[Math.max(9 * num_point, 2 * point_terms.length)];
+        for (int k = 0, t = 0; k < num_point; k++, t += 9) {
+            PointLight l = point_lights.get(k);
+            set_terms(point_terms, t, ar, ag, ab, l);
+            set_terms(point_terms, t + 3, dr, dg, db, l);
+            set_terms(point_terms, t + 6, sr, sg, sb, l);
+        }
+    }
+
+    private static void set_terms(float[] dest, int off, float r, float g, float b, Light<?> l) {
+        dest[off] = r * l.r;
+        dest[off + 1] = g * l.g;
+        dest[off + 2] = b * l.b;
+    }
+
+    void clear() {
+        mat = null;
+        spec = null;
+    }
+
+}
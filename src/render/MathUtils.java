@@ -100,12 +100,48 @@ public final class MathUtils {
         return Math.max(start1, start2) < Math.min(end1, end2);
     }
     
+    static final int HALF_16x16 = 1 << 15;
+    
     static int make_fixed_16x16(int val) {
         return val << 16;
     }
+    
+    static int make_fixed_16x16(float val) {
+        return (int) (val * 65536f);
+    }
         
     static int round_fixed_16x16(int fixed) {
-        return (fixed + (1 << 15)) >>> 16;
+        return (fixed + HALF_16x16) >>> 16;
+    }
+    
+//  Screen coordinates of the triangles are 28.4 fixed point, pixel centers lie on the multiples
+//  of SUBPIXEL_SIZE. They are clamped to [-GUARD_28x4, GUARD_28x4], so a product of two
+//  coordinate differences (edge functions, triangle area) always fits a long.
+    static final int SUBPIXEL_BITS = 4, SUBPIXEL_SIZE = 1 << SUBPIXEL_BITS;
+    static final int GUARD_28x4 = 1 << 27;
+    
+    static int make_fixed_28x4(float val) {
+        final float fixed = val * SUBPIXEL_SIZE;
+        if (fixed >= GUARD_28x4)
+            return GUARD_28x4;
+        if (fixed > -GUARD_28x4)
+            return round(fixed);
+        return -GUARD_28x4; // NaN too
+    }
+    
+//  nearest pixel
+    static int round_fixed_28x4(int fixed) {
+        return (fixed + (SUBPIXEL_SIZE >> 1)) >> SUBPIXEL_BITS;
+    }
+    
+//  first pixel whose center is not less than the coordinate
+    static int ceil_fixed_28x4(int fixed) {
+        return (fixed + SUBPIXEL_SIZE - 1) >> SUBPIXEL_BITS;
+    }
+    
+//  last pixel whose center is not greater than the coordinate
+    static int floor_fixed_28x4(int fixed) {
+        return fixed >> SUBPIXEL_BITS;
     }
     
     static boolean ray_tri_intersection(vec3 ray_pos, vec3 ray_dir, vec3 v0, vec3 v1, vec3 v2, vec3 dest) {
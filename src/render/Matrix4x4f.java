@@ -33,8 +33,6 @@ public interface Matrix4x4f {
     
     static class mat4 implements Matrix4x4f { // just for internal usage
 
-        private static final vec3 temp = new vec3();
-        
         final float[] values = new float[16];
         mat4() {values[M00] = values[M11] = values[M22] = values[M33] = 1f;}
         
@@ -58,7 +56,7 @@ public interface Matrix4x4f {
         }
         
         void setToViewMatrix(vec3 pos, vec3 dir, vec3 up) { 
-            up.cross(dir, temp); // "left" vector
+            vec3 temp = up.cross(dir, new vec3()); // "left" vector
             values[M00] = temp.x;
             values[M01] = up.x;
             values[M02] = dir.x;
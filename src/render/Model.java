@@ -16,6 +16,8 @@ public interface Model {
     void markAsDirty();
     
 //  This method is called if model was marked as dirty.
+//  Renderer transforms vertices into its own buffers and never writes Vertex.pos(),
+//  so only the temporary colors (and whatever ModelInstance changed) need to be restored.
     void reset(); 
     
 }
@@ -2,6 +2,7 @@ package render;
 
 import java.util.Arrays;
 import static render.Graphics.*;
+import render.Graphics.DefaultGraphics;
 import static render.MathUtils.*;
 
 /**
@@ -10,16 +11,10 @@ import static render.MathUtils.*;
  */
 class Rasterizer3D {
     
-    private static class BufferData {
-        
-        private int rgb;
-        private float z_inv;
-        
-        private Material mat;
-        private float nx, ny, nz;
-        private boolean need_light;
-        
-    } 
+    static final int FILL = 0,
+                     FILL_INTERPOLATE_COLOR = 1,
+                     FILL_TEXTURED = 2,
+                     FILL_TEXTURED_INTERPOLATE_COLOR = 3;
     
     private static final int X_LESS_0 = 8,
                              Y_LESS_0 = 2,
@@ -27,10 +22,28 @@ class Rasterizer3D {
                              Y_GREATER_MAX_Y = 1;
     
     private final Graphics g;
+    private int color; // used by flat fills and lines instead of the graphics current color
     
     private int w, h;
     private int x_max, y_max;
     
+//  only pixels inside [tile_x0, tile_x1] x [tile_y0, tile_y1] are written,
+//  by default it is the whole screen
+    private int tile_x0, tile_y0, tile_x1, tile_y1;
+    
+    private TiledRasterizer tiled; // if not null, fills are binned and rasterized in parallel on flush()
+    private TriangleTraversal traversal = TriangleTraversal.SCANLINE;
+    private boolean depth_only; // depth pre-pass, fills write only z_buff, see depth_span
+    private int subdivision; // 0 or a power of two, see subdivided_span
+    private static final float SUBDIVISION_MAX_ERROR = 0.5f; // bound of the shift of a subdivided segment in pixels
+    
+//  SIMD span kernels, null if disabled or jdk.incubator.vector is not available
+    private SpanKernels spans = SpanKernels.create();
+    private int[] rgb_buff; // backing array of the graphics if it is DefaultGraphics, otherwise null
+    private int[] vec_offs, vec_u, vec_v, vec_rgb; // visible pixels of a textured span returned by the kernels
+    
+    private static final int VECTOR_MIN_SPAN = 8; // spans with less pixels are rasterized by the scalar loops
+    
     private int temp_x, temp_y;
     
     private int temp_int;
@@ -45,59 +58,552 @@ class Rasterizer3D {
     private float r1, g1, b1;
     private float r2, g2, b2;
     private float r3, g3, b3;
-    private float z1, z2, z3;
     private float z1_inv, z2_inv, z3_inv;
-    private int code1, code2, code3;
     private Bitmap tex;
+    private int[] texels; // data of tex (or of its mip level) if it is an IntBitmap, see texel()
+    private int texels_w; // texels per row, tiles per row if texels_tiled
+    private boolean texels_tiled;
+    private static final int TILE_BITS = Bitmap.IntBitmap.TILE_BITS, TILE = Bitmap.IntBitmap.TILE;
+    private static final int[] MORTON = Bitmap.IntBitmap.MORTON;
+    private float level_su, level_sv; // scale of the texture coordinates to the selected mip level
     private boolean modulate; // if true then texture rgb will be modulate with current graphics rgb
     private float u1, v1;
     private float u2, v2;
     private float u3, v3;
 //-----------------------------------------------------------------------------------
     
-    private float[] z_buff; // z buffer contains inversed z values
+    private float[] z_buff; // z buffer contains inversed z values, null if the depth format is not FLOAT
+    
+//  The integer depth formats store 1/z quantized linearly over [1/far, 1/near] of the depth range
+//  to [1, depth_max], 0 is empty, see quantize(). Only the buffer of the current format is allocated.
+//  Fragments farther than far get 0 and are never drawn, nearer than near get depth_max.
+    private DepthFormat depth_format = DepthFormat.FLOAT;
+    private char[] z_buff16; // DEPTH_16
+    private byte[] z_buff24; // DEPTH_24, 3 bytes per pixel with the low byte first, see depth24()
+    private int depth_max;
+    private float depth_near = 0.1f, depth_far = 1000f;
+    private double depth_inv_far, depth_scale;
+    
+//  Hierarchical z: hiz[b] is not greater than any 1/z stored in the HIZ_SIZE x HIZ_SIZE 
+//  block b of z_buff. Values in z_buff only grow (until the next clear), so a stale block value stays valid. 
+//  Blocks written since the last updateHierarchicalZ() are marked dirty and recomputed there.
+    static final int HIZ_SHIFT = 3, HIZ_SIZE = 1 << HIZ_SHIFT;
+//  relative tolerance for the incrementally interpolated 1/z, which can slightly exceed the vertex values
+    private static final float HIZ_EPSILON = 1e-3f;
+    private float[] hiz;
+    private boolean[] hiz_dirty;
+    private int hiz_w; // blocks per row
+    
+//  Generation of the z buffer: a block b with hiz_gen[b] != z_gen holds values of an earlier 
+//  generation, which count as empty. Such a block is cleared when the first triangle or line 
+//  marks it dirty, so invalidateZBuffer() does not touch z_buff, see clear_blocks.
+    private int[] hiz_gen;
+    private int z_gen;
     private float[] sqrt_table;
-	
-    private BufferData[] buffer;
+    
+//  If not null, the interpolate color fills are deferred: instead of a color they 
+//  interpolate normals, which are written with gbuf_material to the G-buffer, see gbuffer_span.
+    private GBuffer gbuffer;
+    private int gbuf_material;
     
     Rasterizer3D(Graphics g) {
         this.g = g;
+        this.rgb_buff = g instanceof DefaultGraphics ? ((DefaultGraphics) g).data() : null;
         updateBounds();
-        for (int i = 0; i < tri_points.length; i++)
-            tri_points[i] = new TriPoint();
+    }
+    
+//  creates a depth-only rasterizer without graphics, only its z buffer is written (shadow maps)
+    Rasterizer3D(int w, int h) {
+        this.g = null;
+        this.rgb_buff = null;
+        this.depth_only = true;
+        set_size(w, h);
+    }
+    
+//  creates a rasterizer that shares graphics and z buffer with the "parent",
+//  but writes only the pixels of the given tile
+    Rasterizer3D(Rasterizer3D parent, int tile_x0, int tile_y0, int tile_x1, int tile_y1) {
+        this.g = parent.g;
+        this.rgb_buff = parent.rgb_buff;
+        this.w = parent.w;
+        this.h = parent.h;
+        this.x_max = parent.x_max;
+        this.y_max = parent.y_max;
+        this.z_buff = parent.z_buff;
+        this.depth_format = parent.depth_format;
+        this.z_buff16 = parent.z_buff16;
+        this.z_buff24 = parent.z_buff24;
+        this.depth_max = parent.depth_max;
+        this.hiz = parent.hiz;
+        this.hiz_dirty = parent.hiz_dirty;
+        this.hiz_w = parent.hiz_w;
+        this.hiz_gen = parent.hiz_gen;
+        this.sqrt_table = parent.sqrt_table;
+        this.tile_x0 = tile_x0;
+        this.tile_y0 = tile_y0;
+        this.tile_x1 = tile_x1;
+        this.tile_y1 = tile_y1;
+        copySettings(parent);
+    }
+    
+//  copies the rasterization options (but not the buffers) of the given rasterizer
+    void copySettings(Rasterizer3D r) {
+        traversal = r.traversal;
+        depth_only = r.depth_only;
+        subdivision = r.subdivision;
+        gbuffer = r.gbuffer;
+        depth_near = r.depth_near;
+        depth_far = r.depth_far;
+        depth_inv_far = r.depth_inv_far;
+        depth_scale = r.depth_scale;
+        z_gen = r.z_gen;
+        rgb_buff = r.rgb_buff;
+        if ((r.spans != null) != (spans != null))
+            spans = r.spans == null ? null : SpanKernels.create();
     }
     
     Graphics getGraphics() {
         return g;
     }
     
+    int getWidth() {
+        return w;
+    }
+    
+    int getHeight() {
+        return h;
+    }
+    
+    void setColor(int rgb) {
+        color = rgb;
+    }
+    
+    void setTiled(TiledRasterizer tiled) {
+        flush();
+        this.tiled = tiled;
+    }
+    
+    boolean isTiled() {
+        return tiled != null;
+    }
+    
+    TriangleTraversal getTraversal() {
+        return traversal;
+    }
+    
+    void setTraversal(TriangleTraversal traversal) {
+        flush();
+        this.traversal = traversal;
+    }
+    
+    int getSubdivision() {
+        return subdivision;
+    }
+    
+    void setSubdivision(int subdivision) {
+        flush();
+        this.subdivision = subdivision;
+    }
+    
+    boolean isDepthOnly() {
+        return depth_only;
+    }
+    
+    void setDepthOnly(boolean depth_only) {
+        flush();
+        this.depth_only = depth_only;
+    }
+    
+    GBuffer getGBuffer() {
+        return gbuffer;
+    }
+    
+    void setGBuffer(GBuffer gbuffer) {
+        flush();
+        this.gbuffer = gbuffer;
+    }
+    
+//  value stored in GBuffer.material by the following deferred fills
+    void setGBufferMaterial(int material) {
+        gbuf_material = material;
+    }
+    
+    boolean isVectorSpans() {
+        return spans != null;
+    }
+    
+//  has no effect if the SIMD kernels are not supported
+    void setVectorSpans(boolean enabled) {
+        flush();
+        if (!enabled)
+            spans = null;
+        else if (spans == null)
+            spans = SpanKernels.create();
+    }
+    
+    DepthFormat getDepthFormat() {
+        return depth_format;
+    }
+    
+//  replaces the z buffer with an empty one of the given format
+    void setDepthFormat(DepthFormat format) {
+        flush();
+        depth_format = format;
+        allocate_depth();
+        clearZBuffer();
+    }
+    
+//  Sets the range quantized by the integer depth formats. The values already
+//  in the z buffer are converted to the new range, so they keep their order.
+//  Blocks of an earlier generation are empty (see invalidateZBuffer()) and are skipped.
+    void setDepthRange(float near, float far) {
+        if (near == depth_near && far == depth_far)
+            return;
+        if (z_buff == null)
+            flush(); // the binned triangles are quantized with the old range
+        final double old_inv_far = depth_inv_far, old_scale = depth_scale;
+        depth_near = near;
+        depth_far = far;
+        update_depth_scale();
+        if (z_buff != null)
+            return;
+        for (int b = 0; b < hiz.length; b++) {
+            if (hiz_gen[b] != z_gen)
+                continue;
+            final int x0 = (b % hiz_w) << HIZ_SHIFT, y0 = (b / hiz_w) << HIZ_SHIFT;
+            final int x1 = Math.min(x0 + HIZ_SIZE, w), y1 = Math.min(y0 + HIZ_SIZE, h);
+            for (int y = y0; y < y1; y++) {
+                for (int i = y * w + x0, end = y * w + x1; i < end; i++) {
+                    final int q = stored_depth(i);
+                    if (q != 0)
+                        store_depth(i, quantize((float) (old_inv_far + (q - 1) / old_scale)));
+                }
+            }
+            hiz[b] = Float.NEGATIVE_INFINITY;
+            hiz_dirty[b] = true;
+        }
+    }
+    
+    private void allocate_depth() {
+        if (tiled != null)
+            tiled.invalidate(); // the workers hold the old buffers
+        final int n = w * h;
+        z_buff = depth_format == DepthFormat.FLOAT ? new float[n] : null;
+        z_buff16 = depth_format == DepthFormat.DEPTH_16 ? new char[n] : null;
+        z_buff24 = depth_format == DepthFormat.DEPTH_24 ? new byte[3 * n] : null;
+        depth_max = depth_format == DepthFormat.DEPTH_16 ? 0xffff : 0xffffff;
+        update_depth_scale();
+    }
+    
+    private void update_depth_scale() {
+        depth_inv_far = 1.0 / depth_far;
+        depth_scale = (depth_max - 1) / (1.0 / depth_near - depth_inv_far);
+    }
+    
+//  1 + floor((z_inv - 1/far) * depth_scale) clamped to [0, depth_max], 0 for NaN
+    private int quantize(float z_inv) {
+        final double q = 1.0 + (z_inv - depth_inv_far) * depth_scale;
+        if (!(q >= 1.0))
+            return 0;
+        return q >= depth_max ? depth_max : (int) q;
+    }
+    
+//  the smallest 1/z that is quantized to q, -infinity for the empty 0
+    private float dequantize(int q) {
+        return q == 0 ? Float.NEGATIVE_INFINITY : (float) (depth_inv_far + (q - 1) / depth_scale);
+    }
+    
+    private int stored_depth(int i) {
+        return z_buff16 != null ? z_buff16[i] : depth24(z_buff24, i);
+    }
+    
+    private void store_depth(int i, int q) {
+        if (z_buff16 != null)
+            z_buff16[i] = (char) q;
+        else
+            store_depth24(z_buff24, i, q);
+    }
+    
+    private static int depth24(byte[] z24, int i) {
+        final int j = 3 * i;
+        return (z24[j] & 0xff) | (z24[j + 1] & 0xff) << 8 | (z24[j + 2] & 0xff) << 16;
+    }
+    
+    private static void store_depth24(byte[] z24, int i, int q) {
+        final int j = 3 * i;
+        z24[j] = (byte) q;
+        z24[j + 1] = (byte) (q >> 8);
+        z24[j + 2] = (byte) (q >> 16);
+    }
+    
+    private void ensure_vec_buffers() {
+        if (vec_offs == null) {
+            int n = tile_x1 - tile_x0 + 1;
+            vec_offs = new int[n];
+            vec_u = new int[n];
+            vec_v = new int[n];
+            vec_rgb = new int[n];
+        }
+    }
+    
+//  rasterizes all binned triangles, does nothing if not tiled
+    void flush() {
+        if (tiled != null)
+            tiled.flush();
+    }
+    
+//  The backing array of a DefaultGraphics changes when an ImageGraphics swaps its images,
+//  the binned triangles are drawn into the old one first.
+    void updateGraphics() {
+        if (g instanceof DefaultGraphics && ((DefaultGraphics) g).data() != rgb_buff) {
+            flush();
+            rgb_buff = ((DefaultGraphics) g).data();
+        }
+    }
+    
     void updateBounds() {
         if (g.getWidth() != w || g.getHeight() != h) {
-            w = g.getWidth();
-            h = g.getHeight();
-            x_max = w - 1;
-            y_max = h - 1;
-            z_buff = new float[w * h];
-            sqrt_table = buildSqrtTable(w, h);
-            clearZBuffer();
+            flush();
+            set_size(g.getWidth(), g.getHeight());
         }
     }
     
+    private void set_size(int w, int h) {
+        this.w = w;
+        this.h = h;
+        x_max = w - 1;
+        y_max = h - 1;
+        tile_x0 = 0;
+        tile_y0 = 0;
+        tile_x1 = x_max;
+        tile_y1 = y_max;
+        vec_offs = vec_u = vec_v = vec_rgb = null;
+        allocate_depth();
+        hiz_w = (w + HIZ_SIZE - 1) >> HIZ_SHIFT;
+        hiz = new float[hiz_w * ((h + HIZ_SIZE - 1) >> HIZ_SHIFT)];
+        hiz_dirty = new boolean[hiz.length];
+        hiz_gen = new int[hiz.length];
+        sqrt_table = buildSqrtTable(w, h);
+        clearZBuffer();
+    }
+    
+//  backing array of the FLOAT z buffer (null in the other formats), call flush() before reading it
+    float[] zBuffer() {
+        return z_buff;
+    }
+    
+//  1/z stored at the pixel i in any format, -infinity if it is empty, call flush() before
+    float depthAt(int i) {
+        if (hiz_gen[((i / w) >> HIZ_SHIFT) * hiz_w + ((i % w) >> HIZ_SHIFT)] != z_gen)
+            return Float.NEGATIVE_INFINITY;
+        return z_buff != null ? z_buff[i] : dequantize(stored_depth(i));
+    }
+    
+//  replaces the FLOAT z buffer with a copy of src, the hierarchical z is rebuilt on the next update
+    void loadZBuffer(float[] src) {
+        flush();
+        System.arraycopy(src, 0, z_buff, 0, z_buff.length);
+        Arrays.fill(hiz, Float.NEGATIVE_INFINITY);
+        Arrays.fill(hiz_dirty, true);
+        Arrays.fill(hiz_gen, z_gen);
+    }
+    
     void clearZBuffer() {
-        for (int i = 0; i < z_buff.length; i++)
-            z_buff[i] = Float.NEGATIVE_INFINITY;
+        flush();
+        if (z_buff16 != null)
+            Arrays.fill(z_buff16, (char) 0);
+        else if (z_buff24 != null)
+            Arrays.fill(z_buff24, (byte) 0);
+        else
+            for (int i = 0; i < z_buff.length; i++)
+                z_buff[i] = Float.NEGATIVE_INFINITY;
+        Arrays.fill(hiz, Float.NEGATIVE_INFINITY);
+        Arrays.fill(hiz_dirty, false);
+        Arrays.fill(hiz_gen, z_gen);
+    }
+    
+//  Clears the z buffer by starting a new generation, the values of z_buff are not written. 
+//  Only the hierarchical z (one value per HIZ_SIZE x HIZ_SIZE pixels) is reset. 
+//  The raw zBuffer() is not valid after this call, depthAt() is.
+    void invalidateZBuffer() {
+        flush();
+        if (z_gen == Integer.MAX_VALUE) { // the generations are used up, start again from a real clear
+            z_gen = 0;
+            clearZBuffer();
+            return;
+        }
+        z_gen++;
+        Arrays.fill(hiz, Float.NEGATIVE_INFINITY);
+        Arrays.fill(hiz_dirty, false);
+    }
+    
+//  empties the pixels of the blocks b0..b1 of one block row and makes them current
+    private void clear_blocks(int b0, int b1) {
+        final int x0 = (b0 % hiz_w) << HIZ_SHIFT, y0 = (b0 / hiz_w) << HIZ_SHIFT;
+        final int x1 = Math.min(((b1 % hiz_w) + 1) << HIZ_SHIFT, w), y1 = Math.min(y0 + HIZ_SIZE, h);
+        for (int y = y0; y < y1; y++) {
+            final int from = y * w + x0, to = y * w + x1;
+            if (z_buff16 != null)
+                Arrays.fill(z_buff16, from, to, (char) 0);
+            else if (z_buff24 != null)
+                Arrays.fill(z_buff24, 3 * from, 3 * to, (byte) 0);
+            else
+                Arrays.fill(z_buff, from, to, Float.NEGATIVE_INFINITY);
+        }
+        Arrays.fill(hiz_gen, b0, b1 + 1, z_gen);
+    }
+    
+//  Writes rgb to every pixel with an empty depth, which after invalidateZBuffer() are the pixels 
+//  no triangle or line has written since. The pixels of the blocks of an earlier generation 
+//  are filled without reading their depth. Goes row by row over runs of blocks of the same kind.
+    void fillEmpty(int rgb) {
+        flush();
+        for (int y = 0; y < h; y++) {
+            final int row = (y >> HIZ_SHIFT) * hiz_w;
+            for (int bx = 0; bx < hiz_w;) {
+                final boolean stale = hiz_gen[row + bx] != z_gen;
+                int e = bx + 1;
+                while (e < hiz_w && (hiz_gen[row + e] != z_gen) == stale)
+                    e++;
+                final int from = y * w + (bx << HIZ_SHIFT), to = y * w + Math.min(e << HIZ_SHIFT, w);
+                if (stale)
+                    fill_rgb(from, to, rgb);
+                else
+                    fill_empty_rgb(from, to, rgb);
+                bx = e;
+            }
+        }
+    }
+    
+    private void fill_rgb(int from, int to, int rgb) {
+        if (rgb_buff != null) {
+            Arrays.fill(rgb_buff, from, to, rgb);
+            return;
+        }
+        for (int i = from; i < to; i++)
+            g.plotToHash(i, rgb);
+    }
+    
+    private void fill_empty_rgb(int from, int to, int rgb) {
+        if (z_buff16 != null) {
+            for (int i = from; i < to; i++) {
+                if (z_buff16[i] == 0)
+                    g.plotToHash(i, rgb);
+            }
+        } else if (z_buff24 != null) {
+            for (int i = from; i < to; i++) {
+                if (depth24(z_buff24, i) == 0)
+                    g.plotToHash(i, rgb);
+            }
+        } else {
+            for (int i = from; i < to; i++) {
+                if (z_buff[i] == Float.NEGATIVE_INFINITY)
+                    g.plotToHash(i, rgb);
+            }
+        }
+    }
+    
+//  Returns true if the triangle is behind everything already drawn in its bounding box 
+//  (only the part inside the tile is considered). Otherwise the blocks of the bounding box 
+//  are marked dirty, since the triangle may write them.
+    private boolean hiz_reject(int x1, int y1, float z1, int x2, int y2, float z2, int x3, int y3, float z3) {
+        int min_x = Math.max(ceil_fixed_28x4(Math.min(x1, Math.min(x2, x3))), tile_x0);
+        int max_x = Math.min(floor_fixed_28x4(Math.max(x1, Math.max(x2, x3))), tile_x1);
+        int min_y = Math.max(ceil_fixed_28x4(Math.min(y1, Math.min(y2, y3))), tile_y0);
+        int max_y = Math.min(floor_fixed_28x4(Math.max(y1, Math.max(y2, y3))), tile_y1);
+        if (min_x > max_x || min_y > max_y)
+            return true; // no pixel center of the bounding box is inside the tile
+        float z_inv_max = Math.max(1f / z1, Math.max(1f / z2, 1f / z3)); // the nearest point
+        int bx0 = min_x >> HIZ_SHIFT, bx1 = max_x >> HIZ_SHIFT;
+        int by0 = min_y >> HIZ_SHIFT, by1 = max_y >> HIZ_SHIFT;
+        if (hiz_occluded(bx0, by0, bx1, by1, z_inv_max))
+            return true;
+        mark_hiz_dirty(min_x, min_y, max_x, max_y);
+        return false;
+    }
+    
+    private void mark_hiz_dirty(int min_x, int min_y, int max_x, int max_y) {
+        int bx0 = min_x >> HIZ_SHIFT, bx1 = max_x >> HIZ_SHIFT;
+        for (int by = min_y >> HIZ_SHIFT, by1 = max_y >> HIZ_SHIFT; by <= by1; by++) {
+            for (int b = by * hiz_w + bx0, end = by * hiz_w + bx1; b <= end; b++) {
+                if (hiz_gen[b] != z_gen) { // the run of stale blocks is cleared at once
+                    int e = b;
+                    while (e < end && hiz_gen[e + 1] != z_gen)
+                        e++;
+                    clear_blocks(b, e);
+                }
+                hiz_dirty[b] = true;
+            }
+        }
+    }
+    
+//  true if all blocks in [bx0, bx1] x [by0, by1] store only values nearer than z_inv
+    private boolean hiz_occluded(int bx0, int by0, int bx1, int by1, float z_inv) {
+        float threshold = z_inv + Math.abs(z_inv) * HIZ_EPSILON;
+        for (int by = by0; by <= by1; by++) {
+            for (int b = by * hiz_w + bx0, end = by * hiz_w + bx1; b <= end; b++) {
+                if (hiz[b] <= threshold)
+                    return false;
+            }
+        }
+        return true;
+    }
+    
+//  Recomputes the dirty blocks of the hierarchical z. Until then triangles are tested 
+//  against the older block values, so it is called once per rendered model rather than per triangle.
+    void updateHierarchicalZ() {
+        flush();
+        for (int b = 0; b < hiz.length; b++) {
+            if (hiz_dirty[b])
+                update_hiz_block(b % hiz_w, b / hiz_w);
+        }
+    }
+    
+    private void update_hiz_block(int bx, int by) {
+        int b = by * hiz_w + bx;
+        int x0 = bx << HIZ_SHIFT, y0 = by << HIZ_SHIFT;
+        int x1 = Math.min(x0 + HIZ_SIZE, w), y1 = Math.min(y0 + HIZ_SIZE, h);
+        if (hiz_gen[b] != z_gen) { // empty
+            hiz[b] = Float.NEGATIVE_INFINITY;
+            hiz_dirty[b] = false;
+            return;
+        }
+        if (z_buff == null) {
+//          an interpolated quantized depth can be one more than the quantized 1/z of the pixel
+            int min = Integer.MAX_VALUE;
+            for (int y = y0; y < y1; y++) {
+                for (int i = y * w + x0, end = y * w + x1; i < end; i++)
+                    min = Math.min(min, stored_depth(i));
+            }
+            hiz[b] = min == 0 ? Float.NEGATIVE_INFINITY : dequantize(min - 1);
+            hiz_dirty[b] = false;
+            return;
+        }
+        float min = Float.POSITIVE_INFINITY;
+        for (int y = y0; y < y1; y++) {
+            for (int i = y * w + x0, end = y * w + x1; i < end; i++) {
+                float z = z_buff[i];
+                if (z < min)
+                    min = z;
+            }
+        }
+        hiz[b] = min;
+        hiz_dirty[b] = false;
     }
     
     void drawZBuffer(Graphics g) {
+        flush();
         if (w < g.getWidth() || h < g.getHeight())
             return;
+        final int n = w * h;
         float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
-        for (int i = 0; i < z_buff.length; i++) {
-            if (z_buff[i] < min && z_buff[i] != Float.NEGATIVE_INFINITY) min = z_buff[i];
-            if (z_buff[i] > max) max = z_buff[i];
+        for (int i = 0; i < n; i++) {
+            float z_inv = depthAt(i);
+            if (z_inv < min && z_inv != Float.NEGATIVE_INFINITY) min = z_inv;
+            if (z_inv > max) max = z_inv;
         }
         if (max == Float.NEGATIVE_INFINITY) { // z_buffer is empty.
-            for (int i = 0; i < z_buff.length; i++) 
+            for (int i = 0; i < n; i++) 
                 g.plotToHash(i, Graphics.WHITE);
         } else {
             float dz_inv;
@@ -105,1272 +611,516 @@ class Rasterizer3D {
                 dz_inv = 1f;
             else
                 dz_inv = 1f / (max - min);
-            for (int i = 0; i < z_buff.length; i++) {
-                int gray = z_buff[i] == Float.NEGATIVE_INFINITY ? Graphics.BLACK : roundPositive((255f * (z_buff[i] - min) * dz_inv));
+            for (int i = 0; i < n; i++) {
+                float z_inv = depthAt(i);
+                int gray = z_inv == Float.NEGATIVE_INFINITY ? Graphics.BLACK : roundPositive((255f * (z_inv - min) * dz_inv));
                 g.plotToHash(i, rgb(gray, gray, gray));
             }
         }
     }
     
+//  The screen coordinates of the triangle methods are 28.4 fixed point, see make_fixed_28x4.
     void strokeTriangle(int x1, int y1, float z1, int x2, int y2, float z2, int x3, int y3, float z3) {
-        line(x1, y1, z1, x2, y2, z2);
-        line(x2, y2, z2, x3, y3, z3);
-        line(x3, y3, z3, x1, y1, z1);
+        flush(); // lines are not binned, so keep the submission order
+        final int px1 = round_fixed_28x4(x1), py1 = round_fixed_28x4(y1);
+        final int px2 = round_fixed_28x4(x2), py2 = round_fixed_28x4(y2);
+        final int px3 = round_fixed_28x4(x3), py3 = round_fixed_28x4(y3);
+        line(px1, py1, z1, px2, py2, z2);
+        line(px2, py2, z2, px3, py3, z3);
+        line(px3, py3, z3, px1, py1, z1);
     }
     
     void fillTriangle(int x1, int y1, float z1, int x2, int y2, float z2, int x3, int y3, float z3) {
-        code1 = code(x1, y1);
-        code2 = code(x2, y2);
-        code3 = code(x3, y3);
-        if ((code1 | code2 | code3) == 0) {
-            tri_points[0].x = x1;
-            tri_points[0].y = y1;
-            tri_points[0].z_inv = 1f / z1;
-            tri_points[1].x = x2;
-            tri_points[1].y = y2;
-            tri_points[1].z_inv = 1f / z2;
-            tri_points[2].x = x3;
-            tri_points[2].y = y3;
-            tri_points[2].z_inv = 1f / z3;
-            sort_first_tri_points();
-            fill_tri(tri_points[0], tri_points[1], tri_points[2]);
-        } else if ((code1 & code2 & code3) == 0) {
-            this.z1 = z1;
-            this.z2 = z2;
-            this.z3 = z3;
-            this.z1_inv = 1f / z1;
-            this.z2_inv = 1f / z2;
-            this.z3_inv = 1f / z3;
-            boolean visible = clip_triangle(x1, y1, x2, y2, x3, y3, false, false);
-            if (visible) {
-                TriPoint p0 = tri_points[0];
-                for (int i = 1; i < n - 1; i++) {
-                    TriPoint p1 = tri_points[i];
-                    TriPoint p2 = tri_points[i + 1];
-                    if (p1.y > p2.y) 
-                        fill_tri(p2, p1, p0);
-                    else 
-                        fill_tri(p1, p2, p0);
-                }
-            }
+        if (tiled != null) {
+            tiled.addTriangle(x1, y1, z1, x2, y2, z2, x3, y3, z3, color);
+            return;
         }
+        if (hiz_reject(x1, y1, z1, x2, y2, z2, x3, y3, z3))
+            return;
+        this.z1_inv = 1f / z1;
+        this.z2_inv = 1f / z2;
+        this.z3_inv = 1f / z3;
+        fill_tri(FILL, x1, y1, x2, y2, x3, y3);
     }
     
     void fillTriangleInterpolateColor(
             int x1, int y1, float z1, float r1, float g1, float b1, 
             int x2, int y2, float z2, float r2, float g2, float b2,
             int x3, int y3, float z3, float r3, float g3, float b3) {
-        code1 = code(x1, y1);
-        code2 = code(x2, y2);
-        code3 = code(x3, y3);
-        if ((code1 | code2 | code3) == 0) {
-            tri_points[0].x = x1;
-            tri_points[0].y = y1;
-            tri_points[0].z_inv = 1f / z1;
-            tri_points[0].r = r1;
-            tri_points[0].g = g1;
-            tri_points[0].b = b1;
-            tri_points[1].x = x2;
-            tri_points[1].y = y2;
-            tri_points[1].z_inv = 1f / z2;
-            tri_points[1].r = r2;
-            tri_points[1].g = g2;
-            tri_points[1].b = b2;
-            tri_points[2].x = x3;
-            tri_points[2].y = y3;
-            tri_points[2].z_inv = 1f / z3;
-            tri_points[2].r = r3;
-            tri_points[2].g = g3;
-            tri_points[2].b = b3;
-            sort_first_tri_points();
-            fill_tri_interpolate_color(tri_points[0], tri_points[1], tri_points[2]);
-        } else if ((code1 & code2 & code3) == 0) {
-            this.z1 = z1;
-            this.z2 = z2;
-            this.z3 = z3;
-            this.z1_inv = 1f / z1;
-            this.z2_inv = 1f / z2;
-            this.z3_inv = 1f / z3;
-            this.r1 = r1;
-            this.g1 = g1;
-            this.b1 = b1;
-            this.r2 = r2;
-            this.g2 = g2;
-            this.b2 = b2;
-            this.r3 = r3;
-            this.g3 = g3;
-            this.b3 = b3;
-            boolean visible = clip_triangle(x1, y1, x2, y2, x3, y3, true, false);
-            if (visible) {
-                TriPoint p0 = tri_points[0];
-                for (int i = 1; i < n - 1; i++) {
-                    TriPoint p1 = tri_points[i];
-                    TriPoint p2 = tri_points[i + 1];
-                    if (p1.y > p2.y) 
-                        fill_tri_interpolate_color(p2, p1, p0);
-                    else 
-                        fill_tri_interpolate_color(p1, p2, p0);
-                }
-            }
+        if (tiled != null) {
+            tiled.addTriangleInterpolateColor(x1, y1, z1, r1, g1, b1, x2, y2, z2, r2, g2, b2, x3, y3, z3, r3, g3, b3, gbuf_material);
+            return;
         }
+        if (hiz_reject(x1, y1, z1, x2, y2, z2, x3, y3, z3))
+            return;
+        this.z1_inv = 1f / z1;
+        this.z2_inv = 1f / z2;
+        this.z3_inv = 1f / z3;
+        this.r1 = r1;
+        this.g1 = g1;
+        this.b1 = b1;
+        this.r2 = r2;
+        this.g2 = g2;
+        this.b2 = b2;
+        this.r3 = r3;
+        this.g3 = g3;
+        this.b3 = b3;
+        fill_tri(FILL_INTERPOLATE_COLOR, x1, y1, x2, y2, x3, y3);
     }
     
     void fillTexturedTriangle(int x1, int y1, float z1, float u1, float v1, int x2, int y2, float z2, float u2, float v2, int x3, int y3, float z3, float u3, float v3, Bitmap texture, boolean modulate) {
-        this.tex = texture;
-        this.modulate = modulate;
-        code1 = code(x1, y1);
-        code2 = code(x2, y2);
-        code3 = code(x3, y3);
-        if ((code1 | code2 | code3) == 0) {
-            tri_points[0].x = x1;
-            tri_points[0].y = y1;
-            tri_points[0].z_inv = 1f / z1;
-            tri_points[0].u = u1;
-            tri_points[0].v = v1;
-            tri_points[1].x = x2;
-            tri_points[1].y = y2;
-            tri_points[1].z_inv = 1f / z2;
-            tri_points[1].u = u2;
-            tri_points[1].v = v2;
-            tri_points[2].x = x3;
-            tri_points[2].y = y3;
-            tri_points[2].z_inv = 1f / z3;
-            tri_points[2].u = u3;
-            tri_points[2].v = v3;
-            sort_first_tri_points();
-            fill_textured_tri(tri_points[0], tri_points[1], tri_points[2]);
-        } else if ((code1 & code2 & code3) == 0) {
-            this.z1 = z1;
-            this.z2 = z2;
-            this.z3 = z3;
-            this.z1_inv = 1f / z1;
-            this.z2_inv = 1f / z2;
-            this.z3_inv = 1f / z3;
-            this.u1 = u1;
-            this.u2 = u2;
-            this.u3 = u3;
-            this.v1 = v1;
-            this.v2 = v2;
-            this.v3 = v3;
-            boolean visible = clip_triangle(x1, y1, x2, y2, x3, y3, false, true);
-            if (visible) {
-                TriPoint p0 = tri_points[0];
-                for (int i = 1; i < n - 1; i++) {
-                    TriPoint p1 = tri_points[i];
-                    TriPoint p2 = tri_points[i + 1];
-                    if (p1.y > p2.y) 
-                        fill_textured_tri(p2, p1, p0);
-                    else 
-                        fill_textured_tri(p1, p2, p0);
-                }
-            }
+        if (tiled != null) {
+            tiled.addTexturedTriangle(x1, y1, z1, u1, v1, x2, y2, z2, u2, v2, x3, y3, z3, u3, v3, texture, modulate, color);
+            return;
         }
+        if (hiz_reject(x1, y1, z1, x2, y2, z2, x3, y3, z3))
+            return;
+        set_texture(texture, x1, y1, u1, v1, x2, y2, u2, v2, x3, y3, u3, v3);
+        this.modulate = modulate;
+        this.z1_inv = 1f / z1;
+        this.z2_inv = 1f / z2;
+        this.z3_inv = 1f / z3;
+        this.u1 = u1 * level_su;
+        this.u2 = u2 * level_su;
+        this.u3 = u3 * level_su;
+        this.v1 = v1 * level_sv;
+        this.v2 = v2 * level_sv;
+        this.v3 = v3 * level_sv;
+        fill_tri(FILL_TEXTURED, x1, y1, x2, y2, x3, y3);
     }
     
     void fillTexturedTriangleInterpolateColor(int x1, int y1, float z1, float u1, float v1, float r1, float g1, float b1, 
                                                      int x2, int y2, float z2, float u2, float v2, float r2, float g2, float b2,
                                                      int x3, int y3, float z3, float u3, float v3, float r3, float g3, float b3, 
                                                      Bitmap texture) {
-        this.tex = texture;
-        code1 = code(x1, y1);
-        code2 = code(x2, y2);
-        code3 = code(x3, y3);
-        if ((code1 | code2 | code3) == 0) {
-            tri_points[0].x = x1;
-            tri_points[0].y = y1;
-            tri_points[0].z_inv = 1f / z1;
-            tri_points[0].u = u1;
-            tri_points[0].v = v1;
-            tri_points[0].r = r1;
-            tri_points[0].g = g1;
-            tri_points[0].b = b1;
-            tri_points[1].x = x2;
-            tri_points[1].y = y2;
-            tri_points[1].z_inv = 1f / z2;
-            tri_points[1].u = u2;
-            tri_points[1].v = v2;
-            tri_points[1].r = r2;
-            tri_points[1].g = g2;
-            tri_points[1].b = b2;
-            tri_points[2].x = x3;
-            tri_points[2].y = y3;
-            tri_points[2].z_inv = 1f / z3;
-            tri_points[2].u = u3;
-            tri_points[2].v = v3;
-            tri_points[2].r = r3;
-            tri_points[2].g = g3;
-            tri_points[2].b = b3;
-            sort_first_tri_points();
-            fill_textured_tri_interpolate_color(tri_points[0], tri_points[1], tri_points[2]);
-        } else if ((code1 & code2 & code3) == 0) {
-            this.z1 = z1;
-            this.z2 = z2;
-            this.z3 = z3;
-            this.z1_inv = 1f / z1;
-            this.z2_inv = 1f / z2;
-            this.z3_inv = 1f / z3;
-            this.u1 = u1;
-            this.u2 = u2;
-            this.u3 = u3;
-            this.v1 = v1;
-            this.v2 = v2;
-            this.v3 = v3;
-            this.r1 = r1;
-            this.r2 = r2;
-            this.r3 = r3;
-            this.g1 = g1;
-            this.g2 = g2;
-            this.g3 = g3;
-            this.b1 = b1;
-            this.b2 = b2;
-            this.b3 = b3;
-            boolean visible = clip_triangle(x1, y1, x2, y2, x3, y3, true, true);
-            if (visible) {
-                TriPoint p0 = tri_points[0];
-                for (int i = 1; i < n - 1; i++) {
-                    TriPoint p1 = tri_points[i];
-                    TriPoint p2 = tri_points[i + 1];
-                    if (p1.y > p2.y) 
-                        fill_textured_tri_interpolate_color(p2, p1, p0);
-                    else 
-                        fill_textured_tri_interpolate_color(p1, p2, p0);
-                }
-            }
+        if (tiled != null) {
+            tiled.addTexturedTriangleInterpolateColor(x1, y1, z1, u1, v1, r1, g1, b1, x2, y2, z2, u2, v2, r2, g2, b2, x3, y3, z3, u3, v3, r3, g3, b3, texture, gbuf_material);
+            return;
         }
+        if (hiz_reject(x1, y1, z1, x2, y2, z2, x3, y3, z3))
+            return;
+        set_texture(texture, x1, y1, u1, v1, x2, y2, u2, v2, x3, y3, u3, v3);
+        this.z1_inv = 1f / z1;
+        this.z2_inv = 1f / z2;
+        this.z3_inv = 1f / z3;
+        this.u1 = u1 * level_su;
+        this.u2 = u2 * level_su;
+        this.u3 = u3 * level_su;
+        this.v1 = v1 * level_sv;
+        this.v2 = v2 * level_sv;
+        this.v3 = v3 * level_sv;
+        this.r1 = r1;
+        this.r2 = r2;
+        this.r3 = r3;
+        this.g1 = g1;
+        this.g2 = g2;
+        this.g3 = g3;
+        this.b1 = b1;
+        this.b2 = b2;
+        this.b3 = b3;
+        fill_tri(FILL_TEXTURED_INTERPOLATE_COLOR, x1, y1, x2, y2, x3, y3);
     }
     
-//  makes tri_points[2].y >= tri_points[1].y AND tri_points[1].y >= tri_points[0].y
-    private void sort_first_tri_points() {
-        if (tri_points[0].y > tri_points[2].y) {
-            if (tri_points[0].y > tri_points[1].y) {
-                if (tri_points[1].y > tri_points[2].y) {
-                    swap(0, 2);
-                } else {
-                    swap(0, 2);
-                    swap(0, 1);
-                }
-            } else {
-                swap(0, 1);
-                swap(0, 2);  
-            }
-        } else {
-            if (tri_points[0].y > tri_points[1].y) {
-                swap(0, 1);
-            } else {
-                if (tri_points[1].y > tri_points[2].y) {
-                    swap(1, 2);
-                }
-            }
-        }
+//  A pixel is covered if its center is inside the 28.4 triangle. A center exactly on an edge 
+//  is covered only if it is a left edge or a horizontal top edge (the top-left rule), so triangles 
+//  sharing an edge neither overlap nor leave gaps. Both traversals cover the same pixels and take 
+//  the attributes from the planes of the triangle, which need no clipping against the screen. 
+//  Triangle attributes must be stored in z1_inv, z2_inv, z3_inv, (u, v), (r, g, b) fields before the call.
+    private void fill_tri(final int kind, int x1, int y1, int x2, int y2, int x3, int y3) {
+        final long area = (long) (x2 - x1) * (y3 - y1) - (long) (y2 - y1) * (x3 - x1);
+        if (area == 0L)
+            return;
+        setup_planes(kind, x1, y1, x2, y2, x3, y3, area);
+        if (traversal == TriangleTraversal.HALF_SPACE)
+            fill_tri_half_space(kind, x1, y1, x2, y2, x3, y3, area);
+        else
+            fill_tri_scanline(kind, x1, y1, x2, y2, x3, y3);
     }
     
-    private void swap(int i, int j) {
-        TriPoint temp = tri_points[i];
-        tri_points[i] = tri_points[j];
-        tri_points[j] = temp;
-    }
-    
-//  p3.y >= p2.y AND p2.y >= p1.y
-    private void fill_tri(TriPoint p1, TriPoint p2, TriPoint p3) {
-        int dx13 = 0, dx12 = 0, dx23 = 0;
-        float dz_inv13 = 0f, dz_inv12 = 0f, dz_inv23 = 0f;
-        if (p3.y != p1.y) {
-            dz_inv13 = (p3.z_inv - p1.z_inv) / (p3.y - p1.y);
-            dx13 = make_fixed_16x16(p3.x - p1.x) / (p3.y - p1.y);
-        }
-        if (p2.y != p1.y) {
-            dz_inv12 = (p2.z_inv - p1.z_inv) / (p2.y - p1.y);
-            dx12 = make_fixed_16x16(p2.x - p1.x) / (p2.y - p1.y);
-        }
-        if (p2.y != p3.y) {
-            dz_inv23 = (p3.z_inv - p2.z_inv) / (p3.y - p2.y);
-            dx23 = make_fixed_16x16(p3.x - p2.x) / (p3.y - p2.y);
-        }
-        int _dx13 = dx13;
-        float _dz_inv13 = dz_inv13;
-        if (dx13 > dx12) {
-            temp_int = dx13;
-            dx13 = dx12;
-            dx12 = temp_int;
-            temp_float = dz_inv13;
-            dz_inv13 = dz_inv12;
-            dz_inv12 = temp_float;
-        }
-        float lz_inv = p1.z_inv, rz_inv = lz_inv;
-        int lx = make_fixed_16x16(p1.x), rx = lx;
-        for (int y = p1.y; y < p2.y; y++) {
-            scanline(
-                round_fixed_16x16(lx), lz_inv, 
-                round_fixed_16x16(rx), rz_inv, y
-            );
-            lx += dx13;
-            rx += dx12;
-            lz_inv += dz_inv13;
-            rz_inv += dz_inv12;
-        }
-        if (p1.y == p2.y) {
-            if (p2.x < p1.x) {
-                lx = make_fixed_16x16(p2.x);
-                lz_inv = p2.z_inv;
-                temp_int = _dx13;
-                _dx13 = dx23;
-                dx23 = temp_int;
-                temp_float = _dz_inv13;
-                _dz_inv13 = dz_inv23;
-                dz_inv23 = temp_float;
-            } else {
-                rx = make_fixed_16x16(p2.x);
-                rz_inv = p2.z_inv;
-            }
-        } else {
-            if (_dx13 < dx23) {
-                temp_int = _dx13;
-                _dx13 = dx23;
-                dx23 = temp_int;
-                temp_float = _dz_inv13;
-                _dz_inv13 = dz_inv23;
-                dz_inv23 = temp_float;
-            }
+//  Scanline traversal. The vertices are sorted by y, the rows above the middle vertex lie 
+//  between the edges 1-2 and 1-3, the rows below it between the edges 2-3 and 1-3.
+    private void fill_tri_scanline(final int kind, int x1, int y1, int x2, int y2, int x3, int y3) {
+        int t;
+        if (y1 > y2) {
+            t = x1;
+            x1 = x2;
+            x2 = t;
+            t = y1;
+            y1 = y2;
+            y2 = t;
         }
-        for (int y = p2.y; y <= p3.y; y++) {
-            scanline(
-                round_fixed_16x16(lx), lz_inv, 
-                round_fixed_16x16(rx), rz_inv, y
-            );
-            lx += _dx13;
-            rx += dx23;
-            lz_inv += _dz_inv13;
-            rz_inv += dz_inv23;
-        }
-    }
-    
-    private void fill_tri_interpolate_color(TriPoint p1, TriPoint p2, TriPoint p3) {
-        int dx13 = 0, dx12 = 0, dx23 = 0;
-        float dz_inv13 = 0f, dz_inv12 = 0f, dz_inv23 = 0f;
-        float drdz13 = 0f, drdz12 = 0f, drdz23 = 0f;
-        float dgdz13 = 0f, dgdz12 = 0f, dgdz23 = 0f;
-        float dbdz13 = 0f, dbdz12 = 0f, dbdz23 = 0f;
-        if (p3.y != p1.y) {
-            dz_inv13 = (p3.z_inv - p1.z_inv) / (p3.y - p1.y);
-            dx13 = make_fixed_16x16(p3.x - p1.x) / (p3.y - p1.y);
-            drdz13 = (p3.r * p3.z_inv - p1.r * p1.z_inv) / (p3.y - p1.y);
-            dgdz13 = (p3.g * p3.z_inv - p1.g * p1.z_inv) / (p3.y - p1.y);
-            dbdz13 = (p3.b * p3.z_inv - p1.b * p1.z_inv) / (p3.y - p1.y);
-        }
-        if (p2.y != p1.y) {
-            dz_inv12 = (p2.z_inv - p1.z_inv) / (p2.y - p1.y);
-            dx12 = make_fixed_16x16(p2.x - p1.x) / (p2.y - p1.y);
-            drdz12 = (p2.r * p2.z_inv - p1.r * p1.z_inv) / (p2.y - p1.y);
-            dgdz12 = (p2.g * p2.z_inv - p1.g * p1.z_inv) / (p2.y - p1.y);
-            dbdz12 = (p2.b * p2.z_inv - p1.b * p1.z_inv) / (p2.y - p1.y);
-        }
-        if (p2.y != p3.y) {
-            dz_inv23 = (p3.z_inv - p2.z_inv) / (p3.y - p2.y);
-            dx23 = make_fixed_16x16(p3.x - p2.x) / (p3.y - p2.y);
-            drdz23 = (p3.r * p3.z_inv - p2.r * p2.z_inv) / (p3.y - p2.y);
-            dgdz23 = (p3.g * p3.z_inv - p2.g * p2.z_inv) / (p3.y - p2.y);
-            dbdz23 = (p3.b * p3.z_inv - p2.b * p2.z_inv) / (p3.y - p2.y);
-        }
-        int _dx13 = dx13;
-        float _dz_inv13 = dz_inv13;
-        float _drdz13 = drdz13, _dgdz13 = dgdz13, _dbdz13 = dbdz13;
-        if (dx13 > dx12) {
-            temp_int = dx13;
-            dx13 = dx12;
-            dx12 = temp_int;
-            temp_float = dz_inv13;
-            dz_inv13 = dz_inv12;
-            dz_inv12 = temp_float;
-            temp_float = drdz13;
-            drdz13 = drdz12;
-            drdz12 = temp_float;
-            temp_float = dgdz13;
-            dgdz13 = dgdz12;
-            dgdz12 = temp_float;
-            temp_float = dbdz13;
-            dbdz13 = dbdz12;
-            dbdz12 = temp_float;
-        }
-        int lx = make_fixed_16x16(p1.x), rx = lx;
-        float lz_inv = p1.z_inv, rz_inv = lz_inv;
-        float lrdz = p1.z_inv * p1.r, rrdz = lrdz;
-        float lgdz = p1.z_inv * p1.g, rgdz = lgdz;
-        float lbdz = p1.z_inv * p1.b, rbdz = lbdz;
-        for (int y = p1.y; y < p2.y; y++) {
-            scanline_interpolate_color(
-                y,
-                round_fixed_16x16(lx), lrdz, lgdz, lbdz, lz_inv, 
-                round_fixed_16x16(rx), rrdz, rgdz, rbdz, rz_inv
-            );
-            lx += dx13;
-            rx += dx12;
-            lz_inv += dz_inv13;
-            rz_inv += dz_inv12;
-            lrdz += drdz13;
-            rrdz += drdz12;
-            lgdz += dgdz13;
-            rgdz += dgdz12;
-            lbdz += dbdz13;
-            rbdz += dbdz12;
-        }
-        if (p1.y == p2.y) {
-            if (p2.x < p1.x) {
-                lx = make_fixed_16x16(p2.x);
-                lz_inv = p2.z_inv;
-                lrdz = p2.z_inv * p2.r;
-                lgdz = p2.z_inv * p2.g;
-                lbdz = p2.z_inv * p2.b;
-                temp_int = _dx13;
-                _dx13 = dx23;
-                dx23 = temp_int;
-                temp_float = _dz_inv13;
-                _dz_inv13 = dz_inv23;
-                dz_inv23 = temp_float;
-                temp_float = _drdz13;
-                _drdz13 = drdz23;
-                drdz23 = temp_float;
-                temp_float = _dgdz13;
-                _dgdz13 = dgdz23;
-                dgdz23 = temp_float;
-                temp_float = _dbdz13;
-                _dbdz13 = dbdz23;
-                dbdz23 = temp_float;
-            } else {
-                rx = make_fixed_16x16(p2.x);
-                rz_inv = p2.z_inv;
-                rrdz = p2.z_inv * p2.r;
-                rgdz = p2.z_inv * p2.g;
-                rbdz = p2.z_inv * p2.b;
-            }
-        } else {
-            if (_dx13 < dx23) {
-                temp_int = _dx13;
-                _dx13 = dx23;
-                dx23 = temp_int;
-                temp_float = _dz_inv13;
-                _dz_inv13 = dz_inv23;
-                dz_inv23 = temp_float;
-                temp_float = _drdz13;
-                _drdz13 = drdz23;
-                drdz23 = temp_float;
-                temp_float = _dgdz13;
-                _dgdz13 = dgdz23;
-                dgdz23 = temp_float;
-                temp_float = _dbdz13;
-                _dbdz13 = dbdz23;
-                dbdz23 = temp_float;
-            }
+        if (y2 > y3) {
+            t = x2;
+            x2 = x3;
+            x3 = t;
+            t = y2;
+            y2 = y3;
+            y3 = t;
         }
-        for (int y = p2.y; y <= p3.y; y++) {
-            scanline_interpolate_color(
-                y,
-                round_fixed_16x16(lx), lrdz, lgdz, lbdz, lz_inv, 
-                round_fixed_16x16(rx), rrdz, rgdz, rbdz, rz_inv
-            );
-            lx += _dx13;
-            rx += dx23;
-            lz_inv += _dz_inv13;
-            rz_inv += dz_inv23;
-            lrdz += _drdz13;
-            rrdz += drdz23;
-            lgdz += _dgdz13;
-            rgdz += dgdz23;
-            lbdz += _dbdz13;
-            rbdz += dbdz23;
-        }
-    }
-    
-    private void fill_textured_tri(TriPoint p1, TriPoint p2, TriPoint p3) {
-        int dx13 = 0, dx12 = 0, dx23 = 0;
-        float dz_inv13 = 0f, dz_inv12 = 0f, dz_inv23 = 0f;
-        float dudz13 = 0f, dudz12 = 0f, dudz23 = 0f;
-        float dvdz13 = 0f, dvdz12 = 0f, dvdz23 = 0f;
-        if (p3.y != p1.y) {
-            dz_inv13 = (p3.z_inv - p1.z_inv) / (p3.y - p1.y);
-            dx13 = make_fixed_16x16(p3.x - p1.x) / (p3.y - p1.y);
-            dudz13 = (p3.u * p3.z_inv - p1.u * p1.z_inv) / (p3.y - p1.y);
-            dvdz13 = (p3.v * p3.z_inv - p1.v * p1.z_inv) / (p3.y - p1.y);
-        }
-        if (p2.y != p1.y) {
-            dz_inv12 = (p2.z_inv - p1.z_inv) / (p2.y - p1.y);
-            dx12 = make_fixed_16x16(p2.x - p1.x) / (p2.y - p1.y);
-            dudz12 = (p2.u * p2.z_inv - p1.u * p1.z_inv) / (p2.y - p1.y);
-            dvdz12 = (p2.v * p2.z_inv - p1.v * p1.z_inv) / (p2.y - p1.y);
-        }
-        if (p2.y != p3.y) {
-            dz_inv23 = (p3.z_inv - p2.z_inv) / (p3.y - p2.y);
-            dx23 = make_fixed_16x16(p3.x - p2.x) / (p3.y - p2.y);
-            dudz23 = (p3.u * p3.z_inv - p2.u * p2.z_inv) / (p3.y - p2.y);
-            dvdz23 = (p3.v * p3.z_inv - p2.v * p2.z_inv) / (p3.y - p2.y);
-        }
-        int _dx13 = dx13;
-        float _dz_inv13 = dz_inv13;
-        float _dudz13 = dudz13, _dvdz13 = dvdz13;
-        if (dx13 > dx12) {
-            temp_int = dx13;
-            dx13 = dx12;
-            dx12 = temp_int;
-            temp_float = dz_inv13;
-            dz_inv13 = dz_inv12;
-            dz_inv12 = temp_float;
-            temp_float = dudz13;
-            dudz13 = dudz12;
-            dudz12 = temp_float;
-            temp_float = dvdz13;
-            dvdz13 = dvdz12;
-            dvdz12 = temp_float;
-        }
-        float lz_inv = p1.z_inv, rz_inv = lz_inv;
-        int lx = make_fixed_16x16(p1.x), rx = lx;
-        float ludz = p1.u * p1.z_inv, rudz = ludz;
-        float lvdz = p1.v * p1.z_inv, rvdz = lvdz;
-        for (int y = p1.y; y < p2.y; y++) {
-            scanline_texture(
-                round_fixed_16x16(lx), lz_inv, ludz, lvdz, 
-                round_fixed_16x16(rx), rz_inv, rudz, rvdz, 
-                y
-            );
-            lx += dx13;
-            rx += dx12;
-            lz_inv += dz_inv13;
-            rz_inv += dz_inv12;
-            ludz += dudz13;
-            rudz += dudz12;
-            lvdz += dvdz13;
-            rvdz += dvdz12;
-        }
-        if (p1.y == p2.y) {
-            if (p2.x < p1.x) {
-                lx = make_fixed_16x16(p2.x);
-                lz_inv = p2.z_inv;
-                ludz = p2.u * p2.z_inv;
-                lvdz = p2.v * p2.z_inv;
-                temp_int = _dx13;
-                _dx13 = dx23;
-                dx23 = temp_int;
-                temp_float = _dz_inv13;
-                _dz_inv13 = dz_inv23;
-                dz_inv23 = temp_float;
-                temp_float = _dudz13;
-                _dudz13 = dudz23;
-                dudz23 = temp_float;
-                temp_float = _dvdz13;
-                _dvdz13 = dvdz23;
-                dvdz23 = temp_float;
-            } else {
-                rx = make_fixed_16x16(p2.x);
-                rz_inv = p2.z_inv;
-                rudz = p2.u * p2.z_inv;
-                rvdz = p2.v * p2.z_inv;
-            }
-        } else {
-            if (_dx13 < dx23) {
-                temp_int = _dx13;
-                _dx13 = dx23;
-                dx23 = temp_int;
-                temp_float = _dz_inv13;
-                _dz_inv13 = dz_inv23;
-                dz_inv23 = temp_float;
-                temp_float = _dudz13;
-                _dudz13 = dudz23;
-                dudz23 = temp_float;
-                temp_float = _dvdz13;
-                _dvdz13 = dvdz23;
-                dvdz23 = temp_float;
-            }
+        if (y1 > y2) {
+            t = x1;
+            x1 = x2;
+            x2 = t;
+            t = y1;
+            y1 = y2;
+            y2 = t;
         }
-        for (int y = p2.y; y <= p3.y; y++) {
-            scanline_texture(
-                round_fixed_16x16(lx), lz_inv, ludz, lvdz, 
-                round_fixed_16x16(rx), rz_inv, rudz, rvdz, 
-                y
-            );
-            lx += _dx13;
-            rx += dx23;
-            lz_inv += _dz_inv13;
-            rz_inv += dz_inv23;
-            ludz += _dudz13;
-            rudz += dudz23;
-            lvdz += _dvdz13;
-            rvdz += dvdz23;
-        }
-    }
-    
-    private void fill_textured_tri_interpolate_color(TriPoint p1, TriPoint p2, TriPoint p3) {
-        int dx13 = 0, dx12 = 0, dx23 = 0;
-        float dz_inv13 = 0f, dz_inv12 = 0f, dz_inv23 = 0f;
-        float dudz13 = 0f, dudz12 = 0f, dudz23 = 0f;
-        float dvdz13 = 0f, dvdz12 = 0f, dvdz23 = 0f;
-        float drdz13 = 0f, drdz12 = 0f, drdz23 = 0f;
-        float dgdz13 = 0f, dgdz12 = 0f, dgdz23 = 0f;
-        float dbdz13 = 0f, dbdz12 = 0f, dbdz23 = 0f;
-        if (p3.y != p1.y) {
-            dz_inv13 = (p3.z_inv - p1.z_inv) / (p3.y - p1.y);
-            dx13 = make_fixed_16x16(p3.x - p1.x) / (p3.y - p1.y);
-            dudz13 = (p3.u * p3.z_inv - p1.u * p1.z_inv) / (p3.y - p1.y);
-            dvdz13 = (p3.v * p3.z_inv - p1.v * p1.z_inv) / (p3.y - p1.y);
-            drdz13 = (p3.r * p3.z_inv - p1.r * p1.z_inv) / (p3.y - p1.y);
-            dgdz13 = (p3.g * p3.z_inv - p1.g * p1.z_inv) / (p3.y - p1.y);
-            dbdz13 = (p3.b * p3.z_inv - p1.b * p1.z_inv) / (p3.y - p1.y);
-        }
-        if (p2.y != p1.y) {
-            dz_inv12 = (p2.z_inv - p1.z_inv) / (p2.y - p1.y);
-            dx12 = make_fixed_16x16(p2.x - p1.x) / (p2.y - p1.y);
-            dudz12 = (p2.u * p2.z_inv - p1.u * p1.z_inv) / (p2.y - p1.y);
-            dvdz12 = (p2.v * p2.z_inv - p1.v * p1.z_inv) / (p2.y - p1.y);
-            drdz12 = (p2.r * p2.z_inv - p1.r * p1.z_inv) / (p2.y - p1.y);
-            dgdz12 = (p2.g * p2.z_inv - p1.g * p1.z_inv) / (p2.y - p1.y);
-            dbdz12 = (p2.b * p2.z_inv - p1.b * p1.z_inv) / (p2.y - p1.y);
-        }
-        if (p2.y != p3.y) {
-            dz_inv23 = (p3.z_inv - p2.z_inv) / (p3.y - p2.y);
-            dx23 = make_fixed_16x16(p3.x - p2.x) / (p3.y - p2.y);
-            dudz23 = (p3.u * p3.z_inv - p2.u * p2.z_inv) / (p3.y - p2.y);
-            dvdz23 = (p3.v * p3.z_inv - p2.v * p2.z_inv) / (p3.y - p2.y);
-            drdz23 = (p3.r * p3.z_inv - p2.r * p2.z_inv) / (p3.y - p2.y);
-            dgdz23 = (p3.g * p3.z_inv - p2.g * p2.z_inv) / (p3.y - p2.y);
-            dbdz23 = (p3.b * p3.z_inv - p2.b * p2.z_inv) / (p3.y - p2.y);
-        }
-        int _dx13 = dx13;
-        float _dz_inv13 = dz_inv13;
-        float _dudz13 = dudz13, _dvdz13 = dvdz13;
-        float _drdz13 = drdz13, _dgdz13 = dgdz13, _dbdz13 = dbdz13;
-        if (dx13 > dx12) {
-            temp_int = dx13;
-            dx13 = dx12;
-            dx12 = temp_int;
-            temp_float = dz_inv13;
-            dz_inv13 = dz_inv12;
-            dz_inv12 = temp_float;
-            temp_float = dudz13;
-            dudz13 = dudz12;
-            dudz12 = temp_float;
-            temp_float = dvdz13;
-            dvdz13 = dvdz12;
-            dvdz12 = temp_float;
-            temp_float = drdz13;
-            drdz13 = drdz12;
-            drdz12 = temp_float;
-            temp_float = dgdz13;
-            dgdz13 = dgdz12;
-            dgdz12 = temp_float;
-            temp_float = dbdz13;
-            dbdz13 = dbdz12;
-            dbdz12 = temp_float;
-        }
-        float lz_inv = p1.z_inv, rz_inv = lz_inv;
-        int lx = make_fixed_16x16(p1.x), rx = lx;
-        float ludz = p1.u * p1.z_inv, rudz = ludz;
-        float lvdz = p1.v * p1.z_inv, rvdz = lvdz;
-        float lrdz = p1.z_inv * p1.r, rrdz = lrdz;
-        float lgdz = p1.z_inv * p1.g, rgdz = lgdz;
-        float lbdz = p1.z_inv * p1.b, rbdz = lbdz;
-        for (int y = p1.y; y < p2.y; y++) {
-            scanline_texture_interpolate_color(
-                round_fixed_16x16(lx), lz_inv, ludz, lvdz, lrdz, lgdz, lbdz, 
-                round_fixed_16x16(rx), rz_inv, rudz, rvdz, rrdz, rgdz, rbdz, 
-                y
-            );
-            lx += dx13;
-            rx += dx12;
-            lz_inv += dz_inv13;
-            rz_inv += dz_inv12;
-            ludz += dudz13;
-            rudz += dudz12;
-            lvdz += dvdz13;
-            rvdz += dvdz12;
-            lrdz += drdz13;
-            rrdz += drdz12;
-            lgdz += dgdz13;
-            rgdz += dgdz12;
-            lbdz += dbdz13;
-            rbdz += dbdz12;
-        }
-        if (p1.y == p2.y) {
-            if (p2.x < p1.x) {
-                lx = make_fixed_16x16(p2.x);
-                lz_inv = p2.z_inv;
-                ludz = p2.u * p2.z_inv;
-                lvdz = p2.v * p2.z_inv;
-                lrdz = p2.z_inv * p2.r;
-                lgdz = p2.z_inv * p2.g;
-                lbdz = p2.z_inv * p2.b;
-                temp_int = _dx13;
-                _dx13 = dx23;
-                dx23 = temp_int;
-                temp_float = _dz_inv13;
-                _dz_inv13 = dz_inv23;
-                dz_inv23 = temp_float;
-                temp_float = _dudz13;
-                _dudz13 = dudz23;
-                dudz23 = temp_float;
-                temp_float = _dvdz13;
-                _dvdz13 = dvdz23;
-                dvdz23 = temp_float;
-                temp_float = _drdz13;
-                _drdz13 = drdz23;
-                drdz23 = temp_float;
-                temp_float = _dgdz13;
-                _dgdz13 = dgdz23;
-                dgdz23 = temp_float;
-                temp_float = _dbdz13;
-                _dbdz13 = dbdz23;
-                dbdz23 = temp_float;
-            } else {
-                rx = make_fixed_16x16(p2.x);
-                rz_inv = p2.z_inv;
-                rudz = p2.u * p2.z_inv;
-                rvdz = p2.v * p2.z_inv;
-                rrdz = p2.z_inv * p2.r;
-                rgdz = p2.z_inv * p2.g;
-                rbdz = p2.z_inv * p2.b;
-            }
-        } else {
-            if (_dx13 < dx23) {
-                temp_int = _dx13;
-                _dx13 = dx23;
-                dx23 = temp_int;
-                temp_float = _dz_inv13;
-                _dz_inv13 = dz_inv23;
-                dz_inv23 = temp_float;
-                temp_float = _dudz13;
-                _dudz13 = dudz23;
-                dudz23 = temp_float;
-                temp_float = _dvdz13;
-                _dvdz13 = dvdz23;
-                dvdz23 = temp_float;
-                temp_float = _drdz13;
-                _drdz13 = drdz23;
-                drdz23 = temp_float;
-                temp_float = _dgdz13;
-                _dgdz13 = dgdz23;
-                dgdz23 = temp_float;
-                temp_float = _dbdz13;
-                _dbdz13 = dbdz23;
-                dbdz23 = temp_float;
-            }
+//      the middle vertex is left of the edge 1-3 if the cross product is positive
+        final long cross = (long) (x3 - x1) * (y2 - y1) - (long) (x2 - x1) * (y3 - y1);
+        if (cross == 0L)
+            return;
+        final int y_from = Math.max(ceil_fixed_28x4(y1), tile_y0);
+        final int y_mid = ceil_fixed_28x4(y2);
+        final int y_to = Math.min(ceil_fixed_28x4(y3) - 1, tile_y1);
+        if (y_from > y_to)
+            return;
+        long_edge.start(x1, y1, x3, y3, y_from);
+        if (y_from < y_mid) {
+            short_edge.start(x1, y1, x2, y2, y_from);
+            scanline_rows(kind, y_from, Math.min(y_mid - 1, y_to), cross > 0L);
         }
-        for (int y = p2.y; y <= p3.y; y++) {
-            scanline_texture_interpolate_color(
-                round_fixed_16x16(lx), lz_inv, ludz, lvdz, lrdz, lgdz, lbdz, 
-                round_fixed_16x16(rx), rz_inv, rudz, rvdz, rrdz, rgdz, rbdz, 
-                y
-            );
-            lx += _dx13;
-            rx += dx23;
-            lz_inv += _dz_inv13;
-            rz_inv += dz_inv23;
-            ludz += _dudz13;
-            rudz += dudz23;
-            lvdz += _dvdz13;
-            rvdz += dvdz23;
-            lrdz += _drdz13;
-            rrdz += drdz23;
-            lgdz += _dgdz13;
-            rgdz += dgdz23;
-            lbdz += _dbdz13;
-            rbdz += dbdz23;
-        }
-    }
-    
-    private int n;
-    private final TriPoint[] tri_points = new TriPoint[10];
-    
-//  stores in the "tri_points" array the clipped points belonging to the triangle 
-//  in the counterclockwise order
-    private boolean clip_triangle(int x1, int y1, int x2, int y2, int x3, int y3, final boolean interpolate_rgb, final boolean interpolate_uv) {
-        n = 0;
-        int max_y_index = -1;
-        temp_code1 = code1;
-        temp_code2 = code2;
-        clip0(x1, y1, x2, y2);
-        if (line_x1 != -1) {
-            float dist_inv = -1f;
-            tri_points[0].x = line_x1;
-            tri_points[0].y = line_y1;
-            tri_points[1].x = line_x2;
-            tri_points[1].y = line_y2;
-            if (line_x1 != x1 || line_y1 != y1) { // need to recalculate depth and color
-                dist_inv = 1f / dist(x1, y1, x2, y2);
-                float coeff = dist_inv * dist(x1, y1, line_x1, line_y1);
-                tri_points[0].z_inv = z1_inv + (z2_inv - z1_inv) * coeff;
-                tri_points[0].z = 1f / tri_points[0].z_inv; 
-                if (interpolate_rgb) {
-                    tri_points[0].r = tri_points[0].z * (r1 * z1_inv + (r2 * z2_inv - r1 * z1_inv) * coeff);
-                    tri_points[0].g = tri_points[0].z * (g1 * z1_inv + (g2 * z2_inv - g1 * z1_inv) * coeff);
-                    tri_points[0].b = tri_points[0].z * (b1 * z1_inv + (b2 * z2_inv - b1 * z1_inv) * coeff);
-                }
-                if (interpolate_uv) {
-                    tri_points[0].u = tri_points[0].z * (u1 * z1_inv + (u2 * z2_inv - u1 * z1_inv) * coeff);
-                    tri_points[0].v = tri_points[0].z * (v1 * z1_inv + (v2 * z2_inv - v1 * z1_inv) * coeff);
-                }
-            } else {
-                tri_points[0].z = z1;
-                tri_points[0].z_inv = 1f / z1;
-                if (interpolate_rgb) {
-                    tri_points[0].r = r1;
-                    tri_points[0].g = g1;
-                    tri_points[0].b = b1;
-                }
-                if (interpolate_uv) {
-                    tri_points[0].u = u1;
-                    tri_points[0].v = v1;
-                }
-            }
-            if (line_x2 != x2 || line_y2 != y2) {
-                float coeff;
-                if (dist_inv == -1f)
-                    coeff = dist(x2, y2, line_x2, line_y2) / dist(x1, y1, x2, y2);
-                else
-                    coeff = dist_inv * dist(x2, y2, line_x2, line_y2);
-                tri_points[1].z_inv = z2_inv + (z1_inv - z2_inv) * coeff;
-                tri_points[1].z = 1f / tri_points[1].z_inv;
-                if (interpolate_rgb) {
-                    tri_points[1].r = tri_points[1].z * (r2 * z2_inv + (r1 * z1_inv - r2 * z2_inv) * coeff);
-                    tri_points[1].g = tri_points[1].z * (g2 * z2_inv + (g1 * z1_inv - g2 * z2_inv) * coeff);
-                    tri_points[1].b = tri_points[1].z * (b2 * z2_inv + (b1 * z1_inv - b2 * z2_inv) * coeff);
-                }
-                if (interpolate_uv) {
-                    tri_points[1].u = tri_points[1].z * (u2 * z2_inv + (u1 * z1_inv - u2 * z2_inv) * coeff);
-                    tri_points[1].v = tri_points[1].z * (v2 * z2_inv + (v1 * z1_inv - v2 * z2_inv) * coeff);
-                }
-            } else {
-                tri_points[1].z = z2;
-                tri_points[1].z_inv = 1f / z2;
-                if (interpolate_rgb) {
-                    tri_points[1].r = r2;
-                    tri_points[1].g = g2;
-                    tri_points[1].b = b2;
-                }
-                if (interpolate_uv) {
-                    tri_points[1].u = u2;
-                    tri_points[1].v = v2;
-                }
-            }
-            
-            n = 2;
-        } 
-        
-        temp_code1 = code2;
-        temp_code2 = code3;
-        clip0(x2, y2, x3, y3);
-        if (line_x1 != -1) {
-            if (n == 0) {
-                
-                float dist_inv = -1f;
-                
-                tri_points[0].x = line_x1;
-                tri_points[0].y = line_y1;
-                tri_points[1].x = line_x2;
-                tri_points[1].y = line_y2;
-                
-                if (line_x1 != x2 || line_y1 != y2) { 
-                    dist_inv = 1f / dist(x2, y2, x3, y3);
-                    float coeff = dist_inv * dist(x2, y2, line_x1, line_y1);
-                    tri_points[0].z_inv = z2_inv + (z3_inv - z2_inv) * coeff;
-                    tri_points[0].z = 1f / tri_points[0].z_inv;
-                    if (interpolate_rgb) {
-                        tri_points[0].r = tri_points[0].z * (r2 * z2_inv + (r3 * z3_inv - r2 * z2_inv) * coeff);
-                        tri_points[0].g = tri_points[0].z * (g2 * z2_inv + (g3 * z3_inv - g2 * z2_inv) * coeff);
-                        tri_points[0].b = tri_points[0].z * (b2 * z2_inv + (b3 * z3_inv - b2 * z2_inv) * coeff);
-                    }
-                    if (interpolate_uv) {
-                        tri_points[0].u = tri_points[0].z * (u2 * z2_inv + (u3 * z3_inv - u2 * z2_inv) * coeff);
-                        tri_points[0].v = tri_points[0].z * (v2 * z2_inv + (v3 * z3_inv - v2 * z2_inv) * coeff);
-                    }
-                } else {
-                    tri_points[0].z = z2;
-                    tri_points[0].z_inv = 1f / z2;
-                    if (interpolate_rgb) {
-                        tri_points[0].r = r2;
-                        tri_points[0].g = g2;
-                        tri_points[0].b = b2;
-                    }
-                    if (interpolate_uv) {
-                        tri_points[0].u = u2;
-                        tri_points[0].v = v2;
-                    }
-                }
-            
-                if (line_x2 != x3 || line_y2 != y3) {
-                    float coeff;
-                    if (dist_inv == -1f)
-                        coeff = dist(x3, y3, line_x2, line_y2) / dist(x2, y2, x3, y3);
-                    else
-                        coeff = dist_inv * dist(x3, y3, line_x2, line_y2);
-                    tri_points[1].z_inv = z3_inv + (z2_inv - z3_inv) * coeff;
-                    tri_points[1].z = 1f / tri_points[1].z;
-                    if (interpolate_rgb) {
-                        tri_points[1].r = tri_points[1].z * (r3 * z3_inv + (r2 * z2_inv - r3 * z3_inv) * coeff);
-                        tri_points[1].g = tri_points[1].z * (g3 * z3_inv + (g2 * z2_inv - g3 * z3_inv) * coeff);
-                        tri_points[1].b = tri_points[1].z * (b3 * z3_inv + (b2 * z2_inv - b3 * z3_inv) * coeff);
-                    }
-                    if (interpolate_uv) {
-                        tri_points[1].u = tri_points[1].z * (u3 * z3_inv + (u2 * z2_inv - u3 * z3_inv) * coeff);
-                        tri_points[1].v = tri_points[1].z * (v3 * z3_inv + (v2 * z2_inv - v3 * z3_inv) * coeff);
-                    }
-                } else {
-                    tri_points[1].z = z3;
-                    tri_points[1].z_inv = 1f / z3;
-                    if (interpolate_rgb) {
-                        tri_points[1].r = r3;
-                        tri_points[1].g = g3;
-                        tri_points[1].b = b3;
-                    }
-                    if (interpolate_uv) {
-                        tri_points[1].u = u3;
-                        tri_points[1].v = v3;
-                    }
-                }
-                
-                n = 2;
-                
-            } else {
-                if (tri_points[1].x == line_x1 && tri_points[1].y == line_y1) {
-
-                    tri_points[2].x = line_x2;
-                    tri_points[2].y = line_y2;
-                    
-                    if (line_x2 != x3 || line_y2 != y3) {
-                        float coeff = dist(x3, y3, line_x2, line_y2) / dist(x2, y2, x3, y3);
-                        tri_points[2].z_inv = z3_inv + (z2_inv - z3_inv) * coeff;
-                        tri_points[2].z = 1f / tri_points[2].z_inv;
-                        if (interpolate_rgb) {
-                            tri_points[2].r = tri_points[2].z * (r3 * z3_inv + (r2 * z2_inv - r3 * z3_inv) * coeff);
-                            tri_points[2].g = tri_points[2].z * (g3 * z3_inv + (g2 * z2_inv - g3 * z3_inv) * coeff);
-                            tri_points[2].b = tri_points[2].z * (b3 * z3_inv + (b2 * z2_inv - b3 * z3_inv) * coeff);
-                        }
-                        if (interpolate_uv) {
-                            tri_points[2].u = tri_points[2].z * (u3 * z3_inv + (u2 * z2_inv - u3 * z3_inv) * coeff);
-                            tri_points[2].v = tri_points[2].z * (v3 * z3_inv + (v2 * z2_inv - v3 * z3_inv) * coeff);
-                        }
-                    } else {
-                        tri_points[2].z = z3;
-                        tri_points[2].z_inv = 1f / z3;
-                        if (interpolate_rgb) {
-                            tri_points[2].r = r3;
-                            tri_points[2].g = g3;
-                            tri_points[2].b = b3;
-                        }
-                        if (interpolate_uv) {
-                            tri_points[2].u = u3;
-                            tri_points[2].v = v3;
-                        }
-                    }
-                    
-                    n = 3;
-                    
-                } else {
-
-                    tri_points[2].x = line_x1;
-                    tri_points[2].y = line_y1;
-                    tri_points[3].x = line_x2;
-                    tri_points[3].y = line_y2;
-                    
-                    float dist_inv = -1f;
-                    if (line_x1 != x2 || line_y1 != y2) { 
-                        dist_inv = 1f / dist(x2, y2, x3, y3);
-                        float coeff = dist_inv * dist(x2, y2, line_x1, line_y1);
-                        tri_points[2].z_inv = z2_inv + (z3_inv - z2_inv) * coeff;
-                        tri_points[2].z = 1f / tri_points[2].z_inv;
-                        if (interpolate_rgb) {
-                            tri_points[2].r = tri_points[2].z * (r2 * z2_inv + (r3 * z3_inv - r2 * z2_inv) * coeff);
-                            tri_points[2].g = tri_points[2].z * (g2 * z2_inv + (g3 * z3_inv - g2 * z2_inv) * coeff);
-                            tri_points[2].b = tri_points[2].z * (b2 * z2_inv + (b3 * z3_inv - b2 * z2_inv) * coeff);
-                        }
-                        if (interpolate_uv) {
-                            tri_points[2].u = tri_points[2].z * (u2 * z2_inv + (u3 * z3_inv - u2 * z2_inv) * coeff);
-                            tri_points[2].v = tri_points[2].z * (v2 * z2_inv + (v3 * z3_inv - v2 * z2_inv) * coeff);
-                        }
-                    } else {
-                        tri_points[2].z = z2;
-                        tri_points[2].z_inv = 1f / z2;
-                        if (interpolate_rgb) {
-                            tri_points[2].r = r2;
-                            tri_points[2].g = g2;
-                            tri_points[2].b = b2;
-                        }
-                        if (interpolate_uv) {
-                            tri_points[2].u = u2;
-                            tri_points[2].v = v2;
-                        }
-                    }
-
-                    if (line_x2 != x3 || line_y2 != y3) {
-                    
-                        float coeff;
-                        if (dist_inv == -1f)
-                            coeff = dist(x3, y3, line_x2, line_y2) / dist(x2, y2, x3, y3);
-                        else
-                            coeff = dist_inv * dist(x3, y3, line_x2, line_y2);
-                        tri_points[3].z_inv = z3_inv + (z2_inv - z3_inv) * coeff;
-                        tri_points[3].z = 1f / tri_points[3].z_inv;
-                        if (interpolate_rgb) {
-                            tri_points[3].r = tri_points[3].z * (r3 * z3_inv + (r2 * z2_inv - r3 * z3_inv) * coeff);
-                            tri_points[3].g = tri_points[3].z * (g3 * z3_inv + (g2 * z2_inv - g3 * z3_inv) * coeff);
-                            tri_points[3].b = tri_points[3].z * (b3 * z3_inv + (b2 * z2_inv - b3 * z3_inv) * coeff);
-                        }
-                        if (interpolate_uv) {
-                            tri_points[3].u = tri_points[3].z * (u3 * z3_inv + (u2 * z2_inv - u3 * z3_inv) * coeff);
-                            tri_points[3].v = tri_points[3].z * (v3 * z3_inv + (v2 * z2_inv - v3 * z3_inv) * coeff);
-                        }
-                    } else {
-
-                        tri_points[3].z = z3;
-                        tri_points[3].z_inv = 1f / z3;
-                        if (interpolate_rgb) {
-                            tri_points[3].r = r3;
-                            tri_points[3].g = g3;
-                            tri_points[3].b = b3;
-                        }
-                        if (interpolate_uv) {
-                            tri_points[3].u = u3;
-                            tri_points[3].v = v3;
+        final int y = Math.max(y_mid, y_from);
+        if (y <= y_to) {
+            short_edge.start(x2, y2, x3, y3, y);
+            scanline_rows(kind, y, y_to, cross > 0L);
+        }
+    }
+    
+    private void scanline_rows(final int kind, int y_from, int y_to, boolean long_edge_right) {
+        final Edge l = long_edge_right ? short_edge : long_edge;
+        final Edge r = long_edge_right ? long_edge : short_edge;
+        for (int y = y_from; y <= y_to; y++) {
+//          centers on the left edge are covered, centers on the right edge are not
+            final int xs = Math.max(l.x, 0), xe = Math.min(r.x - 1, x_max);
+            if (xs <= xe)
+                plane_span(kind, y, xs, xe);
+            l.next();
+            r.next();
+        }
+    }
+    
+//  Passes the pixels xs..xe of the row y that are inside the tile to the scanlines in pieces that 
+//  end at the multiples of TILE_SIZE. Every piece starts from the planes, so a tile gets the same 
+//  values as the whole screen without stepping over the pixels left of it.
+    private void plane_span(final int kind, int y, int xs, int xe) {
+        if (y < tile_y0 || y > tile_y1)
+            return;
+        xe = Math.min(xe, tile_x1);
+        for (int x = Math.max(xs, tile_x0); x <= xe; x = (x | TILE_SIZE - 1) + 1)
+            plane_piece(kind, y, x, Math.min(x | TILE_SIZE - 1, xe));
+    }
+    
+//  passes the pixels xs..xe of the row y with the attributes of the planes to the scanline of the kind
+    private void plane_piece(final int kind, int y, int xs, int xe) {
+        final float dx1 = xs - pl_x, dx2 = xe - pl_x, dy = y - pl_y;
+        final float z1_inv = plane_at(pl_z_inv, pl_dz_inv_dx, pl_dz_inv_dy, dx1, dy);
+        final float z2_inv = plane_at(pl_z_inv, pl_dz_inv_dx, pl_dz_inv_dy, dx2, dy);
+        switch (kind) {
+            case FILL:
+                scanline(xs, z1_inv, xe, z2_inv, y);
+                break;
+            case FILL_INTERPOLATE_COLOR:
+                scanline_interpolate_color(y, 
+                    xs, plane_at(pl_rdz, pl_drdz_dx, pl_drdz_dy, dx1, dy), plane_at(pl_gdz, pl_dgdz_dx, pl_dgdz_dy, dx1, dy), 
+                    plane_at(pl_bdz, pl_dbdz_dx, pl_dbdz_dy, dx1, dy), z1_inv, 
+                    xe, plane_at(pl_rdz, pl_drdz_dx, pl_drdz_dy, dx2, dy), plane_at(pl_gdz, pl_dgdz_dx, pl_dgdz_dy, dx2, dy), 
+                    plane_at(pl_bdz, pl_dbdz_dx, pl_dbdz_dy, dx2, dy), z2_inv
+                );
+                break;
+            case FILL_TEXTURED:
+                scanline_texture(
+                    xs, z1_inv, plane_at(pl_udz, pl_dudz_dx, pl_dudz_dy, dx1, dy), plane_at(pl_vdz, pl_dvdz_dx, pl_dvdz_dy, dx1, dy), 
+                    xe, z2_inv, plane_at(pl_udz, pl_dudz_dx, pl_dudz_dy, dx2, dy), plane_at(pl_vdz, pl_dvdz_dx, pl_dvdz_dy, dx2, dy), 
+                    y
+                );
+                break;
+            case FILL_TEXTURED_INTERPOLATE_COLOR:
+                scanline_texture_interpolate_color(
+                    xs, z1_inv, plane_at(pl_udz, pl_dudz_dx, pl_dudz_dy, dx1, dy), plane_at(pl_vdz, pl_dvdz_dx, pl_dvdz_dy, dx1, dy), 
+                    plane_at(pl_rdz, pl_drdz_dx, pl_drdz_dy, dx1, dy), plane_at(pl_gdz, pl_dgdz_dx, pl_dgdz_dy, dx1, dy), 
+                    plane_at(pl_bdz, pl_dbdz_dx, pl_dbdz_dy, dx1, dy), 
+                    xe, z2_inv, plane_at(pl_udz, pl_dudz_dx, pl_dudz_dy, dx2, dy), plane_at(pl_vdz, pl_dvdz_dx, pl_dvdz_dy, dx2, dy), 
+                    plane_at(pl_rdz, pl_drdz_dx, pl_drdz_dy, dx2, dy), plane_at(pl_gdz, pl_dgdz_dx, pl_dgdz_dy, dx2, dy), 
+                    plane_at(pl_bdz, pl_dbdz_dx, pl_dbdz_dy, dx2, dy), 
+                    y
+                );
+                break;
+        }
+    }
+    
+    private static float plane_at(float value, float d_dx, float d_dy, float dx, float dy) {
+        return value + d_dx * dx + d_dy * dy;
+    }
+    
+    private static final int BLOCK_SIZE = 8, TILE_SIZE = TiledRasterizer.TILE_SIZE;
+    
+//  Planes of the current triangle: value(x, y) = value at (pl_x, pl_y) + d_dx * (x - pl_x) + d_dy * (y - pl_y), 
+//  x and y in pixels. All attributes except z_inv are premultiplied by z_inv.
+    private float pl_x, pl_y;
+    private float pl_z_inv, pl_dz_inv_dx, pl_dz_inv_dy;
+    private float pl_udz, pl_dudz_dx, pl_dudz_dy;
+    private float pl_vdz, pl_dvdz_dx, pl_dvdz_dy;
+    private float pl_rdz, pl_drdz_dx, pl_drdz_dy;
+    private float pl_gdz, pl_dgdz_dx, pl_dgdz_dy;
+    private float pl_bdz, pl_dbdz_dx, pl_dbdz_dy;
+    private float pl_area_inv;
+    private int pl_x21, pl_y21, pl_x31, pl_y31;
+    
+    private final Edge long_edge = new Edge(), short_edge = new Edge();
+    
+//  Half-space traversal. The bounding box of the triangle is walked in 8x8 blocks,
+//  blocks that are inside all three edges are filled without any edge tests and 
+//  blocks that are outside one of the edges are skipped.
+    private void fill_tri_half_space(final int kind, int x1, int y1, int x2, int y2, int x3, int y3, long area) {
+        int min_x = Math.max(ceil_fixed_28x4(Math.min(x1, Math.min(x2, x3))), tile_x0);
+        int max_x = Math.min(floor_fixed_28x4(Math.max(x1, Math.max(x2, x3))), tile_x1);
+        int min_y = Math.max(ceil_fixed_28x4(Math.min(y1, Math.min(y2, y3))), tile_y0);
+        int max_y = Math.min(floor_fixed_28x4(Math.max(y1, Math.max(y2, y3))), tile_y1);
+        if (min_x > max_x || min_y > max_y)
+            return;
+        final long sign = area > 0L ? 1L : -1L;
+//      edge functions E(x, y) = a * x + b * y + c of the 28.4 coordinates, positive inside the triangle
+        final long a0 = -sign * (y2 - y1), b0 = sign * (x2 - x1);
+        final long a1 = -sign * (y3 - y2), b1 = sign * (x3 - x2);
+        final long a2 = -sign * (y1 - y3), b2 = sign * (x1 - x3);
+//      top-left fill rule: centers exactly on the edge belong to only one 
+//      of the two triangles sharing it
+        final long c0 = -a0 * x1 - b0 * y1 - (a0 > 0 || (a0 == 0 && b0 > 0) ? 0 : 1);
+        final long c1 = -a1 * x2 - b1 * y2 - (a1 > 0 || (a1 == 0 && b1 > 0) ? 0 : 1);
+        final long c2 = -a2 * x3 - b2 * y3 - (a2 > 0 || (a2 == 0 && b2 > 0) ? 0 : 1);
+//      changes of the edge functions from a pixel to the next one
+        final long dx0 = a0 << SUBPIXEL_BITS, dy0 = b0 << SUBPIXEL_BITS;
+        final long dx1 = a1 << SUBPIXEL_BITS, dy1 = b1 << SUBPIXEL_BITS;
+        final long dx2 = a2 << SUBPIXEL_BITS, dy2 = b2 << SUBPIXEL_BITS;
+        for (int by = min_y & ~(BLOCK_SIZE - 1); by <= max_y; by += BLOCK_SIZE) {
+            final int y_from = Math.max(by, min_y), y_to = Math.min(by + BLOCK_SIZE - 1, max_y);
+            for (int bx = min_x & ~(BLOCK_SIZE - 1); bx <= max_x; bx += BLOCK_SIZE) {
+                final int x_from = Math.max(bx, min_x), x_to = Math.min(bx + BLOCK_SIZE - 1, max_x);
+                final long e0 = dx0 * x_from + dy0 * y_from + c0;
+                final long e1 = dx1 * x_from + dy1 * y_from + c1;
+                final long e2 = dx2 * x_from + dy2 * y_from + c2;
+                final int dx = x_to - x_from, dy = y_to - y_from;
+                final long max0 = e0 + Math.max(0L, dx0 * dx) + Math.max(0L, dy0 * dy);
+                final long max1 = e1 + Math.max(0L, dx1 * dx) + Math.max(0L, dy1 * dy);
+                final long max2 = e2 + Math.max(0L, dx2 * dx) + Math.max(0L, dy2 * dy);
+                if ((max0 | max1 | max2) < 0L) // block is outside one of the edges
+                    continue;
+                final long min0 = e0 + Math.min(0L, dx0 * dx) + Math.min(0L, dy0 * dy);
+                final long min1 = e1 + Math.min(0L, dx1 * dx) + Math.min(0L, dy1 * dy);
+                final long min2 = e2 + Math.min(0L, dx2 * dx) + Math.min(0L, dy2 * dy);
+                if ((min0 | min1 | min2) >= 0L) { // block is inside the triangle
+                    for (int y = y_from; y <= y_to; y++)
+                        half_space_span(kind, y, x_from, x_to);
+                } else {
+                    long r0 = e0, r1 = e1, r2 = e2;
+                    for (int y = y_from; y <= y_to; y++) {
+//                      covered pixels of a row are contiguous, because the triangle is convex
+                        int xs = -1, xe = -1;
+                        long p0 = r0, p1 = r1, p2 = r2;
+                        for (int x = x_from; x <= x_to; x++) {
+                            if ((p0 | p1 | p2) >= 0L) {
+                                if (xs == -1) 
+                                    xs = x;
+                                xe = x;
+                            } else if (xs != -1) {
+                                break;
+                            }
+                            p0 += dx0;
+                            p1 += dx1;
+                            p2 += dx2;
                         }
-                        
+                        if (xs != -1)
+                            half_space_span(kind, y, xs, xe);
+                        r0 += dy0;
+                        r1 += dy1;
+                        r2 += dy2;
                     }
-                    
-                    n = 4;
-                    
                 }
-                
             }
         }
-        
-        temp_code1 = code3;
-        temp_code2 = code1;
-        clip0(x3, y3, x1, y1);
-        if (line_x1 != -1) {
-
-            if (n == 0) {
-                float dist_inv = -1f;
-                tri_points[0].x = line_x1;
-                tri_points[0].y = line_y1;
-                tri_points[1].x = line_x2;
-                tri_points[1].y = line_y2;
-                
-                if (line_x1 != x3 || line_y1 != y3) { 
-                    dist_inv = 1f / dist(x3, y3, x1, y1);
-                    float coeff = dist_inv * dist(x3, y3, line_x1, line_y1);
-                    tri_points[0].z_inv = z3_inv + (z1_inv - z3_inv) * coeff;
-                    tri_points[0].z = 1f / tri_points[0].z_inv;
-                    if (interpolate_rgb) {
-                        tri_points[0].r = tri_points[0].z * (r3 * z3_inv + (r1 * z1_inv - r3 * z3_inv) * coeff);
-                        tri_points[0].g = tri_points[0].z * (g3 * z3_inv + (g1 * z1_inv - g3 * z3_inv) * coeff);
-                        tri_points[0].b = tri_points[0].z * (b3 * z3_inv + (b1 * z1_inv - b3 * z3_inv) * coeff);
-                    }
-                    if (interpolate_uv) {
-                        tri_points[0].u = tri_points[0].z * (u3 * z3_inv + (u1 * z1_inv - u3 * z3_inv) * coeff);
-                        tri_points[0].v = tri_points[0].z * (v3 * z3_inv + (v1 * z1_inv - v3 * z3_inv) * coeff);
-                    }
-                } else {
-                    tri_points[0].z = z3;
-                    tri_points[0].z_inv = 1f / z3;
-                    if (interpolate_rgb) {
-                        tri_points[0].r = r3;
-                        tri_points[0].g = g3;
-                        tri_points[0].b = b3;
-                    }
-                    if (interpolate_uv) {
-                        tri_points[0].u = u3;
-                        tri_points[0].v = v3;
+    }
+    
+    private void setup_planes(final int kind, int x1, int y1, int x2, int y2, int x3, int y3, long area) {
+        pl_x = x1 * (1f / SUBPIXEL_SIZE);
+        pl_y = y1 * (1f / SUBPIXEL_SIZE);
+        pl_x21 = x2 - x1;
+        pl_y21 = y2 - y1;
+        pl_x31 = x3 - x1;
+        pl_y31 = y3 - y1;
+        pl_area_inv = SUBPIXEL_SIZE / (float) area; // the differences are in subpixels, the gradients per pixel
+        pl_z_inv = z1_inv;
+        pl_dz_inv_dx = plane_dx(z1_inv, z2_inv, z3_inv);
+        pl_dz_inv_dy = plane_dy(z1_inv, z2_inv, z3_inv);
+        if (kind == FILL_TEXTURED || kind == FILL_TEXTURED_INTERPOLATE_COLOR) {
+            pl_udz = u1 * z1_inv;
+            pl_dudz_dx = plane_dx(pl_udz, u2 * z2_inv, u3 * z3_inv);
+            pl_dudz_dy = plane_dy(pl_udz, u2 * z2_inv, u3 * z3_inv);
+            pl_vdz = v1 * z1_inv;
+            pl_dvdz_dx = plane_dx(pl_vdz, v2 * z2_inv, v3 * z3_inv);
+            pl_dvdz_dy = plane_dy(pl_vdz, v2 * z2_inv, v3 * z3_inv);
+        }
+        if (kind == FILL_INTERPOLATE_COLOR || kind == FILL_TEXTURED_INTERPOLATE_COLOR) {
+            pl_rdz = r1 * z1_inv;
+            pl_drdz_dx = plane_dx(pl_rdz, r2 * z2_inv, r3 * z3_inv);
+            pl_drdz_dy = plane_dy(pl_rdz, r2 * z2_inv, r3 * z3_inv);
+            pl_gdz = g1 * z1_inv;
+            pl_dgdz_dx = plane_dx(pl_gdz, g2 * z2_inv, g3 * z3_inv);
+            pl_dgdz_dy = plane_dy(pl_gdz, g2 * z2_inv, g3 * z3_inv);
+            pl_bdz = b1 * z1_inv;
+            pl_dbdz_dx = plane_dx(pl_bdz, b2 * z2_inv, b3 * z3_inv);
+            pl_dbdz_dy = plane_dy(pl_bdz, b2 * z2_inv, b3 * z3_inv);
+        }
+    }
+    
+    private float plane_dx(float a1, float a2, float a3) {
+        return ((a2 - a1) * pl_y31 - (a3 - a1) * pl_y21) * pl_area_inv;
+    }
+    
+    private float plane_dy(float a1, float a2, float a3) {
+        return ((a3 - a1) * pl_x21 - (a2 - a1) * pl_x31) * pl_area_inv;
+    }
+    
+//  shades pixels from xs to xe (inclusive) of the row y, no edge tests here
+    private void half_space_span(final int kind, int y, int xs, int xe) {
+        if (z_buff == null) {
+            plane_span(kind, y, xs, xe); // quantized the same way as the scanline spans
+            return;
+        }
+        final float dx = xs - pl_x, dy = y - pl_y;
+        int i = hash(xs, y, w);
+        float z_inv = pl_z_inv + pl_dz_inv_dx * dx + pl_dz_inv_dy * dy;
+        final float dz_inv = pl_dz_inv_dx;
+        float z;
+        if (depth_only) {
+            depth_span(i, xe - xs, z_inv, dz_inv, 
+                spans != null && xe - xs + 1 >= VECTOR_MIN_SPAN && (rgb_buff != null || kind >= FILL_TEXTURED));
+            return;
+        }
+        if (gbuffer != null && (kind == FILL_INTERPOLATE_COLOR || kind == FILL_TEXTURED_INTERPOLATE_COLOR)) {
+            boolean textured = kind == FILL_TEXTURED_INTERPOLATE_COLOR;
+            gbuffer_span(i, xe - xs, z_inv, dz_inv, 
+                pl_rdz + pl_drdz_dx * dx + pl_drdz_dy * dy, pl_drdz_dx, 
+                pl_gdz + pl_dgdz_dx * dx + pl_dgdz_dy * dy, pl_dgdz_dx, 
+                pl_bdz + pl_dbdz_dx * dx + pl_dbdz_dy * dy, pl_dbdz_dx, 
+                textured ? pl_udz + pl_dudz_dx * dx + pl_dudz_dy * dy : 0f, pl_dudz_dx, 
+                textured ? pl_vdz + pl_dvdz_dx * dx + pl_dvdz_dy * dy : 0f, pl_dvdz_dx, 
+                textured, spans != null && xe - xs + 1 >= VECTOR_MIN_SPAN && (rgb_buff != null || textured)
+            );
+            return;
+        }
+        if (spans != null && xe - xs + 1 >= VECTOR_MIN_SPAN && (rgb_buff != null || kind >= FILL_TEXTURED)) {
+            half_space_span_vector(kind, i, xe - xs, z_inv, dx, dy);
+            return;
+        }
+        switch (kind) {
+            case FILL:
+                for (int x = xs; x <= xe; x++, i++) {
+                    if (z_buff[i] < z_inv) {
+                        g.plotToHash(i, color);
+                        z_buff[i] = z_inv;
                     }
+                    z_inv += dz_inv;
                 }
-            
-                if (line_x2 != x1 || line_y2 != y1) {
-                    float coeff;
-                    if (dist_inv == -1f)
-                        coeff = dist(x1, y1, line_x2, line_y2) / dist(x3, y3, x1, y1);
-                    else
-                        coeff = dist_inv * dist(x1, y1, line_x2, line_y2);
-                    tri_points[1].z_inv = z1_inv + (z3_inv - z1_inv) * coeff;
-                    tri_points[1].z = 1f / tri_points[1].z_inv;
-                    if (interpolate_rgb) {
-                        tri_points[1].r = tri_points[1].z * (r1 * z1_inv + (r3 * z3_inv - r1 * z1_inv) * coeff);
-                        tri_points[1].g = tri_points[1].z * (g1 * z1_inv + (g3 * z3_inv - g1 * z1_inv) * coeff);
-                        tri_points[1].b = tri_points[1].z * (b1 * z1_inv + (b3 * z3_inv - b1 * z1_inv) * coeff);
-                    }
-                    if (interpolate_uv) {
-                        tri_points[1].u = tri_points[1].z * (u1 * z1_inv + (u3 * z3_inv - u1 * z1_inv) * coeff);
-                        tri_points[1].v = tri_points[1].z * (v1 * z1_inv + (v3 * z3_inv - v1 * z1_inv) * coeff);
-                    }
-                } else {
-                    tri_points[1].z = z1;
-                    tri_points[1].z_inv = 1f / z1;
-                    if (interpolate_rgb) {
-                        tri_points[1].r = r1;
-                        tri_points[1].g = g1;
-                        tri_points[1].b = b1;
-                    }
-                    if (interpolate_uv) {
-                        tri_points[1].u = u1;
-                        tri_points[1].v = v1;
+                break;
+            case FILL_INTERPOLATE_COLOR: {
+                float rdz = pl_rdz + pl_drdz_dx * dx + pl_drdz_dy * dy;
+                float gdz = pl_gdz + pl_dgdz_dx * dx + pl_dgdz_dy * dy;
+                float bdz = pl_bdz + pl_dbdz_dx * dx + pl_dbdz_dy * dy;
+                for (int x = xs; x <= xe; x++, i++) {
+                    if (z_buff[i] < z_inv) {
+                        z = 1f / z_inv;
+                        g.plotToHash(i, rgb(roundPositive(rdz * z), roundPositive(gdz * z), roundPositive(bdz * z)));
+                        z_buff[i] = z_inv;
                     }
+                    z_inv += dz_inv;
+                    rdz += pl_drdz_dx;
+                    gdz += pl_dgdz_dx;
+                    bdz += pl_dbdz_dx;
                 }
-                
-                n = 2;
-                
-            } else {
-                float dist_inv = -1f;
-                if (tri_points[n - 1].x != line_x1 || tri_points[n - 1].y != line_y1) {
-
-                    dist_inv = 1f / dist(x3, y3, x1, y1);
-                    float coeff = dist_inv * dist(x3, y3, line_x1, line_y1);
-                    tri_points[n].x = line_x1;
-                    tri_points[n].y = line_y1;
-                    tri_points[n].z_inv = z3_inv + (z1_inv - z3_inv) * coeff;
-                    tri_points[n].z = 1f / tri_points[n].z_inv;
-                    if (interpolate_rgb) {
-                        tri_points[n].r = tri_points[n].z * (r3 * z3_inv + (r1 * z1_inv - r3 * z3_inv) * coeff);
-                        tri_points[n].g = tri_points[n].z * (g3 * z3_inv + (g1 * z1_inv - g3 * z3_inv) * coeff);
-                        tri_points[n].b = tri_points[n].z * (b3 * z3_inv + (b1 * z1_inv - b3 * z3_inv) * coeff);
-                    }
-                    if (interpolate_uv) {
-                        tri_points[n].u = tri_points[n].z * (u3 * z3_inv + (u1 * z1_inv - u3 * z3_inv) * coeff);
-                        tri_points[n].v = tri_points[n].z * (v3 * z3_inv + (v1 * z1_inv - v3 * z3_inv) * coeff);
-                    }
-                    n++;
-                } 
-                if (tri_points[0].x != line_x2 || tri_points[0].y != line_y2) {
-                    
-                    float coeff;
-                    if (dist_inv == -1f)
-                        coeff = dist(x1, y1, line_x2, line_y2) / dist(x3, y3, x1, y1);
-                    else
-                        coeff = dist_inv * dist(x1, y1, line_x2, line_y2);
-                    tri_points[n].x = line_x2;
-                    tri_points[n].y = line_y2;
-                    tri_points[n].z_inv = z1_inv + (z3_inv - z1_inv) * coeff;
-                    tri_points[n].z = 1f / tri_points[n].z_inv;
-                    if (interpolate_rgb) {
-                        tri_points[n].r = tri_points[n].z * (r1 * z1_inv + (r3 * z3_inv - r1 * z1_inv) * coeff);
-                        tri_points[n].g = tri_points[n].z * (g1 * z1_inv + (g3 * z3_inv - g1 * z1_inv) * coeff);
-                        tri_points[n].b = tri_points[n].z * (b1 * z1_inv + (b3 * z3_inv - b1 * z1_inv) * coeff);
-                    }
-                    if (interpolate_uv) {
-                        tri_points[n].u = tri_points[n].z * (u1 * z1_inv + (u3 * z3_inv - u1 * z1_inv) * coeff);
-                        tri_points[n].v = tri_points[n].z * (v1 * z1_inv + (v3 * z3_inv - v1 * z1_inv) * coeff);
+                break;
+            }
+            case FILL_TEXTURED: {
+                float udz = pl_udz + pl_dudz_dx * dx + pl_dudz_dy * dy;
+                float vdz = pl_vdz + pl_dvdz_dx * dx + pl_dvdz_dy * dy;
+                for (int x = xs; x <= xe; x++, i++) {
+                    if (z_buff[i] < z_inv) {
+                        z = 1f / z_inv;
+                        z_buff[i] = z_inv;
+                        if (modulate) {
+                            g.plotToHash(i, color);
+                            g.modulateInHash(i, texel(roundPositive(z * udz), roundPositive(z * vdz)));
+                        } else {
+                            g.plotToHash(i, texel(roundPositive(z * udz), roundPositive(z * vdz)));
+                        }
                     }
-                    n++;
+                    z_inv += dz_inv;
+                    udz += pl_dudz_dx;
+                    vdz += pl_dvdz_dx;
                 }
+                break;
             }
-        }
-//      now "tri_points" array contains all intersection points of triangle
-//      with the viewport, and "n" variable contains the number of this points.
-        v1v2_x = x2 - x1;
-        v1v2_y = y2 - y1;
-        v1v3_x = x3 - x1;
-        v1v3_y = y3 - y1;
-        temp_det_inv = 1f / (v1v2_x * v1v3_y - v1v2_y * v1v3_x);
-
-        if (test_point(-x1, -y1)) { // point (0, 0) belongs to triangle
-            tri_points[n].x = 0;
-            tri_points[n].y = 0;
-            tri_points[n].z_inv = z1_inv + (z2_inv - z1_inv) * u + (z3_inv - z1_inv) * v;
-            tri_points[n].z = 1f / tri_points[n].z_inv;
-            if (interpolate_rgb) {
-                tri_points[n].r = tri_points[n].z * (r1 * z1_inv + (r2 * z2_inv - r1 * z1_inv) * u + (r3 * z3_inv - r1 * z1_inv) * v);
-                tri_points[n].g = tri_points[n].z * (g1 * z1_inv + (g2 * z2_inv - g1 * z1_inv) * u + (g3 * z3_inv - g1 * z1_inv) * v);
-                tri_points[n].b = tri_points[n].z * (b1 * z1_inv + (b2 * z2_inv - b1 * z1_inv) * u + (b3 * z3_inv - b1 * z1_inv) * v);              
-            }
-            if (interpolate_uv) {
-                tri_points[n].u = tri_points[n].z * (u1 * z1_inv + (u2 * z2_inv - u1 * z1_inv) * u + (u3 * z3_inv - u1 * z1_inv) * v);
-                tri_points[n].v = tri_points[n].z * (v1 * z1_inv + (v2 * z2_inv - v1 * z1_inv) * u + (v3 * z3_inv - v1 * z1_inv) * v);
-            }
-            n++;
-        }
-
-        if (test_point(-x1, y_max - y1)) { // point (0, h - 1) belongs to triangle
-            max_y_index = n; // small optimisation
-            tri_points[n].x = 0;
-            tri_points[n].y = y_max;
-            tri_points[n].z_inv = z1_inv + (z2_inv - z1_inv) * u + (z3_inv - z1_inv) * v;
-            tri_points[n].z = 1f / tri_points[n].z_inv;
-            if (interpolate_rgb) {
-                tri_points[n].r = tri_points[n].z * (r1 * z1_inv + (r2 * z2_inv - r1 * z1_inv) * u + (r3 * z3_inv - r1 * z1_inv) * v);
-                tri_points[n].g = tri_points[n].z * (g1 * z1_inv + (g2 * z2_inv - g1 * z1_inv) * u + (g3 * z3_inv - g1 * z1_inv) * v);
-                tri_points[n].b = tri_points[n].z * (b1 * z1_inv + (b2 * z2_inv - b1 * z1_inv) * u + (b3 * z3_inv - b1 * z1_inv) * v);              
-            }
-            if (interpolate_uv) {
-                tri_points[n].u = tri_points[n].z * (u1 * z1_inv + (u2 * z2_inv - u1 * z1_inv) * u + (u3 * z3_inv - u1 * z1_inv) * v);
-                tri_points[n].v = tri_points[n].z * (v1 * z1_inv + (v2 * z2_inv - v1 * z1_inv) * u + (v3 * z3_inv - v1 * z1_inv) * v);
-            }
-            n++;
-        }
-
-        if (test_point(x_max - x1, -y1)) { // point (w - 1, 0) belongs to triangle
-            tri_points[n].x = x_max;
-            tri_points[n].y = 0;
-            tri_points[n].z_inv = z1_inv + (z2_inv - z1_inv) * u + (z3_inv - z1_inv) * v;
-            tri_points[n].z = 1f / tri_points[n].z_inv;
-            if (interpolate_rgb) {
-                tri_points[n].r = tri_points[n].z * (r1 * z1_inv + (r2 * z2_inv - r1 * z1_inv) * u + (r3 * z3_inv - r1 * z1_inv) * v);
-                tri_points[n].g = tri_points[n].z * (g1 * z1_inv + (g2 * z2_inv - g1 * z1_inv) * u + (g3 * z3_inv - g1 * z1_inv) * v);
-                tri_points[n].b = tri_points[n].z * (b1 * z1_inv + (b2 * z2_inv - b1 * z1_inv) * u + (b3 * z3_inv - b1 * z1_inv) * v);              
-            }
-            if (interpolate_uv) {
-                tri_points[n].u = tri_points[n].z * (u1 * z1_inv + (u2 * z2_inv - u1 * z1_inv) * u + (u3 * z3_inv - u1 * z1_inv) * v);
-                tri_points[n].v = tri_points[n].z * (v1 * z1_inv + (v2 * z2_inv - v1 * z1_inv) * u + (v3 * z3_inv - v1 * z1_inv) * v);
-            }
-            n++;
-        }
-
-        if (test_point(x_max - x1, y_max - y1)) { // point (w - 1, h - 1) belongs to triangle
-            tri_points[n].x = x_max;
-            tri_points[n].y = y_max;
-            tri_points[n].z_inv = z1_inv + (z2_inv - z1_inv) * u + (z3_inv - z1_inv) * v;
-            tri_points[n].z = 1f / tri_points[n].z_inv;
-            if (interpolate_rgb) {
-                tri_points[n].r = tri_points[n].z * (r1 * z1_inv + (r2 * z2_inv - r1 * z1_inv) * u + (r3 * z3_inv - r1 * z1_inv) * v);
-                tri_points[n].g = tri_points[n].z * (g1 * z1_inv + (g2 * z2_inv - g1 * z1_inv) * u + (g3 * z3_inv - g1 * z1_inv) * v);
-                tri_points[n].b = tri_points[n].z * (b1 * z1_inv + (b2 * z2_inv - b1 * z1_inv) * u + (b3 * z3_inv - b1 * z1_inv) * v);              
-            }
-            if (interpolate_uv) {
-                tri_points[n].u = tri_points[n].z * (u1 * z1_inv + (u2 * z2_inv - u1 * z1_inv) * u + (u3 * z3_inv - u1 * z1_inv) * v);
-                tri_points[n].v = tri_points[n].z * (v1 * z1_inv + (v2 * z2_inv - v1 * z1_inv) * u + (v3 * z3_inv - v1 * z1_inv) * v);
-            }
-            n++;
-        }
-        
-        if (n < 3) //triangle is not visible
-            return false;
-        
-        
-        if (max_y_index == -1) {
-            max_y_index = 0;
-            for (int i = 1; i < n; i++) {
-                if ((tri_points[i].y > tri_points[max_y_index].y) || (tri_points[i].y == tri_points[max_y_index].y && tri_points[i].x < tri_points[max_y_index].x)) {
-                    max_y_index = i;
+            case FILL_TEXTURED_INTERPOLATE_COLOR: {
+                float udz = pl_udz + pl_dudz_dx * dx + pl_dudz_dy * dy;
+                float vdz = pl_vdz + pl_dvdz_dx * dx + pl_dvdz_dy * dy;
+                float rdz = pl_rdz + pl_drdz_dx * dx + pl_drdz_dy * dy;
+                float gdz = pl_gdz + pl_dgdz_dx * dx + pl_dgdz_dy * dy;
+                float bdz = pl_bdz + pl_dbdz_dx * dx + pl_dbdz_dy * dy;
+                for (int x = xs; x <= xe; x++, i++) {
+                    if (z_buff[i] < z_inv) {
+                        z = 1f / z_inv;
+                        g.plotToHash(i, texel(roundPositive(z * udz), roundPositive(z * vdz)));
+                        g.modulateInHash(i, rgb(roundPositive(rdz * z), roundPositive(gdz * z), roundPositive(bdz * z)));
+                        z_buff[i] = z_inv;
+                    }
+                    z_inv += dz_inv;
+                    udz += pl_dudz_dx;
+                    vdz += pl_dvdz_dx;
+                    rdz += pl_drdz_dx;
+                    gdz += pl_dgdz_dx;
+                    bdz += pl_dbdz_dx;
                 }
+                break;
             }
         }
-        
-        TriPoint temp = tri_points[0];
-        tri_points[0] = tri_points[max_y_index];
-        tri_points[max_y_index] = temp;
-        
-        final TriPoint max_y = tri_points[0];
-        Arrays.sort(tri_points, 1, n, (TriPoint p1, TriPoint p2) -> {
-            return Double.compare(p1.angle_rel_to(max_y), p2.angle_rel_to(max_y));
-        });
-        
-        for (int i = 0; i < n; i++) tri_points[i].angle_calc = false;
-        return true;
     }
     
-    private float u, v; // barycentric coordinates of tested point 
-    private float temp_det_inv;
-    private float v1v2_x, v1v2_y, v1v3_x, v1v3_y;
-
-    private boolean test_point(float px, float py) { 
-        float det1 = px * v1v3_y - py * v1v3_x;
-        u = det1 * temp_det_inv;
-        if (u >= 0f && u <= 1f) {
-            float det2 = v1v2_x * py - v1v2_y * px;
-            v = det2 * temp_det_inv;
-            return v >= 0f && v <= 1f && u + v <= 1f;
+//  "rgb_buff" must not be null for FILL and FILL_INTERPOLATE_COLOR
+    private void half_space_span_vector(final int kind, int i0, int to, float z_inv, float dx, float dy) {
+        switch (kind) {
+            case FILL:
+                spans.flat(z_buff, rgb_buff, i0, to, z_inv, pl_dz_inv_dx, color);
+                break;
+            case FILL_INTERPOLATE_COLOR:
+                spans.interpolateColor(z_buff, rgb_buff, i0, to, z_inv, pl_dz_inv_dx, 
+                    pl_rdz + pl_drdz_dx * dx + pl_drdz_dy * dy, pl_drdz_dx, 
+                    pl_gdz + pl_dgdz_dx * dx + pl_dgdz_dy * dy, pl_dgdz_dx, 
+                    pl_bdz + pl_dbdz_dx * dx + pl_dbdz_dy * dy, pl_dbdz_dx
+                );
+                break;
+            case FILL_TEXTURED: {
+                ensure_vec_buffers();
+                int n = spans.texture(z_buff, i0, to, z_inv, pl_dz_inv_dx, 
+                    pl_udz + pl_dudz_dx * dx + pl_dudz_dy * dy, pl_dudz_dx, 
+                    pl_vdz + pl_dvdz_dx * dx + pl_dvdz_dy * dy, pl_dvdz_dx, 
+                    vec_offs, vec_u, vec_v
+                );
+                plot_texels(i0, n, modulate);
+                break;
+            }
+            case FILL_TEXTURED_INTERPOLATE_COLOR: {
+                ensure_vec_buffers();
+                int n = spans.textureInterpolateColor(z_buff, i0, to, z_inv, pl_dz_inv_dx, 
+                    pl_udz + pl_dudz_dx * dx + pl_dudz_dy * dy, pl_dudz_dx, 
+                    pl_vdz + pl_dvdz_dx * dx + pl_dvdz_dy * dy, pl_dvdz_dx, 
+                    pl_rdz + pl_drdz_dx * dx + pl_drdz_dy * dy, pl_drdz_dx, 
+                    pl_gdz + pl_dgdz_dx * dx + pl_dgdz_dy * dy, pl_dgdz_dx, 
+                    pl_bdz + pl_dbdz_dx * dx + pl_dbdz_dy * dy, pl_dbdz_dx, 
+                    vec_offs, vec_u, vec_v, vec_rgb
+                );
+                plot_texels_modulated(i0, n);
+                break;
+            }
         }
-        return false;
     }
     
     void line(int x1, int y1, float z1, int x2, int y2, float z2) {
@@ -1390,6 +1140,7 @@ class Rasterizer3D {
                     src_len = dist(x1, y1, x2, y2);
                 line_z2_inv = z2_inv + (z1_inv - z2_inv) * dist(x2, y2, line_x2, line_y2) / src_len;
             }
+            mark_hiz_dirty(Math.min(line_x1, line_x2), Math.min(line_y1, line_y2), Math.max(line_x1, line_x2), Math.max(line_y1, line_y2));
             bresenham(line_x1, line_y1, line_z1_inv, line_x2, line_y2, line_z2_inv);
         } 
     }
@@ -1397,11 +1148,7 @@ class Rasterizer3D {
     private void bresenham(int x1, int y1, float z1_inv, int x2, int y2, float z2_inv) {
         if (x1 == x2) { // vertical line
             if (y1 == y2) {
-                int i = hash(x1, y1, w);
-                if (z_buff[i] < z1_inv || z_buff[i] < z2_inv) {
-                    g.plotToHash(i);
-                    z_buff[i] = Math.max(z1_inv, z2_inv);
-                }
+                line_pixel(hash(x1, y1, w), Math.max(z1_inv, z2_inv));
             } else {
                 if (y1 < y2) ver_line(x1, y1, z1_inv, y2, z2_inv);
                 else         ver_line(x1, y2, z2_inv, y1, z1_inv);
@@ -1436,6 +1183,22 @@ class Rasterizer3D {
         }
     }
     
+//  depth tested pixel of a line, in any depth format
+    private void line_pixel(int i, float z_inv) {
+        if (z_buff != null) {
+            if (z_buff[i] < z_inv) {
+                g.plotToHash(i, color);
+                z_buff[i] = z_inv;
+            }
+            return;
+        }
+        final int q = quantize(z_inv);
+        if (stored_depth(i) < q) {
+            g.plotToHash(i, color);
+            store_depth(i, q);
+        }
+    }
+    
 //  x1 < x2
     private void x_line(int x1, int y1, float z1_inv, int x2, float z2_inv, int dx, int dy, final int y_inc) {
         int i = hash(x1, y1, w);
@@ -1443,10 +1206,7 @@ class Rasterizer3D {
         float z_inv = z1_inv;
         final float dz_inv = (z2_inv - z1_inv) / sqrt_table[hash(dx, dy, w)];
         for (int x = x1, err = 0;;) {
-            if (z_buff[i] < z_inv) {
-                g.plotToHash(i);
-                z_buff[i] = z_inv;
-            }
+            line_pixel(i, z_inv);
             if (++x > x2)
                 break;
             i++;
@@ -1467,10 +1227,7 @@ class Rasterizer3D {
         float z_inv = z1_inv;
         final float dz_inv = (z2_inv - z1_inv) / sqrt_table[hash(dx, dy, w)];
         for (int y = y1, err = 0;;) {
-            if (z_buff[i] < z_inv) {
-                g.plotToHash(i);
-                z_buff[i] = z_inv;
-            }
+            line_pixel(i, z_inv);
             y += y_inc;
             if (y == y2) {
                 _dy++;
@@ -1481,10 +1238,7 @@ class Rasterizer3D {
                     _dx++;
                 }
                 z_inv = z1_inv + dz_inv * sqrt_table[hash(_dx, _dy, w)];
-                if (z_buff[i] < z_inv) {
-                    g.plotToHash(i);
-                    z_buff[i] = z_inv;
-                }
+                line_pixel(i, z_inv);
                 return;
             }
             _dy++;
@@ -1504,10 +1258,7 @@ class Rasterizer3D {
         float z_inv = z1_inv;
         final float dz_inv = (z2_inv - z1_inv) / (y2 - y1);
         for (int y = y1;;) {
-            if (z_buff[i] < z_inv) {
-                g.plotToHash(i);
-                z_buff[i] = z_inv;
-            }
+            line_pixel(i, z_inv);
             if (++y > y2)
                 break;
             i += w;
@@ -1515,16 +1266,41 @@ class Rasterizer3D {
         }
     }
     
+//  All scanlines write pixels from x1 to max(x1, x2) that are inside the current tile, x1 is not 
+//  left of it (plane_span cuts the rows of the triangles at the tile edges, lines are not tiled).
+//  Spans behind the hierarchical z blocks of their row are skipped.
     private void scanline(int x1, float z1_inv, int x2, float z2_inv, int y) {
+        if (y < tile_y0 || y > tile_y1)
+            return;
+        final int x_last = Math.min(Math.max(x1, x2), tile_x1);
+        if (x1 < tile_x0 || x1 > x_last)
+            return;
+        if (hiz_occluded(x1 >> HIZ_SHIFT, y >> HIZ_SHIFT, x_last >> HIZ_SHIFT, y >> HIZ_SHIFT, Math.max(z1_inv, z2_inv)))
+            return;
+        if (z_buff == null) {
+            int_span(FILL, hash(x1, y, w), x_last - x1, Math.max(x2 - x1, 0), z1_inv, (z2_inv - z1_inv) / (x2 - x1), 
+                0f, 0f, 0f, 0f, 0f, 0f, 0f, 0f, 0f, 0f);
+            return;
+        }
+        if (depth_only) {
+            depth_span(hash(x1, y, w), x_last - x1, z1_inv, (z2_inv - z1_inv) / (x2 - x1), 
+                spans != null && rgb_buff != null && x2 - x1 + 1 >= VECTOR_MIN_SPAN);
+            return;
+        }
         int i = hash(x1, y, w);
         float z_inv = z1_inv;
         final float dz_inv = (z2_inv - z1_inv) / (x2 - x1);
-        for (int x = x1;;) {
+        if (spans != null && rgb_buff != null && x2 - x1 + 1 >= VECTOR_MIN_SPAN) {
+            spans.flat(z_buff, rgb_buff, i, x_last - x1, z1_inv, dz_inv, color);
+            return;
+        }
+        int x = x1;
+        for (;;) {
             if (z_buff[i] < z_inv) {
-                g.plotToHash(i);
+                g.plotToHash(i, color);
                 z_buff[i] = z_inv;
             } 
-            if (++x > x2)
+            if (++x > x_last)
                 break;
             z_inv += dz_inv;
             i++;
@@ -1532,6 +1308,24 @@ class Rasterizer3D {
     }
     
     private void scanline_texture(int x1, float z1_inv, float udz1, float vdz1, int x2, float z2_inv, float udz2, float vdz2, int y) {
+        if (y < tile_y0 || y > tile_y1)
+            return;
+        final int x_last = Math.min(Math.max(x1, x2), tile_x1);
+        if (x1 < tile_x0 || x1 > x_last)
+            return;
+        if (hiz_occluded(x1 >> HIZ_SHIFT, y >> HIZ_SHIFT, x_last >> HIZ_SHIFT, y >> HIZ_SHIFT, Math.max(z1_inv, z2_inv)))
+            return;
+        if (z_buff == null) {
+            final float len_inv = 1f / (x2 - x1);
+            int_span(FILL_TEXTURED, hash(x1, y, w), x_last - x1, Math.max(x2 - x1, 0), z1_inv, (z2_inv - z1_inv) * len_inv, 
+                udz1, (udz2 - udz1) * len_inv, vdz1, (vdz2 - vdz1) * len_inv, 0f, 0f, 0f, 0f, 0f, 0f);
+            return;
+        }
+        if (depth_only) {
+            depth_span(hash(x1, y, w), x_last - x1, z1_inv, (z2_inv - z1_inv) / (x2 - x1), 
+                spans != null && x2 - x1 + 1 >= VECTOR_MIN_SPAN);
+            return;
+        }
         int i = hash(x1, y, w);
         float z;
         float z_inv = z1_inv;
@@ -1540,18 +1334,30 @@ class Rasterizer3D {
         final float dudz = (udz2 - udz1) / (x2 - x1);
         final float dvdz = (vdz2 - vdz1) / (x2 - x1);
         final boolean modulate = this.modulate;
-        for (int x = x1;;) {
+        if (spans != null && x2 - x1 + 1 >= VECTOR_MIN_SPAN) {
+            ensure_vec_buffers();
+            final int n = spans.texture(z_buff, i, x_last - x1, z1_inv, dz_inv, udz1, dudz, vdz1, dvdz, vec_offs, vec_u, vec_v);
+            plot_texels(i, n, modulate);
+            return;
+        }
+        if (subdivision != 0) {
+            subdivided_span(FILL_TEXTURED, i, x_last - x1, Math.max(x2 - x1, 0), z1_inv, dz_inv, 
+                udz1, dudz, vdz1, dvdz, 0f, 0f, 0f, 0f, 0f, 0f);
+            return;
+        }
+        int x = x1;
+        for (;;) {
             if (z_buff[i] < z_inv) {
                 z = 1f / z_inv;
                 z_buff[i] = z_inv;
                 if (modulate) {
-                    g.plotToHash(i);
-                    g.modulateInHash(i, tex.getRGB(roundPositive(z * udz), roundPositive(z * vdz)));
+                    g.plotToHash(i, color);
+                    g.modulateInHash(i, texel(roundPositive(z * udz), roundPositive(z * vdz)));
                 } else {
-                    g.plotToHash(i, tex.getRGB(roundPositive(z * udz), roundPositive(z * vdz)));
+                    g.plotToHash(i, texel(roundPositive(z * udz), roundPositive(z * vdz)));
                 }
             } 
-            if (++x > x2)
+            if (++x > x_last)
                 break;
             z_inv += dz_inv;
             udz += dudz;
@@ -1561,6 +1367,24 @@ class Rasterizer3D {
     }
     
     private void scanline_interpolate_color(int y, int x1, float rdz1, float gdz1, float bdz1, float z1_inv, int x2, float rdz2, float gdz2, float bdz2, float z2_inv) {
+        if (y < tile_y0 || y > tile_y1)
+            return;
+        final int x_last = Math.min(Math.max(x1, x2), tile_x1);
+        if (x1 < tile_x0 || x1 > x_last)
+            return;
+        if (hiz_occluded(x1 >> HIZ_SHIFT, y >> HIZ_SHIFT, x_last >> HIZ_SHIFT, y >> HIZ_SHIFT, Math.max(z1_inv, z2_inv)))
+            return;
+        if (z_buff == null) {
+            final float len_inv = 1f / (x2 - x1);
+            int_span(FILL_INTERPOLATE_COLOR, hash(x1, y, w), x_last - x1, Math.max(x2 - x1, 0), z1_inv, (z2_inv - z1_inv) * len_inv, 
+                0f, 0f, 0f, 0f, rdz1, (rdz2 - rdz1) * len_inv, gdz1, (gdz2 - gdz1) * len_inv, bdz1, (bdz2 - bdz1) * len_inv);
+            return;
+        }
+        if (depth_only) {
+            depth_span(hash(x1, y, w), x_last - x1, z1_inv, (z2_inv - z1_inv) / (x2 - x1), 
+                spans != null && rgb_buff != null && x2 - x1 + 1 >= VECTOR_MIN_SPAN);
+            return;
+        }
         int i = hash(x1, y, w);
         float z;
         float z_inv = z1_inv;
@@ -1570,13 +1394,28 @@ class Rasterizer3D {
         final float dgdz = (gdz2 - gdz1) / (x2 - x1);
         final float dbdz = (bdz2 - bdz1) / (x2 - x1);
         final float dz_inv = (z2_inv - z1_inv) / (x2 - x1);
-        for (int x = x1;;) {
+        if (gbuffer != null) {
+            gbuffer_span(i, x_last - x1, z1_inv, dz_inv, rdz1, drdz, gdz1, dgdz, bdz1, dbdz, 0f, 0f, 0f, 0f, 
+                false, spans != null && rgb_buff != null && x2 - x1 + 1 >= VECTOR_MIN_SPAN);
+            return;
+        }
+        if (spans != null && rgb_buff != null && x2 - x1 + 1 >= VECTOR_MIN_SPAN) {
+            spans.interpolateColor(z_buff, rgb_buff, i, x_last - x1, z1_inv, dz_inv, rdz1, drdz, gdz1, dgdz, bdz1, dbdz);
+            return;
+        }
+        if (subdivision != 0) {
+            subdivided_span(FILL_INTERPOLATE_COLOR, i, x_last - x1, Math.max(x2 - x1, 0), z1_inv, dz_inv, 
+                0f, 0f, 0f, 0f, rdz1, drdz, gdz1, dgdz, bdz1, dbdz);
+            return;
+        }
+        int x = x1;
+        for (;;) {
             if (z_buff[i] < z_inv) {
                 z = 1f / z_inv;
                 g.plotToHash(i, rgb(roundPositive(rdz * z), roundPositive(gdz * z), roundPositive(bdz * z)));
                 z_buff[i] = z_inv;
             } 
-            if (++x > x2)
+            if (++x > x_last)
                 break;
             z_inv += dz_inv;
             rdz += drdz;
@@ -1589,6 +1428,25 @@ class Rasterizer3D {
     private void scanline_texture_interpolate_color(int x1, float z1_inv, float udz1, float vdz1, float rdz1, float gdz1, float bdz1, 
                                                     int x2, float z2_inv, float udz2, float vdz2, float rdz2, float gdz2, float bdz2, 
                                                     int y) {
+        if (y < tile_y0 || y > tile_y1)
+            return;
+        final int x_last = Math.min(Math.max(x1, x2), tile_x1);
+        if (x1 < tile_x0 || x1 > x_last)
+            return;
+        if (hiz_occluded(x1 >> HIZ_SHIFT, y >> HIZ_SHIFT, x_last >> HIZ_SHIFT, y >> HIZ_SHIFT, Math.max(z1_inv, z2_inv)))
+            return;
+        if (z_buff == null) {
+            final float len_inv = 1f / (x2 - x1);
+            int_span(FILL_TEXTURED_INTERPOLATE_COLOR, hash(x1, y, w), x_last - x1, Math.max(x2 - x1, 0), z1_inv, (z2_inv - z1_inv) * len_inv, 
+                udz1, (udz2 - udz1) * len_inv, vdz1, (vdz2 - vdz1) * len_inv, 
+                rdz1, (rdz2 - rdz1) * len_inv, gdz1, (gdz2 - gdz1) * len_inv, bdz1, (bdz2 - bdz1) * len_inv);
+            return;
+        }
+        if (depth_only) {
+            depth_span(hash(x1, y, w), x_last - x1, z1_inv, (z2_inv - z1_inv) / (x2 - x1), 
+                spans != null && x2 - x1 + 1 >= VECTOR_MIN_SPAN);
+            return;
+        }
         int i = hash(x1, y, w);
         float z;
         float z_inv = z1_inv;
@@ -1600,22 +1458,386 @@ class Rasterizer3D {
         final float dgdz = (gdz2 - gdz1) / (x2 - x1);
         final float dbdz = (bdz2 - bdz1) / (x2 - x1);
         final float dz_inv = (z2_inv - z1_inv) / (x2 - x1);
-        for (int x = x1;;) {
+        if (gbuffer != null) {
+            gbuffer_span(i, x_last - x1, z1_inv, dz_inv, rdz1, drdz, gdz1, dgdz, bdz1, dbdz, udz1, dudz, vdz1, dvdz, 
+                true, spans != null && x2 - x1 + 1 >= VECTOR_MIN_SPAN);
+            return;
+        }
+        if (spans != null && x2 - x1 + 1 >= VECTOR_MIN_SPAN) {
+            ensure_vec_buffers();
+            final int n = spans.textureInterpolateColor(z_buff, i, x_last - x1, z1_inv, dz_inv, udz1, dudz, vdz1, dvdz, rdz1, drdz, gdz1, dgdz, bdz1, dbdz, vec_offs, vec_u, vec_v, vec_rgb);
+            plot_texels_modulated(i, n);
+            return;
+        }
+        if (subdivision != 0) {
+            subdivided_span(FILL_TEXTURED_INTERPOLATE_COLOR, i, x_last - x1, Math.max(x2 - x1, 0), z1_inv, dz_inv, 
+                udz1, dudz, vdz1, dvdz, rdz1, drdz, gdz1, dgdz, bdz1, dbdz);
+            return;
+        }
+        int x = x1;
+        for (;;) {
             if (z_buff[i] < z_inv) {
                 z = 1f / z_inv;
-                g.plotToHash(i, tex.getRGB(roundPositive(z * udz), roundPositive(z * vdz)));
+                g.plotToHash(i, texel(roundPositive(z * udz), roundPositive(z * vdz)));
                 g.modulateInHash(i, rgb(roundPositive(rdz * z), roundPositive(gdz * z), roundPositive(bdz * z)));
                 z_buff[i] = z_inv;
             } 
-            if (++x > x2)
+            if (++x > x_last)
+                break;
+            z_inv += dz_inv;
+            udz += dudz;
+            vdz += dvdz;
+            rdz += drdz;
+            gdz += dgdz;
+            bdz += dbdz;
+            i++;
+        }
+    }
+    
+//  Scalar span of the kind FILL_INTERPOLATE_COLOR, FILL_TEXTURED or FILL_TEXTURED_INTERPOLATE_COLOR 
+//  that divides by z only at every subdivision-th pixel (counted from the span start, which 
+//  is a tile edge or a triangle edge, so tiles agree with the whole screen) and at the last pixel "last". In between the texture coordinates 
+//  and colors are stepped linearly in 16.16 fixed point, 1/z and so the depth test are the same 
+//  as in the exact spans. A segment of n pixels from 1/z = w0 to w1 shifts the texture by at most 
+//  n * (sqrt(w1 / w0) - 1) / (sqrt(w1 / w0) + 1) < n * |w1 - w0| / (w0 + w1) pixels, so segments 
+//  where the latter exceeds SUBDIVISION_MAX_ERROR divide at every pixel (see exact_pixels) 
+//  and the error stays below a pixel, see PerspectiveSubdivisionBenchmark.
+    private void subdivided_span(final int kind, int i0, int to, int last, float z1_inv, float dz_inv, 
+                                 float udz1, float dudz, float vdz1, float dvdz, 
+                                 float rdz1, float drdz, float gdz1, float dgdz, float bdz1, float dbdz) {
+        final int n = subdivision;
+        final float n_inv = 1f / n;
+        final boolean modulate = this.modulate;
+        if (last == 0)
+            dz_inv = dudz = dvdz = drdz = dgdz = dbdz = 0f; // a single pixel, the slopes may be infinite
+        float z_inv = z1_inv;
+        int k = 0;
+//      exact values at the first pixel k0 of the segment and at the first pixel k1 of the next one
+        int k0 = 0, k1 = Math.min(n, last);
+        float z = 1f / (z1_inv + k0 * dz_inv);
+        float u = (udz1 + k0 * dudz) * z, v = (vdz1 + k0 * dvdz) * z;
+        float r = (rdz1 + k0 * drdz) * z, gr = (gdz1 + k0 * dgdz) * z, b = (bdz1 + k0 * dbdz) * z;
+        z = 1f / (z1_inv + k1 * dz_inv);
+        float nu = (udz1 + k1 * dudz) * z, nv = (vdz1 + k1 * dvdz) * z;
+        float nr = (rdz1 + k1 * drdz) * z, ng = (gdz1 + k1 * dgdz) * z, nb = (bdz1 + k1 * dbdz) * z;
+        int i = i0 + k;
+        for (;;) {
+//          the division for the segment after this one is started before its pixels, so it runs 
+//          while they are written and its result is ready when it is needed
+            final int k2 = Math.min(k1 + n, last);
+            z = 1f / (z1_inv + k2 * dz_inv);
+            final float scale = k1 - k0 == n ? n_inv : k1 > k0 ? 1f / (k1 - k0) : 0f;
+            final int du = make_fixed_16x16((nu - u) * scale), dv = make_fixed_16x16((nv - v) * scale);
+            final int dr = make_fixed_16x16((nr - r) * scale), dg = make_fixed_16x16((ng - gr) * scale);
+            final int db = make_fixed_16x16((nb - b) * scale);
+//          fixed point values with the rounding added, so ">>> 16" rounds them
+            final int skip = k - k0;
+            int fu = make_fixed_16x16(u) + skip * du + HALF_16x16, fv = make_fixed_16x16(v) + skip * dv + HALF_16x16;
+            int fr = make_fixed_16x16(r) + skip * dr + HALF_16x16, fg = make_fixed_16x16(gr) + skip * dg + HALF_16x16;
+            int fb = make_fixed_16x16(b) + skip * db + HALF_16x16;
+            final int end = Math.min(k1 == last ? last : k1 - 1, to);
+            final int len = k1 - k0;
+            if (len * len * Math.abs(dz_inv) > SUBDIVISION_MAX_ERROR * (2f * z1_inv + (k0 + k1) * dz_inv)) {
+                z_inv = exact_pixels(kind, i, k, end, z_inv, dz_inv, udz1, dudz, vdz1, dvdz, rdz1, drdz, gdz1, dgdz, bdz1, dbdz);
+                i += end + 1 - k;
+                k = end + 1;
+            } else switch (kind) {
+                case FILL_INTERPOLATE_COLOR:
+                    for (; k <= end; k++, i++) {
+                        if (z_buff[i] < z_inv) {
+                            g.plotToHash(i, rgb(fr >>> 16, fg >>> 16, fb >>> 16));
+                            z_buff[i] = z_inv;
+                        }
+                        z_inv += dz_inv;
+                        fr += dr;
+                        fg += dg;
+                        fb += db;
+                    }
+                    break;
+                case FILL_TEXTURED:
+                    for (; k <= end; k++, i++) {
+                        if (z_buff[i] < z_inv) {
+                            z_buff[i] = z_inv;
+                            if (modulate) {
+                                g.plotToHash(i, color);
+                                g.modulateInHash(i, texel(fu >>> 16, fv >>> 16));
+                            } else {
+                                g.plotToHash(i, texel(fu >>> 16, fv >>> 16));
+                            }
+                        }
+                        z_inv += dz_inv;
+                        fu += du;
+                        fv += dv;
+                    }
+                    break;
+                default:
+                    for (; k <= end; k++, i++) {
+                        if (z_buff[i] < z_inv) {
+                            g.plotToHash(i, texel(fu >>> 16, fv >>> 16));
+                            g.modulateInHash(i, rgb(fr >>> 16, fg >>> 16, fb >>> 16));
+                            z_buff[i] = z_inv;
+                        }
+                        z_inv += dz_inv;
+                        fu += du;
+                        fv += dv;
+                        fr += dr;
+                        fg += dg;
+                        fb += db;
+                    }
+            }
+            if (k > to)
+                break;
+            k0 = k1;
+            k1 = k2;
+            u = nu;
+            v = nv;
+            r = nr;
+            gr = ng;
+            b = nb;
+            nu = (udz1 + k1 * dudz) * z;
+            nv = (vdz1 + k1 * dvdz) * z;
+            nr = (rdz1 + k1 * drdz) * z;
+            ng = (gdz1 + k1 * dgdz) * z;
+            nb = (bdz1 + k1 * dbdz) * z;
+        }
+    }
+    
+//  Pixels k..end of subdivided_span with a division at every pixel, returns 1/z after the last one.
+    private float exact_pixels(final int kind, int i, int k, int end, float z_inv, float dz_inv, 
+                               float udz1, float dudz, float vdz1, float dvdz, 
+                               float rdz1, float drdz, float gdz1, float dgdz, float bdz1, float dbdz) {
+        for (; k <= end; k++, i++) {
+            if (z_buff[i] < z_inv) {
+                final float z = 1f / z_inv;
+                z_buff[i] = z_inv;
+                if (kind == FILL_INTERPOLATE_COLOR) {
+                    g.plotToHash(i, rgb(roundPositive((rdz1 + k * drdz) * z), roundPositive((gdz1 + k * dgdz) * z), roundPositive((bdz1 + k * dbdz) * z)));
+                } else {
+                    final int t = texel(roundPositive((udz1 + k * dudz) * z), roundPositive((vdz1 + k * dvdz) * z));
+                    if (kind == FILL_TEXTURED_INTERPOLATE_COLOR) {
+                        g.plotToHash(i, t);
+                        g.modulateInHash(i, rgb(roundPositive((rdz1 + k * drdz) * z), roundPositive((gdz1 + k * dgdz) * z), roundPositive((bdz1 + k * dbdz) * z)));
+                    } else if (modulate) {
+                        g.plotToHash(i, color);
+                        g.modulateInHash(i, t);
+                    } else {
+                        g.plotToHash(i, t);
+                    }
+                }
+            }
+            z_inv += dz_inv;
+        }
+        return z_inv;
+    }
+    
+//  Span of any kind (also depth-only and deferred) for the integer depth formats. The quantized
+//  depth is interpolated in 32.32 fixed point from the quantized 1/z of the first pixel to that
+//  of the last pixel "last", so it stays inside [0, depth_max] and a tile starting at "from"
+//  gets the same values as the whole screen. The depth test is an integer compare, 1/z is
+//  still stepped as a float for the perspective correction. The depth pre-pass stores q - 1,
+//  see depth_span, and the G-buffer gets the 1/z of the stored q, see depthAt().
+    private void int_span(final int kind, int i0, int to, int last, float z1_inv, float dz_inv,
+                          float udz, float dudz, float vdz, float dvdz,
+                          float rdz, float drdz, float gdz, float dgdz, float bdz, float dbdz) {
+        if (last == 0)
+            dz_inv = dudz = dvdz = drdz = dgdz = dbdz = 0f; // a single pixel, the slopes may be infinite
+        final int q1 = quantize(z1_inv), q2 = quantize(z1_inv + last * dz_inv);
+        final long dq = last == 0 ? 0L : ((long) (q2 - q1) << 32) / last;
+        long fq = ((long) q1 << 32) + (1L << 31);
+        float z_inv = z1_inv;
+        final char[] z16 = z_buff16;
+        final byte[] z24 = z_buff24;
+        final boolean depth_only = this.depth_only, modulate = this.modulate;
+        final GBuffer gb = kind == FILL_INTERPOLATE_COLOR || kind == FILL_TEXTURED_INTERPOLATE_COLOR ? gbuffer : null;
+        float z;
+        for (int k = 0, i = i0;;) {
+            final int q = (int) (fq >> 32);
+            if ((z16 != null ? z16[i] : depth24(z24, i)) < q) {
+                final int stored = depth_only ? q - 1 : q;
+                if (z16 != null)
+                    z16[i] = (char) stored;
+                else
+                    store_depth24(z24, i, stored);
+                if (!depth_only) {
+                    z = kind == FILL ? 0f : 1f / z_inv;
+                    if (gb != null) {
+                        gb.z_inv[i] = dequantize(q);
+                        gb.nx[i] = rdz * z;
+                        gb.ny[i] = gdz * z;
+                        gb.nz[i] = bdz * z;
+                        gb.material[i] = gbuf_material;
+                        if (kind == FILL_TEXTURED_INTERPOLATE_COLOR)
+                            g.plotToHash(i, texel(roundPositive(z * udz), roundPositive(z * vdz)));
+                    } else {
+                        switch (kind) {
+                            case FILL:
+                                g.plotToHash(i, color);
+                                break;
+                            case FILL_INTERPOLATE_COLOR:
+                                g.plotToHash(i, rgb(roundPositive(rdz * z), roundPositive(gdz * z), roundPositive(bdz * z)));
+                                break;
+                            case FILL_TEXTURED:
+                                if (modulate) {
+                                    g.plotToHash(i, color);
+                                    g.modulateInHash(i, texel(roundPositive(z * udz), roundPositive(z * vdz)));
+                                } else {
+                                    g.plotToHash(i, texel(roundPositive(z * udz), roundPositive(z * vdz)));
+                                }
+                                break;
+                            default:
+                                g.plotToHash(i, texel(roundPositive(z * udz), roundPositive(z * vdz)));
+                                g.modulateInHash(i, rgb(roundPositive(rdz * z), roundPositive(gdz * z), roundPositive(bdz * z)));
+                        }
+                    }
+                }
+            }
+            if (++k > to)
                 break;
+            i++;
+            fq += dq;
             z_inv += dz_inv;
             udz += dudz;
             vdz += dvdz;
             rdz += drdz;
             gdz += dgdz;
             bdz += dbdz;
+        }
+    }
+    
+//  Depth pre-pass version of a span: only z_buff is written. The 1/z values are computed exactly 
+//  as the shading span computes them ("vector" tells which way it goes), but stored one ulp farther, 
+//  so in the shading pass the depth test "z_buff[i] < z_inv" passes for the visible triangle only 
+//  and after that pixel is shaded it fails for everything else.
+    private void depth_span(int i0, int to, float z1_inv, float dz_inv, boolean vector) {
+        if (vector) {
+            for (int k = 0; k <= to; k++) {
+                float z_inv = (float) k * dz_inv + z1_inv;
+                if (z_buff[i0 + k] < z_inv)
+                    z_buff[i0 + k] = next_down(z_inv);
+            }
+            return;
+        }
+        float z_inv = z1_inv;
+        int k = 0;
+        for (;;) {
+            if (z_buff[i0 + k] < z_inv)
+                z_buff[i0 + k] = next_down(z_inv);
+            if (++k > to)
+                break;
+            z_inv += dz_inv;
+        }
+    }
+    
+//  Math.nextDown for values that passed the depth test (not NaN and not -infinity), 
+//  without the checks of Math.nextDown, which is too slow for the inner loop
+    private static float next_down(float z_inv) {
+        int bits = Float.floatToRawIntBits(z_inv);
+        if (z_inv > 0f)
+            return Float.intBitsToFloat(bits - 1);
+        if (z_inv < 0f)
+            return Float.intBitsToFloat(bits + 1);
+        return -Float.MIN_VALUE;
+    }
+    
+//  Deferred version of the interpolate color spans, (r, g, b) hold the normal premultiplied by 1/z. 
+//  The visible pixels get the normal and gbuf_material in the G-buffer, textured ones also 
+//  the texel in the color buffer, which is modulated by the light later. As in depth_span 
+//  "vector" tells how the forward span would compute 1/z, so that the depth pre-pass matches.
+    private void gbuffer_span(int i0, int to, float z1_inv, float dz_inv, 
+                              float ndz_x, float dndz_x, float ndz_y, float dndz_y, float ndz_z, float dndz_z, 
+                              float udz, float dudz, float vdz, float dvdz, boolean textured, boolean vector) {
+        final GBuffer gb = gbuffer;
+        final int material = gbuf_material;
+        float z_inv = z1_inv;
+        for (int k = 0, i = i0;;) {
+            if (vector)
+                z_inv = (float) k * dz_inv + z1_inv;
+            if (z_buff[i] < z_inv) {
+                float z = 1f / z_inv;
+                z_buff[i] = z_inv;
+                gb.z_inv[i] = z_inv;
+                gb.nx[i] = ndz_x * z;
+                gb.ny[i] = ndz_y * z;
+                gb.nz[i] = ndz_z * z;
+                gb.material[i] = material;
+                if (textured)
+                    g.plotToHash(i, texel(roundPositive(z * udz), roundPositive(z * vdz)));
+            }
+            if (++k > to)
+                break;
             i++;
+            z_inv += dz_inv;
+            ndz_x += dndz_x;
+            ndz_y += dndz_y;
+            ndz_z += dndz_z;
+            udz += dudz;
+            vdz += dvdz;
+        }
+    }
+    
+//  The texture coordinates are given in texels of the full size texture. For a mipmapped 
+//  IntBitmap the level is chosen per triangle from the ratio of its area in texels to its 
+//  area in pixels: level k has 4^k times less texels, so it is round(log2(ratio) / 2).
+    private void set_texture(Bitmap texture, int x1, int y1, float u1, float v1, int x2, int y2, float u2, float v2, int x3, int y3, float u3, float v3) {
+        tex = texture;
+        level_su = level_sv = 1f;
+        if (!(texture instanceof Bitmap.IntBitmap)) {
+            texels = null;
+            return;
+        }
+        final Bitmap.IntBitmap bmp = (Bitmap.IntBitmap) texture;
+        texels_tiled = bmp.getLayout() == TextureLayout.TILED;
+        int level = 0;
+        if (bmp.numLevels() > 1) {
+            float tex_area = Math.abs((u2 - u1) * (v3 - v1) - (u3 - u1) * (v2 - v1));
+            float screen_area = Math.abs((float) (x2 - x1) * (y3 - y1) - (float) (x3 - x1) * (y2 - y1)) / (SUBPIXEL_SIZE * SUBPIXEL_SIZE);
+            if (screen_area > 0f && tex_area > screen_area) // round(log2(ratio) / 2) = (floor(log2(ratio)) + 1) / 2
+                level = Math.min((Math.getExponent(tex_area / screen_area) + 1) >> 1, bmp.numLevels() - 1);
+        }
+        if (level == 0) {
+            texels = bmp.data();
+            texels_w = texels_tiled ? Bitmap.IntBitmap.tiles(bmp.getWidth()) : bmp.getWidth();
+            return;
+        }
+        final int lw = bmp.levelWidth(level);
+        texels = bmp.levelData(level);
+        texels_w = texels_tiled ? Bitmap.IntBitmap.tiles(lw) : lw;
+        if (bmp.getWidth() > 1)
+            level_su = (lw - 1f) / (bmp.getWidth() - 1f);
+        if (bmp.getHeight() > 1)
+            level_sv = (bmp.levelHeight(level) - 1f) / (bmp.getHeight() - 1f);
+    }
+    
+//  IntBitmap texels are read from the array, other bitmaps through the interface. 
+//  Same addressing as Bitmap.IntBitmap.index().
+    private int texel(int u, int v) {
+        final int[] texels = this.texels;
+        if (texels == null)
+            return tex.getRGB(u, v);
+        if (texels_tiled)
+            return texels[(((v >> TILE_BITS) * texels_w + (u >> TILE_BITS)) << (2 * TILE_BITS)) | MORTON[u & (TILE - 1)] | (MORTON[v & (TILE - 1)] << 1)];
+        return texels[v * texels_w + u];
+    }
+    
+//  plots the visible pixels returned by SpanKernels.texture()
+    private void plot_texels(int i0, int n, boolean modulate) {
+        for (int k = 0; k < n; k++) {
+            int i = i0 + vec_offs[k];
+            if (modulate) {
+                g.plotToHash(i, color);
+                g.modulateInHash(i, texel(vec_u[k], vec_v[k]));
+            } else {
+                g.plotToHash(i, texel(vec_u[k], vec_v[k]));
+            }
+        }
+    }
+    
+//  plots the visible pixels returned by SpanKernels.textureInterpolateColor()
+    private void plot_texels_modulated(int i0, int n) {
+        for (int k = 0; k < n; k++) {
+            int i = i0 + vec_offs[k];
+            g.plotToHash(i, texel(vec_u[k], vec_v[k]));
+            g.modulateInHash(i, vec_rgb[k]);
         }
     }
     
@@ -1624,10 +1846,7 @@ class Rasterizer3D {
         float z_inv = z1_inv;
         final float dz_inv = (z2_inv - z1_inv) / (x2 - x1);
         for (int x = x1;;) {
-            if (z_buff[i] < z_inv) {
-                g.plotToHash(i);
-                z_buff[i] = z_inv;
-            }
+            line_pixel(i, z_inv);
             if (++x > x2)
                 break;
             z_inv += dz_inv;
@@ -1734,27 +1953,34 @@ class Rasterizer3D {
         return code;
     }
     
-    private static class TriPoint {
+//  Walks the pixel rows crossed by the 28.4 edge from (x0, y0) down to (x1, y1), y0 < y1. 
+//  x is the first pixel of the current row whose center is not left of the edge. The crossing 
+//  is kept as an integer part and a remainder, so x is exact in every row and a walk started 
+//  at a later row (by another tile) gives the same pixels.
+    private static class Edge {
         
-        int x, y;
-        float z, z_inv;
+        int x;
+        private int step_x;
+        private long rem, step_rem, den;
         
-        float u, v;
-        
-        float r, g, b;
-        float nx, ny, nz;
-        
-        double angle;
-        boolean angle_calc;
+        void start(int x0, int y0, int x1, int y1, int row) {
+            final long dx = x1 - x0, dy = y1 - y0;
+            den = dy << SUBPIXEL_BITS;
+//          the crossing of the row is (x0 * dy + (row * SUBPIXEL_SIZE - y0) * dx) / den pixels, rounded up
+            final long num = x0 * dy + (((long) row << SUBPIXEL_BITS) - y0) * dx + den - 1;
+            x = (int) Math.floorDiv(num, den);
+            rem = Math.floorMod(num, den);
+            step_x = (int) Math.floorDiv(dx << SUBPIXEL_BITS, den);
+            step_rem = Math.floorMod(dx << SUBPIXEL_BITS, den);
+        }
         
-        double angle_rel_to(TriPoint p) {
-            if (angle_calc)
-                return angle;
-            float px = x - p.x;
-            float py = y - p.y;
-            angle = Math.atan2(-py, px);
-            angle_calc = true;
-            return angle;
+        void next() {
+            x += step_x;
+            rem += step_rem;
+            if (rem >= den) {
+                rem -= den;
+                x++;
+            }
         }
         
     }
@@ -1,15 +1,32 @@
 package render;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 import static render.Graphics.rgb;
+import render.Graphics.DefaultGraphics;
 import render.Light.AmbientLight;
 import render.Light.DirectionLight;
 import render.Light.PointLight;
-import static render.MathUtils.round;
 import render.Vector3f.vec3;
 
 /**
+ *
+ * Concurrency: a Renderer is not thread-safe, but it keeps all its scratch state
+ * (the temporary vectors, the vertex cache, the z buffer, the shadow maps) to
+ * itself and the package has no mutable static state, so several Renderers with
+ * their own Graphics can render at the same time on different threads. While
+ * they do, the objects they share are only read and must not be modified:
+ * cameras, scenes, lights, materials and textures. A model may be shared if
+ * translateModelIntoWorldSpace() of its instances does not write it and its
+ * reset() writes nothing (IndexedMesh.reset() writes only after colors were set
+ * through its views), a model that is moved into the world space in place needs
+ * a copy per Renderer. Tiled rasterization may share one ForkJoinPool between
+ * the Renderers.
  *
  * @author Texhnolyze
  */
@@ -22,23 +39,82 @@ public class Renderer {
     private final List<PointLight> pointLights = new ArrayList<>();
     
     private int strokeRGB; // if no shade -- this color will be used int triangle stroke
+    private boolean depth_pre_pass;
     
     private Camera curr_camera;
     private Scene curr_scene;
     private Model curr_model;
+    
+//  Models put into the world space by the current render(Camera, Scene) call and the instance 
+//  each one is in the world space of. A model is transformed once for all passes of the frame 
+//  (again only if instances share it) and reset when the call ends, see world_model().
+    private final Map<Model, ModelInstance> world_models = new IdentityHashMap<>();
     private Bitmap curr_tex;
-    private Material curr_mat;
+    private MaterialLighting curr_lighting; // of the material of the current instance or deferred pixel
     private float tex_w, tex_h;
     
-    private int curr_face_idx;
+    private int num_visible_objs;
+    private ModelInstance[] visible_objs = new ModelInstance[256];
+    private long[] visible_obj_keys = new long[256]; // depth and index, see add_visible
+    
+    private final BVH static_bvh = new BVH();
+    private Scene static_bvh_scene; // scene the hierarchy was built for
+    
+    private int curr_face_idx; // number of visible faces
     private Face[] temp_faces = new Face[1024];
+    private int[] tri_slots = new int[3 * 1024]; // vertex cache slots of the corners of the visible faces
+    private float[] tri_uv = new float[6 * 1024]; // texture coordinates of the corners, scaled to the texture size
+    private int[] tri_rgb = new int[1024]; // color of the face in FLAT mode
+    
+    private final VertexCache cache = new VertexCache();
+    
+//  With many point lights they are binned into screen tiles once per render call, 
+//  a sample is then lit only by the lights of its tile, see light()
+    private static final int MIN_BINNED_LIGHTS = 8;
+    private final LightBins light_bins = new LightBins();
+    private boolean lights_binned;
+    
+//  enabled point lights that can reach the current instance, in the order of pointLights
+    private PointLight[] active_lights = new PointLight[16];
+    private int[] active_light_index = new int[16]; // index in pointLights
+    private int num_active_lights;
+    
+//  The products of the material and light colors are computed once per render call and material. 
+//  Specular tables are shared by the materials of the same shininess, the least recently used are dropped.
+    private static final int MAX_SPECULAR_TABLES = 32;
+    private final SpecularTable.Cache specular_tables = new SpecularTable.Cache(MAX_SPECULAR_TABLES);
+    private final Map<Material, MaterialLighting> lightings = new IdentityHashMap<>();
+    private MaterialLighting[] lighting_pool = new MaterialLighting[16];
+    private int num_lightings;
+    
+//  PHONG instances are rasterized into the G-buffer and lit by resolve_deferred(), 
+//  deferred_mats are the materials referenced from it and [deferred_x0, deferred_x1] x 
+//  [deferred_y0, deferred_y1] bounds the pixels that may be pending
+    private GBuffer gbuffer;
+    private MaterialLighting[] deferred_mats = new MaterialLighting[16];
+    private int num_deferred_mats;
+    private boolean[] deferred_receivers = new boolean[16]; // isShadowReceiver() of the entries of deferred_mats
+    private int deferred_x0 = Integer.MAX_VALUE, deferred_y0 = Integer.MAX_VALUE, deferred_x1 = -1, deferred_y1 = -1;
+    
+//  Shadow maps of the lights that cast shadows are kept between the frames, so the static 
+//  casters are drawn again only when the light or the static objects change, see ShadowMap. 
+//  shadow_lights and shadow_maps_active are the maps used by the current render(Camera, Scene) call.
+    private int shadow_map_size = 1024;
+    private final Map<Light<?>, ShadowMap> shadow_maps = new IdentityHashMap<>();
+    private Light<?>[] shadow_lights = new Light<?>[4];
+    private ShadowMap[] shadow_maps_active = new ShadowMap[4];
+    private int num_shadow_lights;
+    private int static_version; // changed by invalidateStaticObjects()
+    private boolean curr_receiver; // the current instance or deferred pixel is shadowed
     
     private final vec3 
             temp_vec1 = new vec3(), 
             temp_vec2 = new vec3(), 
             rgb_vec = new vec3(),
             norm_vec = new vec3(),
-            point_vec = new vec3();
+            point_vec = new vec3(),
+            ray_vec = new vec3(),
+            ray_dx_vec = new vec3();
     
     
     public Renderer(Graphics g) {
@@ -53,10 +129,131 @@ public class Renderer {
         rasterizer.clearZBuffer();
     }
     
+//  Starts a frame without writing the z buffer and the graphics: the depth of the previous 
+//  frames becomes stale and counts as empty, every 8x8 block of the z buffer is cleared only 
+//  when something is drawn into it. endFrame() then gives the background color to the pixels 
+//  nothing was drawn to, so the graphics needs no clear() either. Pixels written to the 
+//  graphics directly (not by the renderer) in between may be overwritten by endFrame().
+    public void beginFrame() {
+        rasterizer.invalidateZBuffer();
+    }
+    
+//  Writes the default color of the DefaultGraphics (BLACK for other graphics) to the pixels 
+//  that were not drawn since beginFrame(), call it before the image is presented. It reads 
+//  the depth of every block that was drawn into, so a frame that covers the whole screen 
+//  is faster with beginFrame() alone. The finished frame can be handed to a FrameExporter.
+    public void endFrame() {
+        Graphics g = rasterizer.getGraphics();
+        rasterizer.updateGraphics();
+        rasterizer.fillEmpty(g instanceof DefaultGraphics ? ((DefaultGraphics) g).getDefaultColor() : Graphics.BLACK);
+    }
+    
     public Graphics getGraphics() {
         return rasterizer.getGraphics();
     }
     
+//  Triangles are sorted into 64x64 screen tiles and the tiles are rasterized 
+//  in parallel on the given pool. The output is the same as without tiling.
+    public void enableTiledRasterization(ForkJoinPool pool) {
+        if (pool == null)
+            throw new IllegalArgumentException("pool is null");
+        rasterizer.setTiled(new TiledRasterizer(rasterizer, pool));
+    }
+    
+    public void disableTiledRasterization() {
+        rasterizer.setTiled(null);
+    }
+    
+    public boolean isTiledRasterizationEnabled() {
+        return rasterizer.isTiled();
+    }
+    
+    public TriangleTraversal getTriangleTraversal() {
+        return rasterizer.getTraversal();
+    }
+    
+    public void setTriangleTraversal(TriangleTraversal traversal) {
+        if (traversal == null)
+            throw new IllegalArgumentException("traversal is null");
+        rasterizer.setTraversal(traversal);
+    }
+    
+//  With subdivision n > 0 the scanline spans of the textured and GOURAUD fills compute the
+//  perspective correct texture coordinates and colors only at every n-th pixel and interpolate
+//  them linearly in between, which removes most divisions from the inner loop. 0 (default)
+//  divides at every pixel. Spans done by the vectorized kernels, the HALF_SPACE traversal
+//  and the integer depth formats stay exact.
+//  Error: a segment whose z changes so much that the linear steps would shift the texture
+//  by more than half a pixel divides at every pixel instead, so the texture is off by less
+//  than a pixel (PerspectiveSubdivisionBenchmark: at most 0.96 px, 0.002 - 0.09 px on average).
+//  Cost: the segment test and the fallback take back what the saved divisions gain, a
+//  division is cheap on current JVMs and no n was faster than exact spans in that benchmark
+//  (0.8 - 0.9 times their speed), the mode only pays off where a division is slow.
+    public int getPerspectiveSubdivision() {
+        return rasterizer.getSubdivision();
+    }
+    
+    public void setPerspectiveSubdivision(int n) {
+        if (n != 0 && (n < 2 || n > 64 || (n & (n - 1)) != 0))
+            throw new IllegalArgumentException("subdivision must be 0 or a power of two in [2, 64]");
+        rasterizer.setSubdivision(n);
+    }
+    
+//  SIMD span kernels need jdk.incubator.vector module, 
+//  without it the scalar loops are always used. They support only the FLOAT depth format.
+    public static boolean isVectorizedSpansSupported() {
+        return SpanKernels.isSupported();
+    }
+    
+    public boolean isVectorizedSpansEnabled() {
+        return rasterizer.isVectorSpans();
+    }
+    
+    public void setVectorizedSpansEnabled(boolean enabled) {
+        rasterizer.setVectorSpans(enabled);
+    }
+    
+//  With the depth pre-pass every instance is rasterized twice: first only into the 
+//  z buffer, then with shading, where only the pixels that remain visible are shaded. 
+//  Pays off when overdraw is high and the shade mode is expensive (GOURAUD, textures).
+    public boolean isDepthPrePassEnabled() {
+        return depth_pre_pass;
+    }
+    
+    public void setDepthPrePassEnabled(boolean enabled) {
+        depth_pre_pass = enabled;
+    }
+    
+//  DEPTH_16 and DEPTH_24 quantize 1/z over the near and far planes of the camera
+//  of the render call, so less memory is read and written per pixel (2 and 3 bytes 
+//  instead of 4, DEPTH_24 pays for it with packing and unpacking 3 bytes per access). 
+//  Fragments beyond the far plane are not drawn in them. Changing the format clears the z buffer.
+//  Both integer formats are currently slower than FLOAT: their spans are scalar, they use neither 
+//  the vector span kernels nor the perspective subdivision, so the saved bandwidth does not pay 
+//  off (DEPTH_24 takes about twice the time of FLOAT, see DepthFormatBenchmark).
+    public DepthFormat getDepthFormat() {
+        return rasterizer.getDepthFormat();
+    }
+    
+    public void setDepthFormat(DepthFormat format) {
+        if (format == null)
+            throw new IllegalArgumentException("format is null");
+        if (format != rasterizer.getDepthFormat())
+            rasterizer.setDepthFormat(format);
+    }
+    
+//  Resolution of the shadow maps of direction lights, 
+//  point lights use six maps of the half resolution.
+    public int getShadowMapSize() {
+        return shadow_map_size;
+    }
+    
+    public void setShadowMapSize(int size) {
+        if (size < 16)
+            throw new IllegalArgumentException("shadow map size must be >= 16");
+        shadow_map_size = size;
+    }
+    
     public List<AmbientLight> getAmbientLights() {return ambLights;}
     public List<DirectionLight> getDirectionLights() {return dirLights;}
     public List<PointLight> getPointLights() {return pointLights;}
@@ -69,75 +266,564 @@ public class Renderer {
         strokeRGB = rgb;
     }
     
+//  Renders all objects of the scene, the light sources of the scene are used 
+//  together with the lights of the renderer. Instances outside of the camera 
+//  frustum are skipped, the rest is drawn front to back, so that most of 
+//  the hidden pixels fail the depth test before they are shaded.
+//  Static objects are culled through a bounding volume hierarchy, 
+//  see invalidateStaticObjects(). Shadows are drawn only by this method, 
+//  see Light.enableShadows(). The models stay in the world space from their first 
+//  pass to the end of the call and are reset once, see world_model().
+    public void render(Camera c, Scene scene) {
+        curr_scene = scene;
+        int num_amb = ambLights.size(), num_dir = dirLights.size(), num_point = pointLights.size();
+        for (Light<?> l : scene.getLightSources()) {
+            if (l instanceof AmbientLight) 
+                ambLights.add((AmbientLight) l);
+            else if (l instanceof DirectionLight) 
+                dirLights.add((DirectionLight) l);
+            else if (l instanceof PointLight)
+                pointLights.add((PointLight) l);
+        }
+        begin_lighting();
+        try {
+            if (static_bvh_scene != scene) {
+                static_bvh.build(scene.getStaticObjects());
+                static_bvh_scene = scene;
+            }
+            num_visible_objs = 0;
+            for (int i = 0, n = static_bvh.cull(c); i < n; i++) 
+                add_visible(c, static_bvh.visible(i));
+            for (ModelInstance instance : scene.getDynamicObjects()) {
+                if (!instance.testAABB() || c.testAABB(instance.getAABB()))
+                    add_visible(c, instance);
+            }
+            Arrays.sort(visible_obj_keys, 0, num_visible_objs);
+            update_shadow_maps(scene);
+            bin_lights(c);
+            if (depth_pre_pass) {
+                rasterizer.setDepthOnly(true);
+                try {
+                    for (int i = 0; i < num_visible_objs; i++) 
+                        render_instance(c, visible_objs[(int) visible_obj_keys[i]], true);
+                } finally {
+                    rasterizer.setDepthOnly(false);
+                }
+            }
+            for (int i = 0; i < num_visible_objs; i++) {
+                int idx = (int) visible_obj_keys[i];
+                render_instance(c, visible_objs[idx], false);
+                visible_objs[idx] = null;
+            }
+            resolve_deferred(c);
+        } finally {
+            ambLights.subList(num_amb, ambLights.size()).clear();
+            dirLights.subList(num_dir, dirLights.size()).clear();
+            pointLights.subList(num_point, pointLights.size()).clear();
+            Arrays.fill(shadow_lights, 0, num_shadow_lights, null);
+            Arrays.fill(shadow_maps_active, 0, num_shadow_lights, null);
+            num_shadow_lights = 0;
+            curr_receiver = false;
+            curr_scene = null;
+            for (Model model : world_models.keySet())
+                model.reset();
+            world_models.clear();
+        }
+    }
+    
+//  Static objects of the scene are kept in a bounding volume hierarchy, which is 
+//  built on the first render of the scene. Call this method after the static 
+//  objects or their AABBs were changed.
+    public void invalidateStaticObjects() {
+        static_bvh_scene = null;
+        static_version++;
+    }
+    
+//  Draws the shadow maps of the enabled lights that cast shadows 
+//  and drops the maps of the lights that no longer do.
+    private void update_shadow_maps(Scene scene) {
+        num_shadow_lights = 0;
+        for (DirectionLight l : dirLights) {
+            if (!l.enabled || !l.shadows)
+                continue;
+            ShadowMap sm = shadow_map(l, shadow_map_size, false);
+            sm.setDirectional(scene, static_version, l.dir.x, l.dir.y, l.dir.z);
+            if (!sm.hasStaticBounds()) {
+                sm.beginStaticBounds();
+                for (ModelInstance instance : scene.getStaticObjects()) {
+                    if (instance.isShadowCaster() || instance.isShadowReceiver())
+                        grow_shadow_bounds(sm, instance);
+                }
+                sm.endStaticBounds();
+            }
+            sm.beginBounds();
+            for (ModelInstance instance : scene.getDynamicObjects()) {
+                if (instance.isShadowCaster() || instance.isShadowReceiver())
+                    grow_shadow_bounds(sm, instance);
+            }
+            if (!sm.fit())
+                continue; // nothing to shadow
+            draw_shadow_map(scene, l, sm);
+        }
+        for (PointLight l : pointLights) {
+            if (!l.enabled || !l.shadows)
+                continue;
+            ShadowMap sm = shadow_map(l, Math.max(shadow_map_size / 2, 16), true);
+            sm.setPoint(scene, static_version, l.pos.x, l.pos.y, l.pos.z, l.radius);
+            draw_shadow_map(scene, l, sm);
+        }
+        if (shadow_maps.size() > num_shadow_lights) {
+            for (Iterator<Light<?>> it = shadow_maps.keySet().iterator(); it.hasNext();) {
+                if (!is_shadow_light(it.next()))
+                    it.remove();
+            }
+        }
+    }
+    
+    private ShadowMap shadow_map(Light<?> l, int size, boolean cube) {
+        ShadowMap sm = shadow_maps.get(l);
+        if (sm == null || sm.size != size || sm.cube != cube) {
+            sm = new ShadowMap(size, cube);
+            shadow_maps.put(l, sm);
+        }
+        return sm;
+    }
+    
+//  Draws the casters that can reach the map into it, the static ones only if their cached depth is invalid. 
+//  Then adds the light to the shadow lights of this frame.
+    private void draw_shadow_map(Scene scene, Light<?> l, ShadowMap sm) {
+        if (!sm.begin()) {
+            for (ModelInstance instance : scene.getStaticObjects()) {
+                if (instance.isShadowCaster() && reaches(l, instance))
+                    draw_shadow_caster(sm, instance);
+            }
+            sm.saveStatic();
+        }
+        for (ModelInstance instance : scene.getDynamicObjects()) {
+            if (instance.isShadowCaster() && reaches(l, instance)) {
+                sm.markDynamic();
+                draw_shadow_caster(sm, instance);
+            }
+        }
+        if (num_shadow_lights == shadow_lights.length) {
+            shadow_lights = Arrays.copyOf(shadow_lights, 2 * num_shadow_lights);
+            shadow_maps_active = Arrays.copyOf(shadow_maps_active, 2 * num_shadow_lights);
+        }
+        shadow_lights[num_shadow_lights] = l;
+        shadow_maps_active[num_shadow_lights++] = sm;
+    }
+    
+    private boolean is_shadow_light(Light<?> l) {
+        for (int i = 0; i < num_shadow_lights; i++) {
+            if (shadow_lights[i] == l)
+                return true;
+        }
+        return false;
+    }
+    
+//  false if the instance is outside the sphere of a point light
+    private static boolean reaches(Light<?> l, ModelInstance instance) {
+        if (!(l instanceof PointLight) || !instance.testAABB())
+            return true;
+        PointLight pl = (PointLight) l;
+        AABB aabb = instance.getAABB();
+        float dx = Math.max(Math.max(aabb.posX() - pl.pos.x, pl.pos.x - aabb.posX() - aabb.width()), 0f);
+        float dy = Math.max(Math.max(aabb.posY() - pl.pos.y, pl.pos.y - aabb.posY() - aabb.height()), 0f);
+        float dz = Math.max(Math.max(aabb.posZ() - pl.pos.z, pl.pos.z - aabb.posZ() - aabb.depth()), 0f);
+        return dx * dx + dy * dy + dz * dz <= pl.radiusSquare;
+    }
+    
+    private void grow_shadow_bounds(ShadowMap sm, ModelInstance instance) {
+        if (instance.testAABB()) {
+            AABB aabb = instance.getAABB();
+            sm.growBounds(aabb.posX(), aabb.posY(), aabb.posZ(), 
+                aabb.posX() + aabb.width(), aabb.posY() + aabb.height(), aabb.posZ() + aabb.depth());
+            return;
+        }
+        Model model = world_model(instance);
+        for (Vertex v : model.vertices()) 
+            sm.growBounds(v.pos().x(), v.pos().y(), v.pos().z());
+        release_model(model);
+    }
+    
+//  both sides of every face are drawn, so the caster does not need to be closed
+    private void draw_shadow_caster(ShadowMap sm, ModelInstance instance) {
+        Model model = world_model(instance);
+        if (model instanceof IndexedMesh) {
+            final float[] pos = ((IndexedMesh) model).positions;
+            final int[] idx = ((IndexedMesh) model).indices;
+            for (int i = 0; i < idx.length; i += 3) {
+                int p1 = 3 * idx[i], p2 = 3 * idx[i + 1], p3 = 3 * idx[i + 2];
+                sm.drawTriangle(
+                    pos[p1], pos[p1 + 1], pos[p1 + 2], 
+                    pos[p2], pos[p2 + 1], pos[p2 + 2], 
+                    pos[p3], pos[p3 + 1], pos[p3 + 2]
+                );
+            }
+        } else {
+            for (Face f : model.faces()) {
+                Vector3f a = f.vertex1().pos(), b = f.vertex2().pos(), d = f.vertex3().pos();
+                sm.drawTriangle(a.x(), a.y(), a.z(), b.x(), b.y(), b.z(), d.x(), d.y(), d.z());
+            }
+        }
+        sm.endCaster();
+        release_model(model);
+    }
+    
+//  Returns the model of the instance in the world space. Inside render(Camera, Scene) it is 
+//  transformed only if it is not yet in the space of this instance, outside of it every call 
+//  transforms it and release_model() resets it.
+    private Model world_model(ModelInstance instance) {
+        Model model = instance.getModel();
+        if (curr_scene == null) {
+            instance.translateModelIntoWorldSpace();
+            return model;
+        }
+        ModelInstance owner = world_models.put(model, instance);
+        if (owner != instance) {
+            if (owner != null)
+                model.reset(); // in the space of another instance
+            instance.translateModelIntoWorldSpace();
+        }
+        return model;
+    }
+    
+    private void release_model(Model model) {
+        if (curr_scene == null)
+            model.reset();
+    }
+    
+//  true if the light is blocked at the world space point by a shadow caster
+    private boolean shadowed(Light<?> l, vec3 point) {
+        for (int i = 0; i < num_shadow_lights; i++) {
+            if (shadow_lights[i] == l)
+                return shadow_maps_active[i].shadowed(point.x, point.y, point.z);
+        }
+        return false; // nothing to shadow
+    }
+    
+//  the light colors may have changed since the last render call
+    private void begin_lighting() {
+        lightings.clear();
+        for (int i = 0; i < num_lightings; i++)
+            lighting_pool[i].clear();
+        num_lightings = 0;
+    }
+    
+    private MaterialLighting lighting_of(Material mat) {
+        MaterialLighting ml = lightings.get(mat);
+        if (ml != null)
+            return ml;
+        if (num_lightings == lighting_pool.length)
+            lighting_pool = Arrays.copyOf(lighting_pool, 2 * num_lightings);
+        ml = lighting_pool[num_lightings];
+        if (ml == null)
+            ml = lighting_pool[num_lightings] = new MaterialLighting();
+        num_lightings++;
+        ml.set(mat, specular_tables.get(mat.getShininess()), ambLights, dirLights, pointLights);
+        lightings.put(mat, ml);
+        return ml;
+    }
+    
+    private void bin_lights(Camera c) {
+        lights_binned = pointLights.size() >= MIN_BINNED_LIGHTS;
+        if (lights_binned)
+            light_bins.build(c, pointLights, rasterizer.getGraphics().getWidth(), rasterizer.getGraphics().getHeight());
+    }
+    
+//  the deferred pixels belong to many instances, so all enabled lights are active
+    private void collect_active_lights_all() {
+        Arrays.fill(active_lights, 0, num_active_lights, null);
+        num_active_lights = 0;
+        for (int k = 0, n = pointLights.size(); k < n; k++) {
+            PointLight l = pointLights.get(k);
+            if (l.enabled)
+                add_active_light(l, k);
+        }
+    }
+    
+//  Fills active_lights with the enabled point lights whose sphere intersects the AABB of the instance, 
+//  or with all of them if the instance has no AABB. Done once per instance instead of per vertex.
+    private void collect_active_lights(ModelInstance instance) {
+        Arrays.fill(active_lights, 0, num_active_lights, null);
+        num_active_lights = 0;
+        final AABB aabb = instance.testAABB() ? instance.getAABB() : null;
+        float min_x = 0f, min_y = 0f, min_z = 0f, max_x = 0f, max_y = 0f, max_z = 0f;
+        if (aabb != null) {
+            min_x = aabb.posX();
+            min_y = aabb.posY();
+            min_z = aabb.posZ();
+            max_x = min_x + aabb.width();
+            max_y = min_y + aabb.height();
+            max_z = min_z + aabb.depth();
+        }
+        for (int k = 0, n = pointLights.size(); k < n; k++) {
+            PointLight l = pointLights.get(k);
+            if (!l.enabled)
+                continue;
+            if (aabb != null) {
+//              squared distance from the light to the nearest point of the box
+                float dx = Math.max(Math.max(min_x - l.pos.x, l.pos.x - max_x), 0f);
+                float dy = Math.max(Math.max(min_y - l.pos.y, l.pos.y - max_y), 0f);
+                float dz = Math.max(Math.max(min_z - l.pos.z, l.pos.z - max_z), 0f);
+                if (dx * dx + dy * dy + dz * dz > l.radiusSquare)
+                    continue;
+            }
+            add_active_light(l, k);
+        }
+    }
+    
+    private void add_active_light(PointLight l, int index) {
+        if (num_active_lights == active_lights.length) {
+            active_lights = Arrays.copyOf(active_lights, 2 * num_active_lights);
+            active_light_index = Arrays.copyOf(active_light_index, 2 * num_active_lights);
+        }
+        active_light_index[num_active_lights] = index;
+        active_lights[num_active_lights++] = l;
+    }
+    
+//  Light tile of the screen point at the view depth z, -1 (only active_lights) if the lights 
+//  are not binned or the point is not inside the screen or in front of the near plane.
+    private int light_tile(float sx, float sy, float z) {
+        if (!lights_binned || !(z >= curr_camera.getNear()))
+            return -1;
+        return light_bins.tileOf(sx, sy);
+    }
+    
+//  Appends the instance to visible_objs. The sort key holds the view depth of 
+//  the AABB center in the high bits and the index in the low bits, 
+//  instances without AABB get the largest depth.
+    private void add_visible(Camera c, ModelInstance instance) {
+        float depth = Float.POSITIVE_INFINITY;
+        if (instance.testAABB()) {
+            AABB aabb = instance.getAABB();
+            depth = 
+                (aabb.posX() + 0.5f * aabb.width() - c.pos.x) * c.dir.x + 
+                (aabb.posY() + 0.5f * aabb.height() - c.pos.y) * c.dir.y + 
+                (aabb.posZ() + 0.5f * aabb.depth() - c.pos.z) * c.dir.z;
+        }
+        if (num_visible_objs == visible_objs.length) {
+            visible_objs = Arrays.copyOf(visible_objs, 2 * num_visible_objs);
+            visible_obj_keys = Arrays.copyOf(visible_obj_keys, 2 * num_visible_objs);
+        }
+        int bits = Float.floatToIntBits(depth);
+        bits ^= (bits >> 31) & 0x7fffffff; // negative floats in the int order
+        visible_objs[num_visible_objs] = instance;
+        visible_obj_keys[num_visible_objs] = ((long) bits << 32) | num_visible_objs;
+        num_visible_objs++;
+    }
+    
     public void render(Camera c, ModelInstance instance) {
         if (instance.testAABB()) {
             if (!c.testAABB(instance.getAABB()))
                 return;
         }
+        begin_lighting();
+        bin_lights(c);
+        if (depth_pre_pass) {
+            rasterizer.setDepthOnly(true);
+            try {
+                render_instance(c, instance, true);
+            } finally {
+                rasterizer.setDepthOnly(false);
+            }
+        }
+        render_instance(c, instance, false);
+        resolve_deferred(c);
+    }
+    
+//  In the depth pass the triangles go through the same fill methods as in the shading pass, 
+//  so that the rasterizer computes exactly the same depth values, but nothing is lit.
+    private void render_instance(Camera c, ModelInstance instance, boolean depth_pass) {
+        if (depth_pass && instance.getShadeMode() == ShadeMode.NO_SHADE && !instance.texture())
+            return; // strokes only
         curr_camera = c;
+        rasterizer.updateGraphics();
+        rasterizer.setDepthRange(c.getNear(), c.getFar());
         curr_tex = instance.getTexture();
-        curr_mat = instance.getMaterial();
         final boolean texture = instance.texture();
         final ShadeMode shadeMode = instance.getShadeMode();
-        instance.translateModelIntoWorldSpace();
-        curr_model = instance.getModel();
+        curr_model = world_model(instance);
         if (texture) {
             tex_w = curr_tex.getWidth() - 1;
             tex_h = curr_tex.getHeight() - 1;
         }
-        if (curr_model.numFaces() > temp_faces.length)
-            temp_faces = new Face[2 * curr_model.numFaces()];
+        int n = curr_model.numFaces();
+        if (n > temp_faces.length) {
+            temp_faces = new Face[2 * n];
+            tri_slots = new int[6 * n];
+            tri_uv = new float[12 * n];
+            tri_rgb = new int[2 * n];
+        }
+        final int w = rasterizer.getGraphics().getWidth(), h = rasterizer.getGraphics().getHeight();
+        final ShadeMode lighting = depth_pass ? ShadeMode.NO_SHADE : shadeMode;
+        if (lighting == ShadeMode.FLAT || lighting == ShadeMode.GOURAUD)
+            collect_active_lights(instance);
+        curr_lighting = lighting != ShadeMode.NO_SHADE ? lighting_of(instance.getMaterial()) : null;
+        curr_receiver = num_shadow_lights != 0 && lighting != ShadeMode.NO_SHADE && instance.isShadowReceiver();
+        if (curr_model instanceof IndexedMesh) 
+            prepare_indexed(c, (IndexedMesh) curr_model, lighting, texture, w, h);
+        else 
+            prepare_faces(c, lighting, texture, w, h);
+        if (lighting == ShadeMode.PHONG) {
+            begin_deferred(texture, w, h);
+            try {
+                rasterize(shadeMode, texture);
+            } finally {
+                rasterizer.setGBuffer(null);
+            }
+        } else {
+            rasterize(shadeMode, texture);
+        }
+        rasterizer.updateHierarchicalZ();
+        release_model(curr_model);
+        curr_face_idx = 0;
+    }
+    
+//  Fills the visible faces of a Face based model into tri_* and the vertex cache,
+//  the slots of the vertices are found by identity.
+    private void prepare_faces(Camera c, ShadeMode lighting, boolean texture, int w, int h) {
+        cache.reset(curr_model.numVertices());
         for (Face f : curr_model.faces()) {
             if (!f.isTwoFaced()) { // try to cull face
-                Vector3f n = f.norm(); 
+                vec3 n = f.norm(norm_vec); 
                 if (MathUtils.dot(c.pos.x - f.vertex1().pos().x(), c.pos.y - f.vertex1().pos().y(), c.pos.z - f.vertex1().pos().z(), n.x(), n.y(), n.z()) <= 0.0f) 
                     continue;   
             }
-            temp_faces[curr_face_idx++] = f;
+            int i = curr_face_idx++;
+            temp_faces[i] = f;
+            tri_slots[3 * i] = cache.slotOf(f.vertex1());
+            tri_slots[3 * i + 1] = cache.slotOf(f.vertex2());
+            tri_slots[3 * i + 2] = cache.slotOf(f.vertex3());
+            if (texture) {
+                tri_uv[6 * i] = tex_w * f.u1();
+                tri_uv[6 * i + 1] = tex_h * f.v1();
+                tri_uv[6 * i + 2] = tex_w * f.u2();
+                tri_uv[6 * i + 3] = tex_h * f.v2();
+                tri_uv[6 * i + 4] = tex_w * f.u3();
+                tri_uv[6 * i + 5] = tex_h * f.v3();
+            }
         }
-        switch (shadeMode) {
+//      lighting is done in the world space with the positions of the vertices, 
+//      the screen positions in the cache only select the light tile
+        cache.transform(c, w, h);
+        switch (lighting) {
             case FLAT:
-                for (int i = 0; i < curr_face_idx; i++) 
-                    lightFace(temp_faces[i]);
-                break;
-            case GOURAUD:
                 for (int i = 0; i < curr_face_idx; i++) {
                     Face f = temp_faces[i];
-                    Vertex v0 = f.vertex1(), v1 = f.vertex2(), v2 = f.vertex3();
-                    if (!v0.lighted()) lightVertex(v0);
-                    if (!v1.lighted()) lightVertex(v1);
-                    if (!v2.lighted()) lightVertex(v2);
+                    light(rgb_vec, f.getMediPoint(point_vec), f.norm(norm_vec), curr_camera.pos, -1);
+                    tri_rgb[i] = rgb(rgb_vec.x, rgb_vec.y, rgb_vec.z);
+                }
+                break;
+            case GOURAUD:
+                for (int s = 0; s < cache.size; s++) {
+                    Vertex v = cache.vertexOf(s);
+                    light(rgb_vec, point_vec.set(v.pos()), norm_vec.set(v.norm()), curr_camera.pos, 
+                        light_tile(cache.pos[3 * s], cache.pos[3 * s + 1], cache.z[s]));
+                    cache.setRGB(s, rgb_vec.x, rgb_vec.y, rgb_vec.z);
+                }
+                break;
+            case PHONG:
+                for (int s = 0; s < cache.size; s++) {
+                    Vector3f n = cache.vertexOf(s).norm();
+                    cache.setNormal(s, n.x(), n.y(), n.z());
                 }
                 break;
         }
-        c.toViewSpace(curr_model.vertices());
-        c.project(curr_model.vertices(), rasterizer.getGraphics().getWidth(), rasterizer.getGraphics().getHeight());
+    }
+    
+//  Same as prepare_faces, but all data is read from the flat arrays of the mesh 
+//  and the slots are the vertex indices. The mesh arrays are never written.
+    private void prepare_indexed(Camera c, IndexedMesh mesh, ShadeMode lighting, boolean texture, int w, int h) {
+        final float[] pos = mesh.positions, norm = mesh.normals, uv = mesh.uvs;
+        final int[] idx = mesh.indices;
+        final int nv = mesh.numVertices(), nf = mesh.numFaces();
+        if (texture && uv == null)
+            throw new IllegalStateException("textured instance of a mesh without texture coordinates");
+        cache.reset(nv);
+        cache.size = nv;
+        final float cx = c.pos.x, cy = c.pos.y, cz = c.pos.z;
+        final boolean cull = !mesh.isTwoFaced();
+        for (int f = 0, i = 0; f < nf; f++, i += 3) {
+            int a = idx[i], b = idx[i + 1], d = idx[i + 2];
+            int p1 = 3 * a, p2 = 3 * b, p3 = 3 * d;
+            float x02 = pos[p3] - pos[p1], y02 = pos[p3 + 1] - pos[p1 + 1], z02 = pos[p3 + 2] - pos[p1 + 2];
+            float x01 = pos[p2] - pos[p1], y01 = pos[p2 + 1] - pos[p1 + 1], z01 = pos[p2 + 2] - pos[p1 + 2];
+            float nx = y01 * z02 - z01 * y02, ny = z01 * x02 - x01 * z02, nz = x01 * y02 - y01 * x02;
+            if (cull && MathUtils.dot(cx - pos[p1], cy - pos[p1 + 1], cz - pos[p1 + 2], nx, ny, nz) <= 0.0f)
+                continue;
+            int t = curr_face_idx++;
+            tri_slots[3 * t] = a;
+            tri_slots[3 * t + 1] = b;
+            tri_slots[3 * t + 2] = d;
+            if (texture) {
+                tri_uv[6 * t] = tex_w * uv[2 * a];
+                tri_uv[6 * t + 1] = tex_h * uv[2 * a + 1];
+                tri_uv[6 * t + 2] = tex_w * uv[2 * b];
+                tri_uv[6 * t + 3] = tex_h * uv[2 * b + 1];
+                tri_uv[6 * t + 4] = tex_w * uv[2 * d];
+                tri_uv[6 * t + 5] = tex_h * uv[2 * d + 1];
+            }
+            switch (lighting) {
+                case FLAT:
+                    norm_vec.set(nx, ny, nz).normalize();
+                    point_vec.set(
+                        (pos[p1] + pos[p2] + pos[p3]) / 3f, 
+                        (pos[p1 + 1] + pos[p2 + 1] + pos[p3 + 1]) / 3f, 
+                        (pos[p1 + 2] + pos[p2 + 2] + pos[p3 + 2]) / 3f
+                    );
+                    light(rgb_vec, point_vec, norm_vec, curr_camera.pos, -1);
+                    tri_rgb[t] = rgb(rgb_vec.x, rgb_vec.y, rgb_vec.z);
+                    break;
+            }
+        }
+        if (curr_face_idx == 0)
+            return;
+        cache.transform(c, pos, w, h);
+        switch (lighting) {
+            case GOURAUD: // after the transformation, which gives the light tiles
+                for (int k = 0, n = 3 * curr_face_idx; k < n; k++)
+                    light_mesh_vertex(pos, norm, tri_slots[k]);
+                break;
+            case PHONG:
+                System.arraycopy(norm, 0, cache.rgb, 0, 3 * nv);
+                break;
+        }
+    }
+    
+    private void light_mesh_vertex(float[] pos, float[] norm, int v) {
+        if (!cache.markLit(v))
+            return;
+        int i = 3 * v;
+        light(rgb_vec, point_vec.set(pos[i], pos[i + 1], pos[i + 2]), norm_vec.set(norm[i], norm[i + 1], norm[i + 2]), curr_camera.pos, 
+            light_tile(cache.pos[i], cache.pos[i + 1], cache.z[v]));
+        cache.setRGB(v, rgb_vec.x, rgb_vec.y, rgb_vec.z);
+    }
+    
+//  Triangle setup only reads the vertex cache and tri_* arrays.
+    private void rasterize(ShadeMode shadeMode, boolean texture) {
+        final int[] sx = cache.sx, sy = cache.sy, slots = tri_slots;
+        final float[] z = cache.z, rgb = cache.rgb, uv = tri_uv;
         switch (shadeMode) {
             case NO_SHADE:
                 if (texture) {
                     for (int i = 0; i < curr_face_idx; i++) {
-                        Face f = temp_faces[i];
-                        Vector3f v0 = f.vertex1().pos();
-                        Vector3f v1 = f.vertex2().pos();
-                        Vector3f v2 = f.vertex3().pos();
+                        int a = slots[3 * i], b = slots[3 * i + 1], d = slots[3 * i + 2], t = 6 * i;
                         rasterizer.fillTexturedTriangle(
-                            round(v0.x()), round(v0.y()), v0.z(), tex_w * f.u1(), tex_h * f.v1(), 
-                            round(v1.x()), round(v1.y()), v1.z(), tex_w * f.u2(), tex_h * f.v2(), 
-                            round(v2.x()), round(v2.y()), v2.z(), tex_w * f.u3(), tex_h * f.v3(), 
+                            sx[a], sy[a], z[a], uv[t], uv[t + 1], 
+                            sx[b], sy[b], z[b], uv[t + 2], uv[t + 3], 
+                            sx[d], sy[d], z[d], uv[t + 4], uv[t + 5], 
                             curr_tex, false
                         );
                     }
                 } else {
-                    rasterizer.getGraphics().setColor(strokeRGB);
+                    rasterizer.setColor(strokeRGB);
                     for (int i = 0; i < curr_face_idx; i++) {
-                        Face f = temp_faces[i];
-                        Vector3f v0 = f.vertex1().pos();
-                        Vector3f v1 = f.vertex2().pos();
-                        Vector3f v2 = f.vertex3().pos();
+                        int a = slots[3 * i], b = slots[3 * i + 1], d = slots[3 * i + 2];
                         rasterizer.strokeTriangle(
-                            round(v0.x()), round(v0.y()), v0.z(), 
-                            round(v1.x()), round(v1.y()), v1.z(), 
-                            round(v2.x()), round(v2.y()), v2.z()
+                            sx[a], sy[a], z[a], 
+                            sx[b], sy[b], z[b], 
+                            sx[d], sy[d], z[d]
                         );
                     }
                 }
@@ -145,87 +831,143 @@ public class Renderer {
             case FLAT:
                 if (texture) {
                     for (int i = 0; i < curr_face_idx; i++) {
-                        Face f = temp_faces[i];
-                        rasterizer.getGraphics().setColor(rgb(f.getTempRed(), f.getTempGreen(), f.getTempBlue()));
+                        int a = slots[3 * i], b = slots[3 * i + 1], d = slots[3 * i + 2], t = 6 * i;
+                        rasterizer.setColor(tri_rgb[i]);
                         rasterizer.fillTexturedTriangle(
-                            round(f.vertex1().pos().x()), round(f.vertex1().pos().y()), f.vertex1().pos().z(), tex_w * f.u1(), tex_h * f.v1(), 
-                            round(f.vertex2().pos().x()), round(f.vertex2().pos().y()), f.vertex2().pos().z(), tex_w * f.u2(), tex_h * f.v2(), 
-                            round(f.vertex3().pos().x()), round(f.vertex3().pos().y()), f.vertex3().pos().z(), tex_w * f.u3(), tex_h * f.v3(),
+                            sx[a], sy[a], z[a], uv[t], uv[t + 1], 
+                            sx[b], sy[b], z[b], uv[t + 2], uv[t + 3], 
+                            sx[d], sy[d], z[d], uv[t + 4], uv[t + 5], 
                             curr_tex, true
                         );
                     }
                 } else {
                     for (int i = 0; i < curr_face_idx; i++) {
-                        Face f = temp_faces[i];
-                        rasterizer.getGraphics().setColor(rgb(f.getTempRed(), f.getTempGreen(), f.getTempBlue()));
+                        int a = slots[3 * i], b = slots[3 * i + 1], d = slots[3 * i + 2];
+                        rasterizer.setColor(tri_rgb[i]);
                         rasterizer.fillTriangle(
-                            round(f.vertex1().pos().x()), round(f.vertex1().pos().y()), f.vertex1().pos().z(), 
-                            round(f.vertex2().pos().x()), round(f.vertex2().pos().y()), f.vertex2().pos().z(), 
-                            round(f.vertex3().pos().x()), round(f.vertex3().pos().y()), f.vertex3().pos().z()
+                            sx[a], sy[a], z[a], 
+                            sx[b], sy[b], z[b], 
+                            sx[d], sy[d], z[d]
                         );
                     }
                 }
                 break;
             case GOURAUD:
+            case PHONG: // the rasterizer interpolates the normals instead of the colors, see begin_deferred
                 if (texture) {
                     for (int i = 0; i < curr_face_idx; i++) {
-                        Face f = temp_faces[i];
+                        int a = slots[3 * i], b = slots[3 * i + 1], d = slots[3 * i + 2], t = 6 * i;
                         rasterizer.fillTexturedTriangleInterpolateColor(
-                            round(f.vertex1().pos().x()), round(f.vertex1().pos().y()), f.vertex1().pos().z(), tex_w * f.u1(), tex_h * f.v1(), 255f * f.vertex1().getTempRed(), 255f * f.vertex1().getTempGreen(), 255f * f.vertex1().getTempBlue(), 
-                            round(f.vertex2().pos().x()), round(f.vertex2().pos().y()), f.vertex2().pos().z(), tex_w * f.u2(), tex_h * f.v2(), 255f * f.vertex2().getTempRed(), 255f * f.vertex2().getTempGreen(), 255f * f.vertex2().getTempBlue(),
-                            round(f.vertex3().pos().x()), round(f.vertex3().pos().y()), f.vertex3().pos().z(), tex_w * f.u3(), tex_h * f.v3(), 255f * f.vertex3().getTempRed(), 255f * f.vertex3().getTempGreen(), 255f * f.vertex3().getTempBlue(), 
+                            sx[a], sy[a], z[a], uv[t], uv[t + 1], rgb[3 * a], rgb[3 * a + 1], rgb[3 * a + 2], 
+                            sx[b], sy[b], z[b], uv[t + 2], uv[t + 3], rgb[3 * b], rgb[3 * b + 1], rgb[3 * b + 2], 
+                            sx[d], sy[d], z[d], uv[t + 4], uv[t + 5], rgb[3 * d], rgb[3 * d + 1], rgb[3 * d + 2], 
                             curr_tex 
                         );
                     }
                 } else {
                     for (int i = 0; i < curr_face_idx; i++) {
-                        Face f = temp_faces[i];
+                        int a = slots[3 * i], b = slots[3 * i + 1], d = slots[3 * i + 2];
                         rasterizer.fillTriangleInterpolateColor(
-                            round(f.vertex1().pos().x()), round(f.vertex1().pos().y()), f.vertex1().pos().z(), 255f * f.vertex1().getTempRed(), 255f * f.vertex1().getTempGreen(), 255f * f.vertex1().getTempBlue(), 
-                            round(f.vertex2().pos().x()), round(f.vertex2().pos().y()), f.vertex2().pos().z(), 255f * f.vertex2().getTempRed(), 255f * f.vertex2().getTempGreen(), 255f * f.vertex2().getTempBlue(),
-                            round(f.vertex3().pos().x()), round(f.vertex3().pos().y()), f.vertex3().pos().z(), 255f * f.vertex3().getTempRed(), 255f * f.vertex3().getTempGreen(), 255f * f.vertex3().getTempBlue() 
+                            sx[a], sy[a], z[a], rgb[3 * a], rgb[3 * a + 1], rgb[3 * a + 2], 
+                            sx[b], sy[b], z[b], rgb[3 * b], rgb[3 * b + 1], rgb[3 * b + 2], 
+                            sx[d], sy[d], z[d], rgb[3 * d], rgb[3 * d + 1], rgb[3 * d + 2]
                         );
                     }
                 }
                 break;
         }
-        curr_model.reset();
-        curr_face_idx = 0;
     }
     
-//  the face is lighting in the world space
-    private void lightFace(Face f) {
-        light(rgb_vec, point_vec.set(f.getMediPoint()), norm_vec.set(f.norm()), curr_camera.pos);
-        f.setTempRGB(rgb_vec.x, rgb_vec.y, rgb_vec.z);
+//  Switches the rasterizer to the G-buffer for the current instance and 
+//  grows the pending bounds by the screen bounds of its visible vertices.
+    private void begin_deferred(boolean texture, int w, int h) {
+        if (gbuffer == null || gbuffer.w != w || gbuffer.h != h)
+            gbuffer = new GBuffer(w, h);
+        if (num_deferred_mats == 0 || deferred_mats[num_deferred_mats - 1] != curr_lighting 
+                || deferred_receivers[num_deferred_mats - 1] != curr_receiver) {
+            if (num_deferred_mats == deferred_mats.length) {
+                deferred_mats = Arrays.copyOf(deferred_mats, 2 * num_deferred_mats);
+                deferred_receivers = Arrays.copyOf(deferred_receivers, 2 * num_deferred_mats);
+            }
+            deferred_receivers[num_deferred_mats] = curr_receiver;
+            deferred_mats[num_deferred_mats++] = curr_lighting;
+        }
+        final int[] sx = cache.sx, sy = cache.sy, slots = tri_slots;
+        for (int k = 0, n = 3 * curr_face_idx; k < n; k++) {
+            int s = slots[k];
+            deferred_x0 = Math.min(deferred_x0, MathUtils.floor_fixed_28x4(sx[s]));
+            deferred_x1 = Math.max(deferred_x1, MathUtils.ceil_fixed_28x4(sx[s]));
+            deferred_y0 = Math.min(deferred_y0, MathUtils.floor_fixed_28x4(sy[s]));
+            deferred_y1 = Math.max(deferred_y1, MathUtils.ceil_fixed_28x4(sy[s]));
+        }
+        rasterizer.setGBufferMaterial((num_deferred_mats - 1) << 1 | (texture ? 1 : 0));
+        rasterizer.setGBuffer(gbuffer);
     }
     
-    private void lightVertex(Vertex v) {
-        light(rgb_vec, point_vec.set(v.pos()), norm_vec.set(v.norm()), curr_camera.pos);
-        v.setTempRGB(rgb_vec.x, rgb_vec.y, rgb_vec.z);
+//  Lights every pending pixel of the G-buffer that was not overwritten by a later 
+//  triangle, so the lighting is done once per visible pixel regardless of the overdraw. 
+//  The world space point is restored from the pixel position and its depth.
+    private void resolve_deferred(Camera c) {
+        if (deferred_x1 < 0)
+            return;
+        rasterizer.flush();
+        final GBuffer gb = gbuffer;
+        final Graphics g = rasterizer.getGraphics();
+        final int w = gb.w, h = gb.h;
+        final int x0 = Math.max(deferred_x0, 0), x1 = Math.min(deferred_x1, w - 1);
+        final int y0 = Math.max(deferred_y0, 0), y1 = Math.min(deferred_y1, h - 1);
+        final float near = c.getNear();
+        collect_active_lights_all();
+        c.screenRay(x0 + 1, 0, w, h, ray_dx_vec).sub(c.screenRay(x0, 0, w, h, ray_vec));
+        for (int y = y0; y <= y1; y++) {
+            c.screenRay(x0, y, w, h, ray_vec);
+            for (int x = x0, i = y * w + x0; x <= x1; x++, i++, ray_vec.add(ray_dx_vec)) {
+                int m = gb.material[i];
+                if (m == GBuffer.EMPTY)
+                    continue;
+                gb.material[i] = GBuffer.EMPTY;
+                if (rasterizer.depthAt(i) != gb.z_inv[i])
+                    continue;
+                float z = 1f / gb.z_inv[i];
+                curr_lighting = deferred_mats[m >> 1];
+                curr_receiver = deferred_receivers[m >> 1];
+                point_vec.set(c.pos.x + z * ray_vec.x, c.pos.y + z * ray_vec.y, c.pos.z + z * ray_vec.z);
+                norm_vec.set(gb.nx[i], gb.ny[i], gb.nz[i]).normalize();
+                light(rgb_vec, point_vec, norm_vec, c.pos, lights_binned && z >= near ? light_bins.tileOf(x, y) : -1);
+                if ((m & 1) != 0)
+                    g.modulateInHash(i, rgb(rgb_vec.x, rgb_vec.y, rgb_vec.z));
+                else
+                    g.plotToHash(i, rgb(rgb_vec.x, rgb_vec.y, rgb_vec.z));
+            }
+        }
+        Arrays.fill(deferred_mats, 0, num_deferred_mats, null);
+        num_deferred_mats = 0;
+        deferred_x0 = deferred_y0 = Integer.MAX_VALUE;
+        deferred_x1 = deferred_y1 = -1;
+        curr_receiver = false;
     }
     
-    void light(vec3 rgb, vec3 point, vec3 norm, vec3 view_pos) {
-        rgb.set(0f, 0f, 0f);
+//  Lights the point with the ambient and direction lights and with the point lights 
+//  in active_lights or in the list of the given tile of light_bins, whichever is shorter. 
+//  Both lists hold every light that can reach the point. Tile -1 means active_lights. 
+//  A light blocked by a shadow caster adds only its ambient term.
+    void light(vec3 rgb, vec3 point, vec3 norm, vec3 view_pos, int tile) {
+        final MaterialLighting ml = curr_lighting;
         view_pos.sub(point, temp_vec1).normalize();
         vec3 view_dir = temp_vec1; // vector directed at the observer
-        for (AmbientLight l : ambLights) {
-            if (!l.enabled) 
-                continue;
-            rgb.x += curr_mat.getAmbientRed() * l.r;
-            rgb.y += curr_mat.getAmbientGreen() * l.g;
-            rgb.z += curr_mat.getAmbientBlue() * l.b;
-        }
-        for (DirectionLight l : dirLights) {
+        rgb.set(ml.amb_r, ml.amb_g, ml.amb_b);
+        final float[] terms = ml.dir_terms;
+        for (int k = 0, t = 0, n = dirLights.size(); k < n; k++, t += 6) {
+            DirectionLight l = dirLights.get(k);
             if (!l.enabled)
                 continue;
-            rgb.x += curr_mat.getAmbientRed() * l.r;
-            rgb.y += curr_mat.getAmbientGreen() * l.g;
-            rgb.z += curr_mat.getAmbientBlue() * l.b;
+            if (curr_receiver && l.shadows && shadowed(l, point))
+                continue;
             float dp = l.dir_inv.dot(norm);
             if (dp > 0f) {
-                rgb.x += dp * curr_mat.getDiffuseRed() * l.r;
-                rgb.y += dp * curr_mat.getDiffuseGreen() * l.g;
-                rgb.z += dp * curr_mat.getDiffuseBlue() * l.b;
+                rgb.x += dp * terms[t];
+                rgb.y += dp * terms[t + 1];
+                rgb.z += dp * terms[t + 2];
             }
 //          note that, for example, for a cube whose side is 
 //          represented by two triangles, the specular lighting 
@@ -236,44 +978,58 @@ public class Renderer {
             vec3 light_dir_reflected = temp_vec2; 
             dp = light_dir_reflected.dot(view_dir);
             if (dp > 0f) {
-                float pow = (float) Math.pow(dp, curr_mat.getShininess());
-                rgb.x += pow * curr_mat.getSpecularRed() * l.r;
-                rgb.y += pow * curr_mat.getSpecularGreen() * l.g;
-                rgb.z += pow * curr_mat.getSpecularBlue() * l.b;
+                float pow = ml.spec.pow(dp);
+                rgb.x += pow * terms[t + 3];
+                rgb.y += pow * terms[t + 4];
+                rgb.z += pow * terms[t + 5];
             }
         }
-        for (PointLight l : pointLights) {
-            if (!l.enabled)
-                continue;
-            temp_vec2.set(l.pos).sub(point, temp_vec2);
-            vec3 light_dir = temp_vec2; // vector directed at the point light source
-            float d_sqr = light_dir.len2();
-            if (d_sqr > l.radiusSquare)
-                continue;
-            float d = (float) Math.sqrt(d_sqr);
-            float attenuation = 1f - d * l.radius_inv; // varies linearly
-            rgb.x += attenuation * curr_mat.getAmbientRed() * l.r;
-            rgb.y += attenuation * curr_mat.getAmbientGreen() * l.g;
-            rgb.z += attenuation * curr_mat.getAmbientBlue() * l.b;
-            light_dir.normalize_len_known(d);
-            float dp = light_dir.dot(norm);
-            if (dp > 0f) {
-                rgb.x += attenuation * dp * curr_mat.getDiffuseRed() * l.r;
-                rgb.y += attenuation * dp * curr_mat.getDiffuseGreen() * l.g;
-                rgb.z += attenuation * dp * curr_mat.getDiffuseBlue() * l.b;
-            }
-            light_dir.reflect(norm, light_dir); 
-            dp = light_dir.dot(view_dir);
-            if (dp > 0f) {
-                float pow = (float) Math.pow(dp, curr_mat.getShininess());
-                rgb.x += attenuation * pow * curr_mat.getSpecularRed() * l.r;
-                rgb.y += attenuation * pow * curr_mat.getSpecularGreen() * l.g;
-                rgb.z += attenuation * pow * curr_mat.getSpecularBlue() * l.b;
+        if (tile >= 0 && light_bins.tile_start[tile + 1] - light_bins.tile_start[tile] < num_active_lights) {
+            final PointLight[] lights = light_bins.lights;
+            final int[] tile_lights = light_bins.tile_lights, light_index = light_bins.light_index;
+            for (int k = light_bins.tile_start[tile], end = light_bins.tile_start[tile + 1]; k < end; k++) {
+                int i = tile_lights[k];
+                light_point(rgb, ml, lights[i], 9 * light_index[i], point, norm, view_dir);
             }
+        } else {
+            for (int k = 0; k < num_active_lights; k++)
+                light_point(rgb, ml, active_lights[k], 9 * active_light_index[k], point, norm, view_dir);
         }
         rgb.set(rgb.x > 1f ? 1f: rgb.x, rgb.y > 1f ? 1f: rgb.y, rgb.z > 1f ? 1f: rgb.z);
     }
     
+//  t is the offset of the light in ml.point_terms
+    private void light_point(vec3 rgb, MaterialLighting ml, PointLight l, int t, vec3 point, vec3 norm, vec3 view_dir) {
+        temp_vec2.set(l.pos).sub(point, temp_vec2);
+        vec3 light_dir = temp_vec2; // vector directed at the point light source
+        float d_sqr = light_dir.len2();
+        if (d_sqr > l.radiusSquare)
+            return;
+        final float[] terms = ml.point_terms;
+        float d = (float) Math.sqrt(d_sqr);
+        float attenuation = 1f - d * l.radius_inv; // varies linearly
+        rgb.x += attenuation * terms[t];
+        rgb.y += attenuation * terms[t + 1];
+        rgb.z += attenuation * terms[t + 2];
+        if (curr_receiver && l.shadows && shadowed(l, point))
+            return;
+        light_dir.normalize_len_known(d);
+        float dp = light_dir.dot(norm);
+        if (dp > 0f) {
+            rgb.x += attenuation * dp * terms[t + 3];
+            rgb.y += attenuation * dp * terms[t + 4];
+            rgb.z += attenuation * dp * terms[t + 5];
+        }
+        light_dir.reflect(norm, light_dir); 
+        dp = light_dir.dot(view_dir);
+        if (dp > 0f) {
+            float pow = attenuation * ml.spec.pow(dp);
+            rgb.x += pow * terms[t + 6];
+            rgb.y += pow * terms[t + 7];
+            rgb.z += pow * terms[t + 8];
+        }
+    }
+    
     
     
 }
@@ -9,6 +9,6 @@ public interface Scene {
     Iterable<ModelInstance> getStaticObjects();
     Iterable<ModelInstance> getDynamicObjects();
     
-    Iterable<Light> getLightSources();
+    Iterable<? extends Light> getLightSources(); // Iterable<Light<?>> too
     
 }
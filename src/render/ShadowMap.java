@@ -0,0 +1,342 @@
+package render;
+
+import static render.MathUtils.make_fixed_28x4;
+import static render.MathUtils.round;
+
+/**
+ *
+ * Depth of the shadow casters as seen from a light. A direction light has one
+ * orthographic view fitted to the bounds of the casters and receivers, a point
+ * light has a cube of six 90 degree perspective views around its position.
+ * Every view is a depth-only Rasterizer3D.
+ *
+ * The depth of the static casters is kept in a copy, so as long as neither the
+ * light nor the static objects change, a frame only has to restore the copy and
+ * draw the dynamic casters.
+ *
+ * @author Texhnolyze
+ */
+class ShadowMap {
+
+    private static final float NEAR = 1f / 64f; // near plane of the cube views relative to the radius
+    private static final float CLIP_SLACK = 1.01f; // cube views are clipped a bit wider, so no pixel between two views is lost
+    private static final float MARGIN = 0.05f; // the orthographic view is made larger, so small movements keep the static depth
+
+//  forward, right and up axes of the +x, -x, +y, -y, +z, -z cube views
+    private static final float[] CUBE_BASIS = {
+         1f,  0f,  0f,    0f,  0f, -1f,    0f,  1f,  0f,
+        -1f,  0f,  0f,    0f,  0f,  1f,    0f,  1f,  0f,
+         0f,  1f,  0f,    1f,  0f,  0f,    0f,  0f, -1f,
+         0f, -1f,  0f,    1f,  0f,  0f,    0f,  0f,  1f,
+         0f,  0f,  1f,    1f,  0f,  0f,    0f,  1f,  0f,
+         0f,  0f, -1f,   -1f,  0f,  0f,    0f,  1f,  0f
+    };
+
+    final int size;
+    final boolean cube;
+    private final Rasterizer3D[] views;
+    private final float[][] static_depth;
+    private final float[] basis; // forward, right, up per view
+
+//  point light
+    private float ox, oy, oz, near;
+    private float bias_factor; // depth bias per unit of distance, about two texels
+
+//  Direction light: the light space (u, v, d) = (right, up, forward) bounds of the casters
+//  and receivers, and the view: sx = (u - min_u) * scale_u, sy = (v - min_v) * scale_v,
+//  1/z = depth_c - d, so the depth is linear and larger for points nearer to the light.
+    private final float[] bounds = new float[6], static_bounds = new float[6];
+    private float min_u, max_u, min_v, max_v, min_d, max_d;
+    private float scale_u, scale_v, depth_c;
+    private float bias;
+
+//  light and static objects the cached data belongs to
+    private Scene key_scene;
+    private int key_version;
+    private final float[] key = new float[4];
+    private boolean static_bounds_valid, static_depth_valid;
+    private boolean has_dynamic; // the views contain more than the static depth
+
+    private final float[] clip_a = new float[3 * 9], clip_b = new float[3 * 9]; // clipped polygon, x, y, d per vertex
+    private final float[] tri = new float[9];
+
+    ShadowMap(int size, boolean cube) {
+        this.size = size;
+        this.cube = cube;
+        int n = cube ? 6 : 1;
+        views = new Rasterizer3D[n];
+        static_depth = new float[n][];
+        for (int i = 0; i < n; i++)
+            views[i] = new Rasterizer3D(size, size);
+        basis = cube ? CUBE_BASIS : new float[9];
+        bias_factor = 4f / (size - 1);
+    }
+
+//  Sets the light state and the static objects, returns false if they did not change.
+    private boolean set_key(Scene scene, int static_version, float a, float b, float c, float d) {
+        if (scene == key_scene && static_version == key_version && key[0] == a && key[1] == b && key[2] == c && key[3] == d)
+            return false;
+        key_scene = scene;
+        key_version = static_version;
+        key[0] = a;
+        key[1] = b;
+        key[2] = c;
+        key[3] = d;
+        static_bounds_valid = static_depth_valid = false;
+        return true;
+    }
+
+    void setDirectional(Scene scene, int static_version, float dir_x, float dir_y, float dir_z) {
+        if (!set_key(scene, static_version, dir_x, dir_y, dir_z, 0f))
+            return;
+        float ux = 0f, uy = 1f, uz = 0f;
+        if (Math.abs(dir_y) > 0.99f) {
+            ux = 1f;
+            uy = 0f;
+        }
+//      right = up x forward, up = forward x right
+        float rx = uy * dir_z - uz * dir_y, ry = uz * dir_x - ux * dir_z, rz = ux * dir_y - uy * dir_x;
+        float len_inv = (float) (1.0 / Math.sqrt(rx * rx + ry * ry + rz * rz));
+        rx *= len_inv;
+        ry *= len_inv;
+        rz *= len_inv;
+        basis[0] = dir_x;
+        basis[1] = dir_y;
+        basis[2] = dir_z;
+        basis[3] = rx;
+        basis[4] = ry;
+        basis[5] = rz;
+        basis[6] = dir_y * rz - dir_z * ry;
+        basis[7] = dir_z * rx - dir_x * rz;
+        basis[8] = dir_x * ry - dir_y * rx;
+    }
+
+    void setPoint(Scene scene, int static_version, float x, float y, float z, float radius) {
+        if (!set_key(scene, static_version, x, y, z, radius))
+            return;
+        ox = x;
+        oy = y;
+        oz = z;
+        near = radius * NEAR;
+    }
+
+//  ------------------ bounds of a direction light view ------------------
+
+    boolean hasStaticBounds() {
+        return static_bounds_valid;
+    }
+
+//  the following growBounds() calls collect the static bounds
+    void beginStaticBounds() {
+        for (int i = 0; i < 3; i++) {
+            bounds[i] = Float.POSITIVE_INFINITY;
+            bounds[i + 3] = Float.NEGATIVE_INFINITY;
+        }
+    }
+
+    void endStaticBounds() {
+        System.arraycopy(bounds, 0, static_bounds, 0, 6);
+        static_bounds_valid = true;
+    }
+
+//  the following growBounds() calls add the dynamic objects to the static bounds
+    void beginBounds() {
+        System.arraycopy(static_bounds, 0, bounds, 0, 6);
+    }
+
+    void growBounds(float min_x, float min_y, float min_z, float max_x, float max_y, float max_z) {
+        for (int k = 0; k < 8; k++)
+            growBounds((k & 1) == 0 ? min_x : max_x, (k & 2) == 0 ? min_y : max_y, (k & 4) == 0 ? min_z : max_z);
+    }
+
+    void growBounds(float x, float y, float z) {
+        float d = x * basis[0] + y * basis[1] + z * basis[2];
+        float u = x * basis[3] + y * basis[4] + z * basis[5];
+        float v = x * basis[6] + y * basis[7] + z * basis[8];
+        bounds[0] = Math.min(bounds[0], u);
+        bounds[1] = Math.min(bounds[1], v);
+        bounds[2] = Math.min(bounds[2], d);
+        bounds[3] = Math.max(bounds[3], u);
+        bounds[4] = Math.max(bounds[4], v);
+        bounds[5] = Math.max(bounds[5], d);
+    }
+
+//  Fits the direction light view to the bounds. Returns false if there is nothing to shadow.
+//  The view is kept if it still contains the bounds, so the static depth stays valid.
+    boolean fit() {
+        if (!(bounds[0] <= bounds[3] && bounds[1] <= bounds[4] && bounds[2] <= bounds[5]))
+            return false;
+        if (static_depth_valid && bounds[0] >= min_u && bounds[3] <= max_u && bounds[1] >= min_v && bounds[4] <= max_v
+                && bounds[2] >= min_d && bounds[5] <= max_d)
+            return true;
+        static_depth_valid = false;
+        float mu = Math.max(MARGIN * (bounds[3] - bounds[0]), 1e-3f);
+        float mv = Math.max(MARGIN * (bounds[4] - bounds[1]), 1e-3f);
+        float md = Math.max(MARGIN * (bounds[5] - bounds[2]), 1e-3f);
+        min_u = bounds[0] - mu;
+        max_u = bounds[3] + mu;
+        min_v = bounds[1] - mv;
+        max_v = bounds[4] + mv;
+        min_d = bounds[2] - md;
+        max_d = bounds[5] + md;
+        scale_u = (size - 1) / (max_u - min_u);
+        scale_v = (size - 1) / (max_v - min_v);
+        depth_c = max_d + (max_d - min_d); // keeps 1/z = depth_c - d away from zero
+        bias = 2f * Math.max(1f / scale_u, 1f / scale_v) + 0.002f * (max_d - min_d);
+        return true;
+    }
+
+//  ------------------ depth ------------------
+
+//  Starts a frame: restores the static depth and returns true if it is still valid,
+//  otherwise clears the views and returns false, then the static casters have to be
+//  drawn again followed by saveStatic().
+    boolean begin() {
+        if (static_depth_valid) {
+            if (has_dynamic) {
+                for (int i = 0; i < views.length; i++)
+                    views[i].loadZBuffer(static_depth[i]);
+                has_dynamic = false;
+            }
+            return true;
+        }
+        for (Rasterizer3D view : views)
+            view.clearZBuffer();
+        has_dynamic = false;
+        return false;
+    }
+
+    void saveStatic() {
+        for (int i = 0; i < views.length; i++) {
+            float[] z_buff = views[i].zBuffer();
+            if (static_depth[i] == null)
+                static_depth[i] = new float[z_buff.length];
+            System.arraycopy(z_buff, 0, static_depth[i], 0, z_buff.length);
+        }
+        static_depth_valid = true;
+    }
+
+//  call before a dynamic caster is drawn, the next begin() then restores the static depth
+    void markDynamic() {
+        has_dynamic = true;
+    }
+
+//  draws the world space triangle into all views
+    void drawTriangle(float x1, float y1, float z1, float x2, float y2, float z2, float x3, float y3, float z3) {
+        if (!cube) {
+            Rasterizer3D view = views[0];
+            to_light_space(0, x1, y1, z1, tri, 0);
+            to_light_space(0, x2, y2, z2, tri, 3);
+            to_light_space(0, x3, y3, z3, tri, 6);
+            view.fillTriangle(
+                make_fixed_28x4((tri[0] - min_u) * scale_u), make_fixed_28x4((tri[1] - min_v) * scale_v), 1f / (depth_c - tri[2]),
+                make_fixed_28x4((tri[3] - min_u) * scale_u), make_fixed_28x4((tri[4] - min_v) * scale_v), 1f / (depth_c - tri[5]),
+                make_fixed_28x4((tri[6] - min_u) * scale_u), make_fixed_28x4((tri[7] - min_v) * scale_v), 1f / (depth_c - tri[8])
+            );
+            return;
+        }
+        final float half = 0.5f * (size - 1);
+        for (int f = 0; f < 6; f++) {
+            to_light_space(f, x1 - ox, y1 - oy, z1 - oz, clip_a, 0);
+            to_light_space(f, x2 - ox, y2 - oy, z2 - oz, clip_a, 3);
+            to_light_space(f, x3 - ox, y3 - oy, z3 - oz, clip_a, 6);
+            int n = clip_to_view(3);
+            if (n < 3)
+                continue;
+//          the clipped polygon is convex, draw it as a fan
+            float[] p = clip_a;
+            int sx0 = make_fixed_28x4((1f + p[0] / p[2]) * half), sy0 = make_fixed_28x4((1f + p[1] / p[2]) * half);
+            for (int k = 1; k < n - 1; k++) {
+                int i = 3 * k, j = 3 * k + 3;
+                views[f].fillTriangle(
+                    sx0, sy0, p[2],
+                    make_fixed_28x4((1f + p[i] / p[i + 2]) * half), make_fixed_28x4((1f + p[i + 1] / p[i + 2]) * half), p[i + 2],
+                    make_fixed_28x4((1f + p[j] / p[j + 2]) * half), make_fixed_28x4((1f + p[j + 1] / p[j + 2]) * half), p[j + 2]
+                );
+            }
+        }
+    }
+
+//  call after all triangles of a caster are drawn
+    void endCaster() {
+        for (Rasterizer3D view : views)
+            view.updateHierarchicalZ();
+    }
+
+    private void to_light_space(int view, float x, float y, float z, float[] dest, int off) {
+        int b = 9 * view;
+        dest[off] = x * basis[b + 3] + y * basis[b + 4] + z * basis[b + 5];
+        dest[off + 1] = x * basis[b + 6] + y * basis[b + 7] + z * basis[b + 8];
+        dest[off + 2] = x * basis[b] + y * basis[b + 1] + z * basis[b + 2];
+    }
+
+//  Clips the polygon of n vertices in clip_a against the near plane and the four sides
+//  of a cube view, the result is left in clip_a. Returns the number of its vertices.
+    private int clip_to_view(int n) {
+        n = clip(n, 0f, 0f, 1f, -near);
+        n = clip(n, -1f, 0f, CLIP_SLACK, 0f);
+        n = clip(n, 1f, 0f, CLIP_SLACK, 0f);
+        n = clip(n, 0f, -1f, CLIP_SLACK, 0f);
+        return clip(n, 0f, 1f, CLIP_SLACK, 0f);
+    }
+
+//  keeps the part of the polygon where a * x + b * y + c * d + e >= 0
+    private int clip(int n, float a, float b, float c, float e) {
+        if (n < 3)
+            return 0;
+        final float[] src = clip_a, dest = clip_b;
+        int m = 0;
+        for (int k = 0; k < n; k++) {
+            int i = 3 * k, j = 3 * ((k + 1) % n);
+            float di = a * src[i] + b * src[i + 1] + c * src[i + 2] + e;
+            float dj = a * src[j] + b * src[j + 1] + c * src[j + 2] + e;
+            if (di >= 0f) {
+                dest[3 * m] = src[i];
+                dest[3 * m + 1] = src[i + 1];
+                dest[3 * m + 2] = src[i + 2];
+                m++;
+            }
+            if ((di >= 0f) != (dj >= 0f)) {
+                float t = di / (di - dj);
+                dest[3 * m] = src[i] + t * (src[j] - src[i]);
+                dest[3 * m + 1] = src[i + 1] + t * (src[j + 1] - src[i + 1]);
+                dest[3 * m + 2] = src[i + 2] + t * (src[j + 2] - src[i + 2]);
+                m++;
+            }
+        }
+        System.arraycopy(dest, 0, src, 0, 3 * m);
+        return m;
+    }
+
+//  ------------------ lookup ------------------
+
+//  true if a caster is between the light and the world space point
+    boolean shadowed(float x, float y, float z) {
+        if (!cube) {
+            to_light_space(0, x, y, z, tri, 0);
+            int sx = round((tri[0] - min_u) * scale_u), sy = round((tri[1] - min_v) * scale_v);
+            if (sx < 0 || sy < 0 || sx >= size || sy >= size)
+                return false;
+            return views[0].zBuffer()[sy * size + sx] > depth_c - tri[2] + bias;
+        }
+        float rx = x - ox, ry = y - oy, rz = z - oz;
+        float ax = Math.abs(rx), ay = Math.abs(ry), az = Math.abs(rz);
+        int f;
+        if (ax >= ay && ax >= az)
+            f = rx >= 0f ? 0 : 1;
+        else if (ay >= az)
+            f = ry >= 0f ? 2 : 3;
+        else
+            f = rz >= 0f ? 4 : 5;
+        to_light_space(f, rx, ry, rz, tri, 0);
+        float d = tri[2];
+        float d_biased = d - d * bias_factor - near;
+        if (d_biased <= 0f)
+            return false;
+        final float half = 0.5f * (size - 1);
+        int sx = Math.min(Math.max(round((1f + tri[0] / d) * half), 0), size - 1);
+        int sy = Math.min(Math.max(round((1f + tri[1] / d) * half), 0), size - 1);
+        return views[f].zBuffer()[sy * size + sx] > 1f / d_biased;
+    }
+
+}
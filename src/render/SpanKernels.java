@@ -0,0 +1,69 @@
+package render;
+
+import java.lang.reflect.Constructor;
+
+/**
+ *
+ * @author Texhnolyze
+ */
+interface SpanKernels {
+    
+//  SIMD kernels are compiled separately (src-incubator) because they need 
+//  "--add-modules jdk.incubator.vector", so they are loaded reflectively 
+//  and the rasterizer falls back to its scalar loops when they are missing.
+//  Kernels have scratch state, so every rasterizer creates its own instance.
+    static SpanKernels create() {
+        if (Loader.CONSTRUCTOR == null)
+            return null;
+        try {
+            return (SpanKernels) Loader.CONSTRUCTOR.newInstance();
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            return null;
+        }
+    }
+    
+    static boolean isSupported() {
+        return Loader.CONSTRUCTOR != null;
+    }
+    
+    static final class Loader {
+        
+        private static final Constructor<?> CONSTRUCTOR = find();
+        
+        private static Constructor<?> find() {
+            if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent())
+                return null;
+            try {
+                Constructor<?> c = Class.forName("render.VectorSpanKernels").getDeclaredConstructor();
+                c.newInstance(); // fails early if the species are not usable
+                return c;
+            } catch (ReflectiveOperationException | LinkageError | RuntimeException ex) {
+                return null;
+            }
+        }
+        
+    }
+    
+//  All kernels process the pixels i0 ... i0 + to (inclusive) of one span, 
+//  where i0 is the buffer index of the span start. Attribute of the pixel k 
+//  is computed as a + da * k.
+    
+    void flat(float[] z_buff, int[] rgb_buff, int i0, int to, float z_inv, float dz_inv, int rgb);
+    
+    void interpolateColor(float[] z_buff, int[] rgb_buff, int i0, int to, float z_inv, float dz_inv, 
+                          float rdz, float drdz, float gdz, float dgdz, float bdz, float dbdz);
+    
+//  Depth test and depth write only, the offsets (relative to i0) of the visible pixels 
+//  and their texel coordinates are stored in "offs", "us" and "vs". 
+//  Returns the number of visible pixels.
+    int texture(float[] z_buff, int i0, int to, float z_inv, float dz_inv, 
+                float udz, float dudz, float vdz, float dvdz, 
+                int[] offs, int[] us, int[] vs);
+    
+//  same as texture(), but the interpolated color of the visible pixels is stored in "rgbs" too
+    int textureInterpolateColor(float[] z_buff, int i0, int to, float z_inv, float dz_inv, 
+                                float udz, float dudz, float vdz, float dvdz,
+                                float rdz, float drdz, float gdz, float dgdz, float bdz, float dbdz,
+                                int[] offs, int[] us, int[] vs, int[] rgbs);
+    
+}
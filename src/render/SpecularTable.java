@@ -0,0 +1,103 @@
+package render;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *
+ * Lookup table of x^shininess for x in (0, 1], used for the specular term
+ * instead of Math.pow. x is split into its float exponent and mantissa:
+ * x = 2^-e * m, m in [1, 2), so x^s = 2^(-e * s) * m^s. The first factor is
+ * read from a table over the exponents, the second is interpolated linearly
+ * in a table over the mantissa.
+ *
+ * The error of the linear interpolation over a step h is at most
+ * h^2 / 8 * max |f''|, for f(m) = m^s this is relative to f at most
+ * h^2 / 8 * |s * (s - 1)| * (1 + h)^(|s| + 2). The mantissa table is made
+ * large enough to keep this below MAX_ERROR, if that needs more than
+ * 2^MAX_SIZE_SHIFT entries (shininess of several hundreds) Math.pow is used.
+ *
+ * @author Texhnolyze
+ */
+class SpecularTable {
+
+    static final double MAX_ERROR = 1.0 / 1024.0; // relative, a quarter of a color step for the brightest highlight
+    private static final int MIN_SIZE_SHIFT = 4, MAX_SIZE_SHIFT = 14;
+    private static final int ONE_BITS = 0x3f800000; // Float.floatToRawIntBits(1f)
+
+    final float shininess;
+    private final double[] mantissa; // m^s for m = 1 + k / size, k = 0 ... size
+    private final double[] exponent; // 2^(-e * s) for e = 0 ... 126
+    private final int shift; // mantissa bits below the table index
+    private final int frac_mask;
+    private final double frac_scale;
+
+    SpecularTable(float shininess) {
+        this.shininess = shininess;
+        final double s = shininess;
+        int size_shift = MIN_SIZE_SHIFT;
+        while (size_shift <= MAX_SIZE_SHIFT && error_bound(s, 1.0 / (1 << size_shift)) > MAX_ERROR)
+            size_shift++;
+        if (size_shift > MAX_SIZE_SHIFT) {
+            mantissa = exponent = null;
+            shift = frac_mask = 0;
+            frac_scale = 0.0;
+            return;
+        }
+        final int size = 1 << size_shift;
+        mantissa = new double[size + 1];
+        for (int k = 0; k <= size; k++)
+            mantissa[k] = Math.pow(1.0 + (double) k / size, s);
+        exponent = new double[127];
+        for (int e = 0; e < exponent.length; e++)
+            exponent[e] = Math.pow(2.0, -e * s);
+        shift = 23 - size_shift;
+        frac_mask = (1 << shift) - 1;
+        frac_scale = 1.0 / (1 << shift);
+    }
+
+    private static double error_bound(double s, double h) {
+        return h * h / 8.0 * Math.abs(s * (s - 1.0)) * Math.pow(1.0 + h, Math.abs(s) + 2.0);
+    }
+
+//  x^shininess for x in (0, 1]
+    float pow(float x) {
+        int bits = Float.floatToRawIntBits(x);
+        if (bits >= ONE_BITS)
+            return 1f; // 1 and the rounding errors of the normalized dot products above it
+        int e = 127 - (bits >>> 23);
+        if (mantissa == null || e >= exponent.length)
+            return (float) Math.pow(x, shininess); // subnormal x is not in the table
+        int m = bits & 0x7fffff;
+        int k = m >>> shift;
+        double a = mantissa[k];
+        return (float) (exponent[e] * (a + (m & frac_mask) * frac_scale * (mantissa[k + 1] - a)));
+    }
+
+//  Tables by shininess, the least recently used table is dropped when there are more than max_size.
+    static class Cache {
+
+        private final Map<Integer, SpecularTable> tables;
+
+        Cache(final int max_size) {
+            tables = new LinkedHashMap<Integer, SpecularTable>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, SpecularTable> eldest) {
+                    return size() > max_size;
+                }
+            };
+        }
+
+        SpecularTable get(float shininess) {
+            Integer key = Float.floatToIntBits(shininess);
+            SpecularTable t = tables.get(key);
+            if (t == null) {
+                t = new SpecularTable(shininess);
+                tables.put(key, t);
+            }
+            return t;
+        }
+
+    }
+
+}
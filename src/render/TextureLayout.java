@@ -0,0 +1,12 @@
+package render;
+
+/**
+ *
+ * @author Texhnolyze
+ */
+public enum TextureLayout {
+    
+    ROW_MAJOR, // texel (x, y) is at y * w + x
+    TILED      // 32x32 texel tiles row by row, the texels of a tile in Morton (Z) order, see Bitmap.IntBitmap.index()
+    
+}
@@ -0,0 +1,251 @@
+package render;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import static render.MathUtils.ceil_fixed_28x4;
+import static render.MathUtils.floor_fixed_28x4;
+import static render.Rasterizer3D.*;
+
+/**
+ *
+ * @author Texhnolyze
+ */
+class TiledRasterizer {
+
+    static final int TILE_SIZE = 64;
+
+//  per command: kind, x1, y1, x2, y2, x3, y3 (28.4 fixed point), rgb (G-buffer material for the interpolate color fills), modulate
+    private static final int INT_STRIDE = 9;
+//  per command: z, u, v, r, g, b for each of the three vertices
+    private static final int FLOAT_STRIDE = 18;
+
+    private final Rasterizer3D target;
+    private final ForkJoinPool pool;
+
+    private int w, h;
+    private int tiles_x, tiles_y;
+    private Rasterizer3D[] workers; // one per tile, so no worker is shared between threads, null until the next triangle after invalidate()
+    private int[][] bins; // indices of the commands touching the tile, in submission order
+    private int[] bin_sizes;
+
+    private int num_cmds;
+    private int[] cmd_ints = new int[INT_STRIDE * 1024];
+    private float[] cmd_floats = new float[FLOAT_STRIDE * 1024];
+    private Bitmap[] cmd_tex = new Bitmap[1024];
+
+    TiledRasterizer(Rasterizer3D target, ForkJoinPool pool) {
+        this.target = target;
+        this.pool = pool;
+    }
+
+    ForkJoinPool getPool() {
+        return pool;
+    }
+
+    void addTriangle(int x1, int y1, float z1, int x2, int y2, float z2, int x3, int y3, float z3, int rgb) {
+        int c = push(FILL, x1, y1, x2, y2, x3, y3, rgb, false, null);
+        if (c == -1)
+            return;
+        int fi = c * FLOAT_STRIDE;
+        cmd_floats[fi] = z1;
+        cmd_floats[fi + 6] = z2;
+        cmd_floats[fi + 12] = z3;
+    }
+
+    void addTriangleInterpolateColor(
+            int x1, int y1, float z1, float r1, float g1, float b1,
+            int x2, int y2, float z2, float r2, float g2, float b2,
+            int x3, int y3, float z3, float r3, float g3, float b3, int gbuf_material) {
+        int c = push(FILL_INTERPOLATE_COLOR, x1, y1, x2, y2, x3, y3, gbuf_material, false, null);
+        if (c == -1)
+            return;
+        int fi = c * FLOAT_STRIDE;
+        put(fi, z1, 0f, 0f, r1, g1, b1);
+        put(fi + 6, z2, 0f, 0f, r2, g2, b2);
+        put(fi + 12, z3, 0f, 0f, r3, g3, b3);
+    }
+
+    void addTexturedTriangle(int x1, int y1, float z1, float u1, float v1, int x2, int y2, float z2, float u2, float v2, int x3, int y3, float z3, float u3, float v3, Bitmap texture, boolean modulate, int rgb) {
+        int c = push(FILL_TEXTURED, x1, y1, x2, y2, x3, y3, rgb, modulate, texture);
+        if (c == -1)
+            return;
+        int fi = c * FLOAT_STRIDE;
+        put(fi, z1, u1, v1, 0f, 0f, 0f);
+        put(fi + 6, z2, u2, v2, 0f, 0f, 0f);
+        put(fi + 12, z3, u3, v3, 0f, 0f, 0f);
+    }
+
+    void addTexturedTriangleInterpolateColor(int x1, int y1, float z1, float u1, float v1, float r1, float g1, float b1,
+                                             int x2, int y2, float z2, float u2, float v2, float r2, float g2, float b2,
+                                             int x3, int y3, float z3, float u3, float v3, float r3, float g3, float b3,
+                                             Bitmap texture, int gbuf_material) {
+        int c = push(FILL_TEXTURED_INTERPOLATE_COLOR, x1, y1, x2, y2, x3, y3, gbuf_material, false, texture);
+        if (c == -1)
+            return;
+        int fi = c * FLOAT_STRIDE;
+        put(fi, z1, u1, v1, r1, g1, b1);
+        put(fi + 6, z2, u2, v2, r2, g2, b2);
+        put(fi + 12, z3, u3, v3, r3, g3, b3);
+    }
+
+    private void put(int fi, float z, float u, float v, float r, float g, float b) {
+        cmd_floats[fi] = z;
+        cmd_floats[fi + 1] = u;
+        cmd_floats[fi + 2] = v;
+        cmd_floats[fi + 3] = r;
+        cmd_floats[fi + 4] = g;
+        cmd_floats[fi + 5] = b;
+    }
+
+//  stores the command and puts it in the bins of all tiles covered by the triangle bounding box,
+//  returns -1 if the bounding box contains no pixel center of the screen
+    private int push(int kind, int x1, int y1, int x2, int y2, int x3, int y3, int rgb, boolean modulate, Bitmap tex) {
+        ensure_tiles();
+        int min_x = Math.max(ceil_fixed_28x4(Math.min(x1, Math.min(x2, x3))), 0);
+        int max_x = Math.min(floor_fixed_28x4(Math.max(x1, Math.max(x2, x3))), w - 1);
+        int min_y = Math.max(ceil_fixed_28x4(Math.min(y1, Math.min(y2, y3))), 0);
+        int max_y = Math.min(floor_fixed_28x4(Math.max(y1, Math.max(y2, y3))), h - 1);
+        if (min_x > max_x || min_y > max_y)
+            return -1;
+        if (num_cmds == cmd_tex.length) {
+            cmd_ints = Arrays.copyOf(cmd_ints, 2 * cmd_ints.length);
+            cmd_floats = Arrays.copyOf(cmd_floats, 2 * cmd_floats.length);
+            cmd_tex = Arrays.copyOf(cmd_tex, 2 * cmd_tex.length);
+        }
+        int c = num_cmds++;
+        int ii = c * INT_STRIDE;
+        cmd_ints[ii] = kind;
+        cmd_ints[ii + 1] = x1;
+        cmd_ints[ii + 2] = y1;
+        cmd_ints[ii + 3] = x2;
+        cmd_ints[ii + 4] = y2;
+        cmd_ints[ii + 5] = x3;
+        cmd_ints[ii + 6] = y3;
+        cmd_ints[ii + 7] = rgb;
+        cmd_ints[ii + 8] = modulate ? 1 : 0;
+        cmd_tex[c] = tex;
+        int tx1 = max_x / TILE_SIZE, ty1 = max_y / TILE_SIZE;
+        for (int ty = min_y / TILE_SIZE; ty <= ty1; ty++) {
+            for (int tx = min_x / TILE_SIZE; tx <= tx1; tx++) {
+                int t = tx + ty * tiles_x;
+                int[] bin = bins[t];
+                if (bin_sizes[t] == bin.length)
+                    bins[t] = bin = Arrays.copyOf(bin, 2 * bin.length);
+                bin[bin_sizes[t]++] = c;
+            }
+        }
+        return c;
+    }
+
+//  The workers share the z buffer and the hierarchical z of the target, which replaces them when 
+//  its size or depth format changes, see invalidate().
+    private void ensure_tiles() {
+        if (workers != null)
+            return;
+        w = target.getWidth();
+        h = target.getHeight();
+        tiles_x = (w + TILE_SIZE - 1) / TILE_SIZE;
+        tiles_y = (h + TILE_SIZE - 1) / TILE_SIZE;
+        workers = new Rasterizer3D[tiles_x * tiles_y];
+        bins = new int[workers.length][];
+        bin_sizes = new int[workers.length];
+        for (int ty = 0; ty < tiles_y; ty++) {
+            for (int tx = 0; tx < tiles_x; tx++) {
+                int x0 = tx * TILE_SIZE, y0 = ty * TILE_SIZE;
+                int t = tx + ty * tiles_x;
+                workers[t] = new Rasterizer3D(target, x0, y0, Math.min(x0 + TILE_SIZE, w) - 1, Math.min(y0 + TILE_SIZE, h) - 1);
+                bins[t] = new int[64];
+            }
+        }
+    }
+
+//  drops the workers after the buffers of the target were replaced, called with no binned triangles
+    void invalidate() {
+        workers = null;
+    }
+
+//  rasterizes all binned triangles, tiles are processed in parallel,
+//  triangles inside one tile in the order they were added
+    void flush() {
+        if (num_cmds == 0)
+            return;
+        pool.invoke(new TileAction(0, workers.length));
+        Arrays.fill(bin_sizes, 0);
+        Arrays.fill(cmd_tex, 0, num_cmds, null);
+        num_cmds = 0;
+    }
+
+    private void rasterize_tile(int t) {
+        final Rasterizer3D r = workers[t];
+        r.copySettings(target);
+        final int[] bin = bins[t];
+        final int[] ci = cmd_ints;
+        final float[] cf = cmd_floats;
+        for (int k = 0, n = bin_sizes[t]; k < n; k++) {
+            int c = bin[k];
+            int ii = c * INT_STRIDE, fi = c * FLOAT_STRIDE;
+            switch (ci[ii]) {
+                case FILL:
+                    r.setColor(ci[ii + 7]);
+                    r.fillTriangle(
+                        ci[ii + 1], ci[ii + 2], cf[fi],
+                        ci[ii + 3], ci[ii + 4], cf[fi + 6],
+                        ci[ii + 5], ci[ii + 6], cf[fi + 12]
+                    );
+                    break;
+                case FILL_INTERPOLATE_COLOR:
+                    r.setGBufferMaterial(ci[ii + 7]);
+                    r.fillTriangleInterpolateColor(
+                        ci[ii + 1], ci[ii + 2], cf[fi], cf[fi + 3], cf[fi + 4], cf[fi + 5],
+                        ci[ii + 3], ci[ii + 4], cf[fi + 6], cf[fi + 9], cf[fi + 10], cf[fi + 11],
+                        ci[ii + 5], ci[ii + 6], cf[fi + 12], cf[fi + 15], cf[fi + 16], cf[fi + 17]
+                    );
+                    break;
+                case FILL_TEXTURED:
+                    r.setColor(ci[ii + 7]);
+                    r.fillTexturedTriangle(
+                        ci[ii + 1], ci[ii + 2], cf[fi], cf[fi + 1], cf[fi + 2],
+                        ci[ii + 3], ci[ii + 4], cf[fi + 6], cf[fi + 7], cf[fi + 8],
+                        ci[ii + 5], ci[ii + 6], cf[fi + 12], cf[fi + 13], cf[fi + 14],
+                        cmd_tex[c], ci[ii + 8] != 0
+                    );
+                    break;
+                case FILL_TEXTURED_INTERPOLATE_COLOR:
+                    r.setGBufferMaterial(ci[ii + 7]);
+                    r.fillTexturedTriangleInterpolateColor(
+                        ci[ii + 1], ci[ii + 2], cf[fi], cf[fi + 1], cf[fi + 2], cf[fi + 3], cf[fi + 4], cf[fi + 5],
+                        ci[ii + 3], ci[ii + 4], cf[fi + 6], cf[fi + 7], cf[fi + 8], cf[fi + 9], cf[fi + 10], cf[fi + 11],
+                        ci[ii + 5], ci[ii + 6], cf[fi + 12], cf[fi + 13], cf[fi + 14], cf[fi + 15], cf[fi + 16], cf[fi + 17],
+                        cmd_tex[c]
+                    );
+                    break;
+            }
+        }
+    }
+
+    private class TileAction extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from, to;
+
+        TileAction(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                if (bin_sizes[from] != 0)
+                    rasterize_tile(from);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new TileAction(from, mid), new TileAction(mid, to));
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,12 @@
+package render;
+
+/**
+ *
+ * @author Texhnolyze
+ */
+public enum TriangleTraversal {
+    
+    SCANLINE,  // vertices are sorted by y and two edges are walked per scanline
+    HALF_SPACE // bounding box is walked in 8x8 blocks tested against the edge functions
+    
+}
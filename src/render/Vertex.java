@@ -9,6 +9,8 @@ public interface Vertex {
     Vector3f pos();
     Vector3f norm();
     
+//  Renderer keeps lit colors in its own vertex cache and does not use
+//  lighted() and the temporary colors anymore.
     boolean lighted();
     
     float getTempRed();
@@ -0,0 +1,154 @@
+package render;
+
+import java.util.Arrays;
+import static render.MathUtils.make_fixed_28x4;
+
+/**
+ *
+ * Post-transform vertex cache of the Renderer. Every vertex used by the visible
+ * faces gets a slot which holds its screen position and lit color, so a vertex
+ * shared by several faces is transformed and lit only once per render call.
+ *
+ * Slots of a Face based model are found through an identity hash table,
+ * slots of an IndexedMesh are simply the vertex indices.
+ *
+ * @author Texhnolyze
+ */
+class VertexCache {
+
+    int size; // number of used slots
+
+    float[] pos = new float[3 * 1024]; // world, then view space x, y, z; screen space after transform()
+    int[] sx = new int[1024], sy = new int[1024]; // screen coordinates in 28.4 fixed point
+    float[] z = new float[1024]; // view space z, as expected by Rasterizer3D
+    float[] rgb = new float[3 * 1024]; // lit color scaled to [0, 255], world space normal in PHONG mode
+
+    private int[] lit = new int[1024]; // slot is lit if lit[slot] == gen
+    private int gen;
+
+//  identity hash table Vertex -> slot, entry is valid if key_gen[i] == gen
+    private Vertex[] keys = new Vertex[2048];
+    private int[] key_slot = new int[2048];
+    private int[] key_gen = new int[2048];
+    private int key_shift = 32 - 11;
+    private Vertex[] slot_vertex = new Vertex[1024];
+
+//  Starts a new render call, capacity is the expected number of slots.
+//  All slots are invalidated in O(1).
+    void reset(int capacity) {
+        if (capacity > sx.length)
+            grow_slots(capacity);
+        if (2 * capacity > keys.length)
+            grow_keys(capacity);
+        if (++gen == 0) { // wrapped around
+            Arrays.fill(lit, 0);
+            Arrays.fill(key_gen, 0);
+            gen = 1;
+        }
+        size = 0;
+    }
+
+//  Returns the slot of the vertex, on the first request the world space
+//  position is copied into the slot.
+    int slotOf(Vertex v) {
+        int i = find(v);
+        if (key_gen[i] == gen)
+            return key_slot[i];
+        if (size == sx.length)
+            grow_slots(size + 1);
+        if (2 * (size + 1) > keys.length) {
+            grow_keys(size + 1);
+            i = find(v);
+        }
+        int s = size++;
+        keys[i] = v;
+        key_gen[i] = gen;
+        key_slot[i] = s;
+        slot_vertex[s] = v;
+        Vector3f p = v.pos();
+        pos[3 * s] = p.x();
+        pos[3 * s + 1] = p.y();
+        pos[3 * s + 2] = p.z();
+        return s;
+    }
+
+//  index of the entry of the vertex or of the free entry where it should be put
+    private int find(Vertex v) {
+        final int mask = keys.length - 1;
+        int i = (System.identityHashCode(v) * 0x9E3779B9) >>> key_shift;
+        while (key_gen[i] == gen && keys[i] != v)
+            i = (i + 1) & mask;
+        return i;
+    }
+
+//  new arrays are zeroed, so gen stays valid for them
+    private void grow_slots(int capacity) {
+        int n = 2 * capacity;
+        pos = Arrays.copyOf(pos, 3 * n);
+        sx = Arrays.copyOf(sx, n);
+        sy = Arrays.copyOf(sy, n);
+        z = Arrays.copyOf(z, n);
+        rgb = Arrays.copyOf(rgb, 3 * n);
+        lit = Arrays.copyOf(lit, n);
+        slot_vertex = Arrays.copyOf(slot_vertex, n);
+    }
+
+    private void grow_keys(int capacity) {
+        Vertex[] old_keys = keys;
+        int[] old_slot = key_slot, old_gen = key_gen;
+        int n = Integer.highestOneBit(4 * capacity - 1);
+        keys = new Vertex[n];
+        key_slot = new int[n];
+        key_gen = new int[n];
+        key_shift = 32 - Integer.numberOfTrailingZeros(n);
+        for (int j = 0; j < old_keys.length; j++) {
+            if (old_gen[j] != gen)
+                continue;
+            int i = find(old_keys[j]);
+            keys[i] = old_keys[j];
+            key_gen[i] = gen;
+            key_slot[i] = old_slot[j];
+        }
+    }
+
+    Vertex vertexOf(int slot) {
+        return slot_vertex[slot];
+    }
+
+//  Transforms the positions of all used slots into the screen space.
+    void transform(Camera c, int w, int h) {
+        transform(c, pos, w, h);
+    }
+
+//  Same as transform(Camera, int, int) but the world space positions are taken from src.
+    void transform(Camera c, float[] src, int w, int h) {
+        c.toViewSpace(src, pos, size);
+        c.project(pos, size, w, h);
+        for (int s = 0, i = 0; s < size; s++, i += 3) {
+            sx[s] = make_fixed_28x4(pos[i]);
+            sy[s] = make_fixed_28x4(pos[i + 1]);
+            z[s] = pos[i + 2];
+        }
+    }
+
+//  Returns true only for the first call with the slot in the current render call.
+    boolean markLit(int slot) {
+        if (lit[slot] == gen)
+            return false;
+        lit[slot] = gen;
+        return true;
+    }
+
+    void setRGB(int slot, float r, float g, float b) {
+        rgb[3 * slot] = 255f * r;
+        rgb[3 * slot + 1] = 255f * g;
+        rgb[3 * slot + 2] = 255f * b;
+    }
+    
+    void setNormal(int slot, float x, float y, float z) {
+        rgb[3 * slot] = x;
+        rgb[3 * slot + 1] = y;
+        rgb[3 * slot + 2] = z;
+    }
+
+}
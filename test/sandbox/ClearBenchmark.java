@@ -0,0 +1,76 @@
+package sandbox;
+
+import java.util.Arrays;
+import render.Camera;
+import render.DepthFormat;
+import render.Graphics.DefaultGraphics;
+import render.IndexedMesh;
+import render.Material;
+import render.ModelInstance;
+import render.Renderer;
+import render.ShadeMode;
+
+/**
+ *
+ * Compares the clear of the graphics and of the z buffer before every frame
+ * (DefaultGraphics.clear() and Renderer.clearZBuffer()) with the generation
+ * clear of Renderer.beginFrame() and endFrame() at 4K. The frame is one quad
+ * that covers the given part of the screen, so the rest of the pixels gets
+ * the background color in endFrame(). Both ways must render the same frame,
+ * exits with status 1 if they do not.
+ *
+ * @author Texhnolyze
+ */
+public class ClearBenchmark {
+
+    static final int WIDTH = 3840, HEIGHT = 2160;
+    static final int WARMUP = 5, RUNS = 10;
+    static final float[] COVERAGE = {0f, 0.25f, 1f};
+
+    public static void main(String[] args) {
+        DefaultGraphics g = new DefaultGraphics(WIDTH, HEIGHT);
+        g.setDefaultColor(0x203040);
+        Renderer r = new Renderer(g);
+        Camera c = new Camera(0.1f, 100f, 60, WIDTH, HEIGHT);
+        c.setPosition(0, 0, 0);
+        c.lookAt(0, 0, 1);
+        c.updateViewMatrix();
+        c.updateFrustum();
+        System.out.println("format     covered   clear ms   generation ms");
+        int bad = 0;
+        for (DepthFormat f : DepthFormat.values()) {
+            r.setDepthFormat(f);
+            for (float coverage : COVERAGE) {
+//              at the distance 1 the view is 2 * tan(30) units high
+                float hh = (float) (Math.tan(Math.toRadians(30)) * Math.sqrt(coverage)), hw = hh * WIDTH / HEIGHT;
+                ModelInstance q = new Fixtures.Instance(quad(hw, hh, 1f), ShadeMode.FLAT, Material.WHITE_PLASTIC);
+                long clear = Fixtures.time(WARMUP, RUNS, () -> {}, () -> {
+                    g.clear();
+                    r.clearZBuffer();
+                    r.render(c, q);
+                });
+                int[] expected = Fixtures.pixels(g);
+                long generation = Fixtures.time(WARMUP, RUNS, () -> {}, () -> {
+                    r.beginFrame();
+                    r.render(c, q);
+                    r.endFrame();
+                });
+                System.out.printf("%-8s %8.0f%% %10.2f %15.2f%n", f, 100f * coverage, clear / 1e6, generation / 1e6);
+                if (!Arrays.equals(expected, Fixtures.pixels(g))) {
+                    System.out.println("the generation clear renders a different frame");
+                    bad++;
+                }
+            }
+        }
+        if (bad != 0)
+            System.exit(1);
+    }
+
+//  quad of the half sizes hw x hh centered on the view axis at the distance z, it is empty if they are 0
+    static IndexedMesh quad(float hw, float hh, float z) {
+        float[] pos = {-hw * z, -hh * z, z, hw * z, -hh * z, z, hw * z, hh * z, z, -hw * z, hh * z, z};
+        float[] norm = {0f, 0f, -1f, 0f, 0f, -1f, 0f, 0f, -1f, 0f, 0f, -1f};
+        return new IndexedMesh(pos, norm, null, new int[] {0, 1, 2, 0, 2, 3}).setTwoFaced(true);
+    }
+
+}
@@ -0,0 +1,236 @@
+package sandbox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import render.AABB;
+import render.Bitmap.IntBitmap;
+import render.Camera;
+import render.Face;
+import render.Graphics.DefaultGraphics;
+import render.IndexedMesh;
+import render.Light;
+import render.Light.AmbientLight;
+import render.Light.DirectionLight;
+import render.Light.PointLight;
+import render.Material;
+import render.Model;
+import render.ModelInstance;
+import render.Renderer;
+import render.Scene;
+import render.ShadeMode;
+import render.Vertex;
+
+/**
+ *
+ * Renders the views of one shared scene with a Renderer per view, first one
+ * after another and then on a pool of threads, and checks that every concurrent
+ * frame is the same as the serial one. The scene mixes indexed meshes with Face
+ * based models (they go through Face.norm() and getMediPoint()), all shade modes,
+ * a floor textured with mipmaps, shadows of a direction and a point light and
+ * enough small point lights to bin them. Every instance has an AABB, so the views
+ * cull them, and every second view shares its camera with the previous one.
+ * Exits with status 1 if any pixel differs.
+ *
+ * @author Texhnolyze
+ */
+public class ConcurrentRenderStress {
+
+    static final int WIDTH = 320, HEIGHT = 240;
+    static final int VIEWS = 16, ROUNDS = 20;
+    static final int THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+    static final int LAMPS = 8; // small point lights around the spheres
+
+    public static void main(String[] args) throws Exception {
+        Scene scene = scene();
+        Camera[] cameras = new Camera[VIEWS];
+        for (int v = 0; v < VIEWS; v++)
+            cameras[v] = v % 2 == 1 ? cameras[v - 1] : camera(2.0 * Math.PI * v / VIEWS);
+        int[][] expected = new int[VIEWS][];
+        for (int v = 0; v < VIEWS; v++)
+            expected[v] = render(v, cameras[v], scene);
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        int bad = 0;
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                List<Future<int[]>> frames = new ArrayList<>();
+                for (int v = 0; v < VIEWS; v++) {
+                    final int view = v;
+                    frames.add(pool.submit(() -> render(view, cameras[view], scene)));
+                }
+                for (int v = 0; v < VIEWS; v++) {
+                    if (!Arrays.equals(expected[v], frames.get(v).get())) {
+                        System.out.println("round " + round + ": view " + v + " differs from the serial frame");
+                        bad++;
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        System.out.println(VIEWS + " views x " + ROUNDS + " rounds on " + THREADS + " threads, " + bad + " frames differ");
+        if (bad != 0)
+            System.exit(1);
+    }
+
+//  a new Renderer per call, the view selects the shade mode and the depth pre-pass
+    static int[] render(int view, Camera c, Scene scene) {
+        DefaultGraphics g = new DefaultGraphics(WIDTH, HEIGHT);
+        Renderer r = new Renderer(g);
+        r.setDepthPrePassEnabled(view % 4 >= 2);
+        r.beginFrame();
+        r.render(c, scene);
+        r.endFrame();
+        return Fixtures.pixels(g);
+    }
+
+    static Camera camera(double angle) {
+        Camera c = new Camera(0.1f, 100f, 60, WIDTH, HEIGHT);
+        c.setPosition((float) (8.0 * Math.sin(angle)), 4f, (float) (-8.0 * Math.cos(angle)));
+        c.lookAt(0, 0, 0);
+        c.updateViewMatrix();
+        c.updateFrustum();
+        return c;
+    }
+
+    static Scene scene() {
+        List<ModelInstance> statics = new ArrayList<>(), dynamics = new ArrayList<>();
+        List<Light<?>> lights = new ArrayList<>();
+        statics.add(new Fixtures.Instance(plane(32, 6f, -1f), ShadeMode.PHONG, Material.GOLD)
+            .setTexture(checker(256, 16).generateMipmaps()).setAABB(new Box(-6f, -1f, -6f, 12f, 0f, 12f)).setShadows(true, true));
+        ShadeMode[] modes = ShadeMode.values();
+        for (int i = 0; i < 6; i++) {
+            double a = 2.0 * Math.PI * i / 6;
+            float x = (float) (3.0 * Math.cos(a)), z = (float) (3.0 * Math.sin(a));
+            IndexedMesh mesh = sphere(12, 0.8f, x, 0f, z);
+            Model model = i % 2 == 0 ? mesh : new FaceModel(mesh);
+            (i < 3 ? statics : dynamics).add(new Fixtures.Instance(model, modes[i % modes.length], Material.RUBY)
+                .setAABB(new Box(x - 0.8f, -0.8f, z - 0.8f, 1.6f, 1.6f, 1.6f)).setShadows(true, true));
+        }
+        DirectionLight sun = new DirectionLight(0.8f, 0.8f, 0.8f, 0.3f, -1f, 0.4f);
+        sun.enableShadows();
+        PointLight lamp = new PointLight(1f, 0.6f, 0.3f, 0f, 3f, 0f, 10f);
+        lamp.enableShadows();
+        lights.add(sun);
+        lights.add(lamp);
+        for (int i = 0; i < LAMPS; i++) {
+            double a = 2.0 * Math.PI * (i + 0.5) / LAMPS;
+            lights.add(new PointLight(i % 3 == 0 ? 1f : 0.2f, i % 3 == 1 ? 1f : 0.2f, i % 3 == 2 ? 1f : 0.2f, 
+                (float) (4.5 * Math.cos(a)), -0.5f, (float) (4.5 * Math.sin(a)), 2.5f));
+        }
+        lights.add(new AmbientLight(0.15f, 0.15f, 0.15f));
+        return new Scene() {
+            @Override public Iterable<ModelInstance> getStaticObjects() {return statics;}
+            @Override public Iterable<ModelInstance> getDynamicObjects() {return dynamics;}
+            @Override public Iterable<Light<?>> getLightSources() {return lights;}
+        };
+    }
+
+//  n x n quads of the size 2s x 2s at the height y, facing up, the texture spans all of them
+    static IndexedMesh plane(int n, float s, float y) {
+        float[] pos = new float[3 * (n + 1) * (n + 1)], norm = new float[pos.length], uv = new float[2 * (n + 1) * (n + 1)];
+        int[] indices = new int[6 * n * n];
+        for (int j = 0, v = 0; j <= n; j++) {
+            for (int i = 0; i <= n; i++, v++) {
+                pos[3 * v] = -s + 2f * s * i / n;
+                pos[3 * v + 1] = y;
+                pos[3 * v + 2] = -s + 2f * s * j / n;
+                norm[3 * v + 1] = 1f;
+                uv[2 * v] = (float) i / n;
+                uv[2 * v + 1] = (float) j / n;
+            }
+        }
+        for (int j = 0, k = 0; j < n; j++) {
+            for (int i = 0; i < n; i++) {
+                int a = j * (n + 1) + i, b = a + 1, c = a + n + 1, d = c + 1;
+                indices[k++] = a; indices[k++] = c; indices[k++] = d;
+                indices[k++] = a; indices[k++] = d; indices[k++] = b;
+            }
+        }
+        return new IndexedMesh(pos, norm, uv, indices);
+    }
+
+//  size x size texels in squares of cell x cell texels, the mip levels average them into gray
+    static IntBitmap checker(int size, int cell) {
+        IntBitmap tex = new IntBitmap(size, size);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++)
+                tex.setRGB(x, y, ((x / cell + y / cell) & 1) == 0 ? 0xffffff : 0x404040);
+        }
+        return tex;
+    }
+
+//  n x 2n latitude and longitude sphere of the radius r around (x, y, z)
+    static IndexedMesh sphere(int n, float r, float x, float y, float z) {
+        int cols = 2 * n + 1;
+        float[] pos = new float[3 * (n + 1) * cols], norm = new float[pos.length];
+        int[] indices = new int[6 * n * 2 * n];
+        for (int j = 0, v = 0; j <= n; j++) {
+            double theta = Math.PI * j / n;
+            for (int i = 0; i < cols; i++, v++) {
+                double phi = Math.PI * i / n;
+                float nx = (float) (Math.sin(theta) * Math.cos(phi)), ny = (float) Math.cos(theta), nz = (float) (Math.sin(theta) * Math.sin(phi));
+                norm[3 * v] = nx;
+                norm[3 * v + 1] = ny;
+                norm[3 * v + 2] = nz;
+                pos[3 * v] = x + r * nx;
+                pos[3 * v + 1] = y + r * ny;
+                pos[3 * v + 2] = z + r * nz;
+            }
+        }
+        for (int j = 0, k = 0; j < n; j++) {
+            for (int i = 0; i < 2 * n; i++) {
+                int a = j * cols + i, b = a + 1, c = a + cols, d = c + 1;
+                indices[k++] = a; indices[k++] = b; indices[k++] = d;
+                indices[k++] = a; indices[k++] = d; indices[k++] = c;
+            }
+        }
+        return new IndexedMesh(pos, norm, null, indices);
+    }
+
+//  the faces of the mesh without the mesh, so the renderer takes the Face path
+    static class FaceModel implements Model {
+
+        final IndexedMesh mesh;
+
+        FaceModel(IndexedMesh mesh) {
+            this.mesh = mesh;
+        }
+
+        @Override public int numFaces() {return mesh.numFaces();}
+        @Override public Iterable<Face> faces() {return mesh.faces();}
+        @Override public int numVertices() {return mesh.numVertices();}
+        @Override public Iterable<Vertex> vertices() {return mesh.vertices();}
+        @Override public boolean dirty() {return mesh.dirty();}
+        @Override public void markAsDirty() {mesh.markAsDirty();}
+        @Override public void reset() {mesh.reset();}
+
+    }
+
+//  axis aligned box from (x, y, z) to (x + w, y + h, z + d)
+    static class Box implements AABB {
+
+        final float x, y, z, w, h, d;
+
+        Box(float x, float y, float z, float w, float h, float d) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.w = w;
+            this.h = h;
+            this.d = d;
+        }
+
+        @Override public float posX() {return x;}
+        @Override public float posY() {return y;}
+        @Override public float posZ() {return z;}
+        @Override public float width() {return w;}
+        @Override public float height() {return h;}
+        @Override public float depth() {return d;}
+
+    }
+
+}
@@ -0,0 +1,59 @@
+package sandbox;
+
+import render.Camera;
+import render.DepthFormat;
+import render.Graphics.DefaultGraphics;
+import render.IndexedMesh;
+import render.Material;
+import render.ModelInstance;
+import render.Renderer;
+import render.ShadeMode;
+
+/**
+ *
+ * Renders a stack of screen filling quads back to front at 4K, so every quad
+ * passes the depth test everywhere and the z buffer is read and written for
+ * each of its pixels, and compares the depth formats. The time includes the
+ * clear of the z buffer.
+ *
+ * @author Texhnolyze
+ */
+public class DepthFormatBenchmark {
+
+    static final int WIDTH = 3840, HEIGHT = 2160, QUADS = 8;
+    static final int WARMUP = 5, RUNS = 10;
+
+    public static void main(String[] args) {
+        DefaultGraphics g = new DefaultGraphics(WIDTH, HEIGHT);
+        Renderer r = new Renderer(g);
+        r.setVectorizedSpansEnabled(false);
+        Camera c = new Camera(0.1f, 100f, 60, WIDTH, HEIGHT);
+        c.setPosition(0, 0, 0);
+        c.lookAt(0, 0, 1);
+        c.updateViewMatrix();
+        c.updateFrustum();
+        ModelInstance[] quads = new ModelInstance[QUADS];
+        for (int k = 0; k < QUADS; k++)
+            quads[k] = new Fixtures.Instance(quad(10f - k), ShadeMode.FLAT, Material.WHITE_PLASTIC); // farthest first
+        System.out.println("format     depth MB   ms");
+        for (DepthFormat f : DepthFormat.values()) {
+            r.setDepthFormat(f);
+            int bytes = f == DepthFormat.DEPTH_16 ? 2 : f == DepthFormat.DEPTH_24 ? 3 : 4;
+            long t = Fixtures.time(WARMUP, RUNS, g::clear, () -> {
+                r.clearZBuffer();
+                for (ModelInstance q : quads)
+                    r.render(c, q);
+            });
+            System.out.printf("%-8s %10.1f %6.2f%n", f, WIDTH * HEIGHT * bytes / 1e6, t / 1e6);
+        }
+    }
+
+//  quad at the distance z that covers the whole view
+    static IndexedMesh quad(float z) {
+        float hw = 2f * z, hh = 2f * z;
+        float[] pos = {-hw, -hh, z, hw, -hh, z, hw, hh, z, -hw, hh, z};
+        float[] norm = {0f, 0f, -1f, 0f, 0f, -1f, 0f, 0f, -1f, 0f, 0f, -1f};
+        return new IndexedMesh(pos, norm, null, new int[] {0, 1, 2, 0, 2, 3}).setTwoFaced(true);
+    }
+
+}
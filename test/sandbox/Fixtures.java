@@ -0,0 +1,100 @@
+package sandbox;
+
+import render.AABB;
+import render.Bitmap;
+import render.Camera;
+import render.Graphics.DefaultGraphics;
+import render.Material;
+import render.Model;
+import render.ModelInstance;
+import render.Renderer;
+import render.ShadeMode;
+
+/**
+ *
+ * What the benchmarks and checks of the sandbox share: the copy of a frame,
+ * the best time of a number of frames and a model instance that is already
+ * in the world space.
+ *
+ * @author Texhnolyze
+ */
+class Fixtures {
+
+    private Fixtures() {}
+
+    static int[] pixels(DefaultGraphics g) {
+        int[] pixels = new int[g.getWidth() * g.getHeight()];
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = g.getRGBInHash(i);
+        return pixels;
+    }
+
+//  best time of "runs" frames after "warmup" frames, "before" runs untimed ahead of every frame
+    static long time(int warmup, int runs, Runnable before, Runnable frame) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < warmup + runs; i++) {
+            before.run();
+            long t = System.nanoTime();
+            frame.run();
+            if (i >= warmup)
+                best = Math.min(best, System.nanoTime() - t);
+        }
+        return best;
+    }
+
+//  best time of rendering the instance into a cleared frame
+    static long time(int warmup, int runs, Renderer r, Camera c, DefaultGraphics g, ModelInstance instance) {
+        return time(warmup, runs, () -> {
+            g.clear();
+            r.clearZBuffer();
+        }, () -> r.render(c, instance));
+    }
+
+//  The model is built in the world space, so the instance never writes it. It is textured
+//  if it has a texture, culled if it has an AABB and neither casts nor receives shadows
+//  unless setShadows() says so.
+    static class Instance implements ModelInstance {
+
+        final Model model;
+        final ShadeMode mode;
+        final Material material;
+        Bitmap tex;
+        AABB aabb;
+        boolean caster, receiver;
+
+        Instance(Model model, ShadeMode mode, Material material) {
+            this.model = model;
+            this.mode = mode;
+            this.material = material;
+        }
+
+        Instance setTexture(Bitmap tex) {
+            this.tex = tex;
+            return this;
+        }
+
+        Instance setAABB(AABB aabb) {
+            this.aabb = aabb;
+            return this;
+        }
+
+        Instance setShadows(boolean caster, boolean receiver) {
+            this.caster = caster;
+            this.receiver = receiver;
+            return this;
+        }
+
+        @Override public Model getModel() {return model;}
+        @Override public ShadeMode getShadeMode() {return mode;}
+        @Override public Material getMaterial() {return material;}
+        @Override public boolean texture() {return tex != null;}
+        @Override public Bitmap getTexture() {return tex;}
+        @Override public boolean testAABB() {return aabb != null;}
+        @Override public AABB getAABB() {return aabb;}
+        @Override public boolean isShadowCaster() {return caster;}
+        @Override public boolean isShadowReceiver() {return receiver;}
+        @Override public void translateModelIntoWorldSpace() {}
+
+    }
+
+}
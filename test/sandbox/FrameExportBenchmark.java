@@ -0,0 +1,124 @@
+package sandbox;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+import javax.imageio.ImageIO;
+import render.Camera;
+import render.FrameExporter;
+import render.FrameSink;
+import render.Graphics.DefaultGraphics;
+import render.Renderer;
+import render.Scene;
+
+/**
+ *
+ * Renders an orbit around the scene of ConcurrentRenderStress and writes every frame
+ * as PNG: first with ImageIO.write() on the render thread, then through a FrameExporter
+ * whose sinks encode on their own threads while the next frames are rendered. The
+ * pipelined time approaches max(render, encode) when there is a core for each, on a
+ * single core it stays near their sum. The last run adds Y4M and raw RGB sinks.
+ *
+ * @author Texhnolyze
+ */
+public class FrameExportBenchmark {
+
+    static final int WIDTH = 1280, HEIGHT = 720;
+    static final int FRAMES = 30, BUFFERS = 3;
+
+    public static void main(String[] args) throws Exception {
+        Scene scene = ConcurrentRenderStress.scene();
+        Camera[] cameras = new Camera[FRAMES];
+        for (int f = 0; f < FRAMES; f++)
+            cameras[f] = camera(2.0 * Math.PI * f / FRAMES);
+        Path dir = Files.createTempDirectory("frames");
+        try {
+            for (int run = 0; run < 2; run++) { // the first run warms up
+                boolean print = run == 1;
+                long render = time(() -> serial(scene, cameras, null));
+                long serial = time(() -> serial(scene, cameras, dir));
+                long pipelined = time(() -> pipelined(scene, cameras, dir, false));
+                long all = time(() -> pipelined(scene, cameras, dir, true));
+                if (print) {
+                    System.out.printf("%d frames %dx%d, ms per frame%n", FRAMES, WIDTH, HEIGHT);
+                    System.out.printf("render only          %8.2f%n", render / 1e6 / FRAMES);
+                    System.out.printf("render + ImageIO     %8.2f%n", serial / 1e6 / FRAMES);
+                    System.out.printf("exporter, PNG        %8.2f%n", pipelined / 1e6 / FRAMES);
+                    System.out.printf("exporter, PNG+Y4M+raw%8.2f%n", all / 1e6 / FRAMES);
+                }
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+//  renders the frames and writes them on the render thread, only renders if dir is null
+    static void serial(Scene scene, Camera[] cameras, Path dir) throws IOException {
+        DefaultGraphics g = new DefaultGraphics(WIDTH, HEIGHT);
+        Renderer r = new Renderer(g);
+        for (int f = 0; f < cameras.length; f++) {
+            r.beginFrame();
+            r.render(cameras[f], scene);
+            r.endFrame();
+            if (dir != null)
+                ImageIO.write(g.getAsImage(), "png", dir.resolve(String.format("serial%06d.png", f)).toFile());
+        }
+    }
+
+//  one thread per sink, so the sinks do not wait for each other either
+    static void pipelined(Scene scene, Camera[] cameras, Path dir, boolean all) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(all ? 3 : 1);
+        try {
+            DefaultGraphics g = new DefaultGraphics(WIDTH, HEIGHT);
+            Renderer r = new Renderer(g);
+            FrameSink[] sinks = all
+                ? new FrameSink[] {
+                    new FrameSink.PngSequence(dir, "frame"),
+                    new FrameSink.Y4M(new BufferedOutputStream(Files.newOutputStream(dir.resolve("frames.y4m"))), 30),
+                    new FrameSink.RawRGB(new BufferedOutputStream(Files.newOutputStream(dir.resolve("frames.rgb"))))}
+                : new FrameSink[] {new FrameSink.PngSequence(dir, "frame")};
+            FrameExporter exporter = new FrameExporter(WIDTH, HEIGHT, BUFFERS, pool);
+            for (FrameSink s : sinks)
+                exporter.subscribe(s);
+            for (Camera c : cameras) {
+                r.beginFrame();
+                r.render(c, scene);
+                r.endFrame();
+                exporter.submit(g);
+            }
+            exporter.close();
+            for (FrameSink s : sinks)
+                s.await();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    static Camera camera(double angle) {
+        Camera c = new Camera(0.1f, 100f, 60, WIDTH, HEIGHT);
+        c.setPosition((float) (8.0 * Math.sin(angle)), 4f, (float) (-8.0 * Math.cos(angle)));
+        c.lookAt(0, 0, 0);
+        c.updateViewMatrix();
+        c.updateFrustum();
+        return c;
+    }
+
+    interface Run {
+        void run() throws Exception;
+    }
+
+    static long time(Run run) throws Exception {
+        long t = System.nanoTime();
+        run.run();
+        return System.nanoTime() - t;
+    }
+
+}
@@ -0,0 +1,138 @@
+package sandbox;
+
+import java.util.Arrays;
+import render.Bitmap.IntBitmap;
+import render.Camera;
+import render.Graphics.DefaultGraphics;
+import render.IndexedMesh;
+import render.Material;
+import render.ModelInstance;
+import render.Renderer;
+import render.ShadeMode;
+
+/**
+ *
+ * Renders a textured floor with every perspective subdivision and compares
+ * it to the exact image. The floor is banked around the view axis, so z
+ * changes along the scanlines. Every texel stores its own coordinates, so the
+ * error of a pixel in texels is read back from the image (0 is the background,
+ * texel 0, 0 is off screen). The error in pixels is the error in texels mapped
+ * back to the screen through the texels per pixel around the pixel in the
+ * exact image, measured over NEIGHBORHOOD pixels to each side. The texture is
+ * minified on the whole floor, so the rounding of the texel coordinates, which
+ * may flip a texel in either image, stays below a pixel too.
+ *
+ * @author Texhnolyze
+ */
+public class PerspectiveSubdivisionBenchmark {
+
+    static final int WIDTH = 1024, HEIGHT = 768, U_BITS = 12, V_BITS = 14; // texture size 2^U_BITS x 2^V_BITS
+    static final int WARMUP = 10, RUNS = 20, ROUNDS = 5;
+    static final int[] SUBDIVISIONS = {0, 8, 16, 32};
+    static final int NEIGHBORHOOD = 8; // pixels to each side used to measure the texels per pixel
+    static final int BANK = 30; // degrees
+
+    public static void main(String[] args) {
+        IntBitmap tex = new IntBitmap(1 << U_BITS, 1 << V_BITS);
+        for (int v = 0; v < 1 << V_BITS; v++) {
+            for (int u = 0; u < 1 << U_BITS; u++)
+                tex.setRGB(u, v, u << V_BITS | v);
+        }
+        DefaultGraphics g = new DefaultGraphics(WIDTH, HEIGHT);
+        Renderer r = new Renderer(g);
+        r.setVectorizedSpansEnabled(false);
+        Camera c = new Camera(0.1f, 100f, 60, WIDTH, HEIGHT);
+        c.setPosition(0, 1, 0);
+        c.lookAt(0, 0.5f, 10);
+        c.updateViewMatrix();
+        c.updateFrustum();
+        ModelInstance floor = new Fixtures.Instance(floor(8f, 4f, 80f, (float) Math.toRadians(BANK)), ShadeMode.NO_SHADE, Material.WHITE_PLASTIC).setTexture(tex);
+//      the subdivisions are timed in turns, the best time of all rounds counts
+        long[] best = new long[SUBDIVISIONS.length];
+        Arrays.fill(best, Long.MAX_VALUE);
+        int[][] images = new int[SUBDIVISIONS.length][];
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int k = 0; k < SUBDIVISIONS.length; k++) {
+                r.setPerspectiveSubdivision(SUBDIVISIONS[k]);
+                best[k] = Math.min(best[k], Fixtures.time(WARMUP, RUNS, r, c, g, floor));
+                images[k] = Fixtures.pixels(g);
+            }
+        }
+        System.out.println("   n    ms   speedup   texels max   texels mean   pixels max   pixels mean   changed %");
+        for (int k = 0; k < SUBDIVISIONS.length; k++) {
+            double[] e = error(images[0], images[k]);
+            System.out.printf("%4d %5.2f %9.2f %12.2f %13.3f %12.2f %13.3f %11.2f%n",
+                SUBDIVISIONS[k], best[k] / 1e6, (double) best[0] / best[k], e[0], e[1], e[2], e[3], e[4]);
+        }
+    }
+
+//  max and mean error in texels, max and mean error in pixels, percentage of the changed pixels
+    static double[] error(int[] exact, int[] img) {
+        double max = 0.0, sum = 0.0, max_px = 0.0, sum_px = 0.0;
+        int num = 0, num_px = 0, changed = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int i = y * WIDTH + x;
+                if (exact[i] == 0 || img[i] == 0)
+                    continue;
+                if (exact[i] != img[i])
+                    changed++;
+                double err = Math.max(Math.abs(u(exact[i]) - u(img[i])), Math.abs(v(exact[i]) - v(img[i])));
+                max = Math.max(max, err);
+                sum += err;
+                num++;
+                double err_px = pixelError(exact, img[i], x, y);
+                if (err_px < 0.0)
+                    continue;
+                max_px = Math.max(max_px, err_px);
+                sum_px += err_px;
+                num_px++;
+            }
+        }
+        return new double[] {max, sum / Math.max(num, 1), max_px, sum_px / Math.max(num_px, 1), 100.0 * changed / Math.max(num, 1)};
+    }
+
+//  error of the texel rgb at (x, y) in pixels (in the max norm), the texel coordinates change
+//  with the screen coordinates by the matrix | ux uy | measured in the exact image, whose
+//                                            | vx vy |
+//  inverse maps the error back, -1 if the neighborhood is not all floor
+    static double pixelError(int[] exact, int rgb, int x, int y) {
+        final int d = NEIGHBORHOOD, e = exact[y * WIDTH + x];
+        if (x < d || y < d || x >= WIDTH - d || y >= HEIGHT - d)
+            return -1.0;
+        int l = exact[y * WIDTH + x - d], r = exact[y * WIDTH + x + d];
+        int t = exact[(y - d) * WIDTH + x], b = exact[(y + d) * WIDTH + x];
+        if (l == 0 || r == 0 || t == 0 || b == 0)
+            return -1.0;
+        double ux = (u(r) - u(l)) / (2.0 * d), vx = (v(r) - v(l)) / (2.0 * d);
+        double uy = (u(b) - u(t)) / (2.0 * d), vy = (v(b) - v(t)) / (2.0 * d);
+        double det = ux * vy - uy * vx, du = u(rgb) - u(e), dv = v(rgb) - v(e);
+        if (det == 0.0)
+            return -1.0;
+        double dx = (vy * du - uy * dv) / det, dy = (ux * dv - vx * du) / det;
+        return Math.max(Math.abs(dx), Math.abs(dy));
+    }
+
+    static int u(int rgb) {
+        return rgb >> V_BITS;
+    }
+
+    static int v(int rgb) {
+        return rgb & ((1 << V_BITS) - 1);
+    }
+
+//  y = 0 plane, |x| <= half, near <= z <= far, rotated by bank around the line x = 0, y = 1
+    static IndexedMesh floor(float half, float near, float far, float bank) {
+        float cb = (float) Math.cos(bank), sb = (float) Math.sin(bank);
+        float[] pos = {-half, 0f, near, half, 0f, near, half, 0f, far, -half, 0f, far};
+        for (int i = 0; i < pos.length; i += 3) {
+            float x = pos[i], y = pos[i + 1] - 1f;
+            pos[i] = x * cb - y * sb;
+            pos[i + 1] = x * sb + y * cb + 1f;
+        }
+        float[] norm = {0f, 1f, 0f, 0f, 1f, 0f, 0f, 1f, 0f, 0f, 1f, 0f};
+        float[] uv = {0f, 0f, 1f, 0f, 1f, 1f, 0f, 1f};
+        return new IndexedMesh(pos, norm, uv, new int[] {0, 1, 2, 0, 2, 3}).setTwoFaced(true);
+    }
+
+}
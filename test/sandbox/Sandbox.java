@@ -1,6 +1,5 @@
 package sandbox;
 
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -288,6 +287,8 @@ public class Sandbox {
 
         M m;
         Material mat = Material.CHROME;
+        Bitmap tex;
+        boolean tex_loaded; // also after a failed read, so it is not retried every frame
         
         @Override
         public Model getModel() {
@@ -308,32 +309,18 @@ public class Sandbox {
             return null;
         }
 
+//      the renderer asks for the texture every frame, so it is read and mipmapped only once
         @Override
         public Bitmap getTexture() {
-            return new Bitmap() {
-                BufferedImage img;
-                {
-                    try {
-                        img = ImageIO.read(new File("2.jpg"));
-                    } catch (IOException ex) {
-                        Logger.getLogger(Sandbox.class.getName()).log(Level.SEVERE, null, ex);
-                    }
-                }
-                @Override
-                public int getWidth() {
-                    return img.getWidth();
-                }
-
-                @Override
-                public int getHeight() {
-                    return img.getHeight();
+            if (!tex_loaded) {
+                tex_loaded = true;
+                try {
+                    tex = Bitmap.IntBitmap.of(ImageIO.read(new File("2.jpg"))).generateMipmaps();
+                } catch (IOException ex) {
+                    Logger.getLogger(Sandbox.class.getName()).log(Level.SEVERE, null, ex);
                 }
-
-                @Override
-                public int getRGB(int x, int y) {
-                    return img.getRGB(x, y);
-                }
-            };
+            }
+            return tex;
         }
 
         @Override
@@ -0,0 +1,76 @@
+package sandbox;
+
+import java.util.Arrays;
+import java.util.Random;
+import render.Bitmap.IntBitmap;
+import render.Camera;
+import render.Graphics.DefaultGraphics;
+import render.IndexedMesh;
+import render.Material;
+import render.Renderer;
+import render.ShadeMode;
+import render.TextureLayout;
+
+/**
+ *
+ * Renders a screen filling textured quad rotated around the view axis and
+ * compares the ROW_MAJOR and TILED texture layouts. The texture is sampled
+ * at about one texel per pixel, so at 90 degrees every pixel of a row-major
+ * texture is a texture row away from its neighbor. The Morton ordered tiles
+ * of the TILED layout keep the neighbors of a texel in the same 4 KB in every
+ * direction, so its times should stay about flat across the angles.
+ *
+ * @author Texhnolyze
+ */
+public class TextureLayoutBenchmark {
+
+    static final int SCREEN = 1024, TEXTURE = 2048;
+    static final int WARMUP = 10, RUNS = 20;
+
+    public static void main(String[] args) {
+        IntBitmap row_major = new IntBitmap(TEXTURE, TEXTURE);
+        Random rnd = new Random(1);
+        for (int y = 0; y < TEXTURE; y++) {
+            for (int x = 0; x < TEXTURE; x++)
+                row_major.setRGB(x, y, rnd.nextInt(0x1000000));
+        }
+        IntBitmap tiled = row_major.toLayout(TextureLayout.TILED);
+        DefaultGraphics g = new DefaultGraphics(SCREEN, SCREEN);
+        Renderer r = new Renderer(g);
+        float d = 2f;
+        Camera c = new Camera(0.1f, 100f, 60, SCREEN, SCREEN);
+        c.setPosition(0, 0, -d);
+        c.lookAt(0, 0, 0);
+        c.updateViewMatrix();
+        c.updateFrustum();
+//      the quad covers the screen at every angle
+        float half = (float) (Math.sqrt(2.0) * d * Math.tan(Math.toRadians(30)));
+        System.out.println("angle   row-major ms   tiled ms");
+        for (int angle = 0; angle <= 90; angle += 15) {
+            Fixtures.Instance q = new Fixtures.Instance(quad(half, (float) Math.toRadians(angle)), ShadeMode.NO_SHADE, Material.WHITE_PLASTIC);
+            q.setTexture(row_major);
+            long rm = Fixtures.time(WARMUP, RUNS, r, c, g, q);
+            int[] expected = Fixtures.pixels(g);
+            q.setTexture(tiled);
+            long t = Fixtures.time(WARMUP, RUNS, r, c, g, q);
+            if (!Arrays.equals(expected, Fixtures.pixels(g)))
+                throw new IllegalStateException("layouts render different images");
+            System.out.printf("%5d   %12.2f   %8.2f%n", angle, rm / 1e6, t / 1e6);
+        }
+    }
+
+    static IndexedMesh quad(float half, float angle) {
+        float ca = (float) Math.cos(angle), sa = (float) Math.sin(angle);
+        float[] corners = {-half, -half, half, -half, half, half, -half, half};
+        float[] pos = new float[12], norm = new float[12];
+        for (int i = 0; i < 4; i++) {
+            float x = corners[2 * i], y = corners[2 * i + 1];
+            pos[3 * i] = x * ca - y * sa;
+            pos[3 * i + 1] = x * sa + y * ca;
+            norm[3 * i + 2] = -1f;
+        }
+        float[] uv = {0f, 1f, 1f, 1f, 1f, 0f, 0f, 0f};
+        return new IndexedMesh(pos, norm, uv, new int[] {0, 1, 2, 0, 2, 3}).setTwoFaced(true);
+    }
+
+}
@@ -0,0 +1,82 @@
+package sandbox;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import render.Camera;
+import render.DepthFormat;
+import render.Graphics.DefaultGraphics;
+import render.Renderer;
+import render.Scene;
+import render.TriangleTraversal;
+
+/**
+ *
+ * Renders the scene of ConcurrentRenderStress with tiled rasterization and checks
+ * that it matches the untiled frame pixel for pixel with every depth format,
+ * triangle traversal and perspective subdivision, and that switching the depth
+ * format to every other one and back, with no triangle drawn in between, renders
+ * the same frame as before the switch. Exits with status 1 if any frame differs.
+ *
+ * @author Texhnolyze
+ */
+public class TiledRasterizerCheck {
+
+    static final int WIDTH = 320, HEIGHT = 240;
+    static final int[] SUBDIVISIONS = {0, 16};
+
+    public static void main(String[] args) {
+        Scene scene = ConcurrentRenderStress.scene();
+        Camera c = ConcurrentRenderStress.camera(0.5);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        int bad = 0;
+        try {
+            for (DepthFormat f : DepthFormat.values()) {
+                for (TriangleTraversal t : TriangleTraversal.values()) {
+                    for (int n : SUBDIVISIONS) {
+                        DefaultGraphics g = new DefaultGraphics(WIDTH, HEIGHT);
+                        Renderer r = new Renderer(g);
+                        r.setDepthFormat(f);
+                        r.setTriangleTraversal(t);
+                        r.setPerspectiveSubdivision(n);
+                        int[] expected = frame(r, c, scene, g);
+                        r.enableTiledRasterization(pool);
+                        if (!Arrays.equals(expected, frame(r, c, scene, g))) {
+                            System.out.println(f + " " + t + " subdivision " + n + ": the tiled frame differs from the untiled one");
+                            bad++;
+                        }
+                    }
+                }
+            }
+            for (DepthFormat f : DepthFormat.values()) {
+                DefaultGraphics g = new DefaultGraphics(WIDTH, HEIGHT);
+                Renderer r = new Renderer(g);
+                r.enableTiledRasterization(pool);
+                r.setDepthFormat(f);
+                int[] expected = frame(r, c, scene, g);
+                for (DepthFormat other : DepthFormat.values()) {
+                    if (other == f)
+                        continue;
+                    r.setDepthFormat(other);
+                    r.setDepthFormat(f);
+                    if (!Arrays.equals(expected, frame(r, c, scene, g))) {
+                        System.out.println(f + " -> " + other + " -> " + f + ": the frame differs from the one before the switch");
+                        bad++;
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        System.out.println(bad + " frames differ");
+        if (bad != 0)
+            System.exit(1);
+    }
+
+    static int[] frame(Renderer r, Camera c, Scene scene, DefaultGraphics g) {
+        r.beginFrame();
+        r.render(c, scene);
+        r.endFrame();
+        return Fixtures.pixels(g);
+    }
+
+}